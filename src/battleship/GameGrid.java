@@ -1,41 +1,118 @@
 package battleship;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Represents a game grid for battleship-style gameplay.
- * The grid has a fixed size and supports placing ships, attacking, and checking
- * game status.
+ * The grid is sparse: only ship cells and shot cells are stored, so memory and
+ * checks scale with the number of ships and shots instead of the board area.
+ * Supports placing multi-cell ships, attacking, and checking game status.
+ * The fogged view is kept up to date on every attack instead of being rebuilt.
  */
 public class GameGrid implements Serializable {
-    private final int SIZE = 6;
-    private final char[][] grid;
+    private static final int MAX_DISPLAY_SIZE = 40; // Larger boards are summarized
+
+    private final int size;
+    private final Map<Long, Integer> shipCells = new HashMap<>(); // Occupied cell -> ship number
+    private final Set<Long> hits = new HashSet<>();
+    private final Set<Long> misses = new HashSet<>();
+    private int[] shipLengths = new int[4];
+    private int[] shipHealth = new int[4]; // Cells of each ship not hit yet
+    private int ships;
+    private int shipsAfloat;
+    private transient GameGrid fog; // Hits and misses only, created on first use
 
     /**
-     * Initializes a new game grid with water ('~') in all cells.
+     * Initializes a new 6x6 game grid with water in all cells.
      */
     public GameGrid() {
-        grid = new char[SIZE][SIZE];
-        for (int i = 0; i < SIZE; i++) {
-            for (int j = 0; j < SIZE; j++) {
-                grid[i][j] = '~'; // Water
-            }
-        }
+        this(MatchConfig.DEFAULT.getSize());
+    }
+
+    /**
+     * Initializes a new game grid with water in all cells.
+     * 
+     * @param size The side of the square grid.
+     */
+    public GameGrid(int size) {
+        this.size = size;
     }
 
     /**
-     * Places a ship at the specified coordinates.
+     * Places a single-cell ship at the specified coordinates.
      * 
      * @param x The x-coordinate.
      * @param y The y-coordinate.
      * @return A message indicating whether the placement was successful.
      */
     public String placeShip(int x, int y) {
-        if (grid[x][y] == '~') {
-            grid[x][y] = 'S'; // Ship
-            return "Placed";
+        return placeShip(x, y, 1, false);
+    }
+
+    /**
+     * Places a ship starting at the specified coordinates.
+     * 
+     * @param x        The x-coordinate of the first cell.
+     * @param y        The y-coordinate of the first cell.
+     * @param length   The number of cells of the ship.
+     * @param vertical true to extend along x, false to extend along y.
+     * @return A message indicating whether the placement was successful.
+     */
+    public synchronized String placeShip(int x, int y, int length, boolean vertical) {
+        String refused = checkPlacement(x, y, length, vertical);
+        if (refused != null) {
+            return refused;
+        }
+
+        if (ships == shipLengths.length) {
+            shipLengths = Arrays.copyOf(shipLengths, ships * 2);
+            shipHealth = Arrays.copyOf(shipHealth, ships * 2);
+        }
+        for (int i = 0; i < length; i++) {
+            shipCells.put(vertical ? cell(x + i, y) : cell(x, y + i), ships);
+        }
+        shipLengths[ships] = length;
+        shipHealth[ships] = length;
+        ships++;
+        shipsAfloat++;
+        return "Placed";
+    }
+
+    /**
+     * Checks whether a ship can be placed, without placing it.
+     * 
+     * @param x        The x-coordinate of the first cell.
+     * @param y        The y-coordinate of the first cell.
+     * @param length   The number of cells of the ship.
+     * @param vertical true to extend along x, false to extend along y.
+     * @return true if placeShip would succeed.
+     */
+    public synchronized boolean canPlaceShip(int x, int y, int length, boolean vertical) {
+        return checkPlacement(x, y, length, vertical) == null;
+    }
+
+    /**
+     * @return The reason a ship cannot be placed there, or null if it can.
+     */
+    private String checkPlacement(int x, int y, int length, boolean vertical) {
+        int endX = vertical ? x + length - 1 : x;
+        int endY = vertical ? y : y + length - 1;
+        if (x < 0 || y < 0 || endX >= size || endY >= size) {
+            return "Ship does not fit on the grid!";
         }
-        return "Space already occupied!";
+        for (int i = 0; i < length; i++) {
+            if (shipCells.containsKey(vertical ? cell(x + i, y) : cell(x, y + i))) {
+                return "Space already occupied!";
+            }
+        }
+        return null;
     }
 
     /**
@@ -45,58 +122,207 @@ public class GameGrid implements Serializable {
      * @param y The y-coordinate.
      * @return A message indicating whether the attack was a hit or a miss.
      */
-    public String attack(int x, int y) {
-        if (grid[x][y] == 'S') {
-            grid[x][y] = 'X'; // Hit
-            return "Hit!";
-        } else if (grid[x][y] == 'X' || grid[x][y] == 'O') {
+    public synchronized String attack(int x, int y) {
+        long cell = cell(x, y);
+        if (hits.contains(cell) || misses.contains(cell)) {
             return "Already hitted or missed!";
-        } else {
-            grid[x][y] = 'O'; // Miss
+        }
+
+        Integer ship = shipCells.get(cell);
+        if (ship == null) {
+            misses.add(cell);
+            if (fog != null) {
+                fog.recordShot(cell, false);
+            }
             return "Miss!";
         }
+
+        hits.add(cell);
+        if (fog != null) {
+            fog.recordShot(cell, true);
+        }
+        if (--shipHealth[ship] == 0) {
+            shipsAfloat--;
+            return "Hit! Ship of length " + shipLengths[ship] + " sunk!";
+        }
+        return "Hit!";
     }
 
     /**
-     * Returns a fogged version of the grid, hiding ship locations.
+     * Records a shot on a fogged view.
+     * 
+     * @param cell The packed coordinates of the shot.
+     * @param hit  true for a hit, false for a miss.
+     */
+    private synchronized void recordShot(long cell, boolean hit) {
+        (hit ? hits : misses).add(cell);
+    }
+
+    /**
+     * Records a shot on a fogged view built from another representation of the
+     * board.
      * 
-     * @return A new GameGrid with only hits and misses visible.
+     * @param x   The x-coordinate.
+     * @param y   The y-coordinate.
+     * @param hit true for a hit, false for a miss.
      */
-    public GameGrid getFoggedGrid() {
-        GameGrid foggedGrid = new GameGrid();
-        for (int i = 0; i < SIZE; i++) {
-            for (int j = 0; j < SIZE; j++) {
-                if (grid[i][j] == 'X' || grid[i][j] == 'O') {
-                    foggedGrid.grid[i][j] = grid[i][j]; // Show hits/misses
-                } else {
-                    foggedGrid.grid[i][j] = '~'; // Hide ships
+    public void recordShot(int x, int y, boolean hit) {
+        recordShot(cell(x, y), hit);
+    }
+
+    /**
+     * Checks whether a cell was already attacked.
+     * 
+     * @param x The x-coordinate.
+     * @param y The y-coordinate.
+     * @return true for a hit or a miss.
+     */
+    public synchronized boolean isShot(int x, int y) {
+        long cell = cell(x, y);
+        return hits.contains(cell) || misses.contains(cell);
+    }
+
+    /**
+     * Marks what an opponent knows of the grid on bitboards, one bit per cell
+     * in row-major order (bit x * size + y): the hits of ships still afloat,
+     * and the cells no ship afloat can cover (misses and cells of sunk ships).
+     * The bitboards must be cleared and hold at least size * size bits.
+     * 
+     * @param afloatHits Receives the hits of the ships still afloat.
+     * @param blocked    Receives the misses and the sunk cells.
+     * @return The number of shots on the grid.
+     */
+    public synchronized int markShots(long[] afloatHits, long[] blocked) {
+        for (long cell : hits) {
+            long bit = (cell >>> 32) * size + (int) cell;
+            long[] board = (shipHealth[shipCells.get(cell)] > 0) ? afloatHits : blocked;
+            board[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        for (long cell : misses) {
+            long bit = (cell >>> 32) * size + (int) cell;
+            blocked[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        return hits.size() + misses.size();
+    }
+
+    /**
+     * Lists the hits of the ships still afloat, as packed cells (x in the high
+     * 32 bits, y in the low ones).
+     * 
+     * @param cells Receives the cells, as many as fit.
+     * @return The number of such hits, possibly more than stored.
+     */
+    public synchronized int afloatHits(long[] cells) {
+        int count = 0;
+        for (long cell : hits) {
+            if (shipHealth[shipCells.get(cell)] > 0) {
+                if (count < cells.length) {
+                    cells[count] = cell;
                 }
+                count++;
             }
         }
-        return foggedGrid;
+        return count;
     }
 
     /**
-     * Checks if all ships on the grid have been sunk.
+     * Lists the lengths of the ships still afloat. Which ships are sunk is
+     * public, every sinking is announced with the ship length.
      * 
-     * @return true if all ships are sunk, false otherwise.
+     * @param lengths Receives the lengths, as many as fit.
+     * @return The number of ships afloat.
      */
-    public boolean isAllShipsSunk() {
-        for (int i = 0; i < SIZE; i++) {
-            for (int j = 0; j < SIZE; j++) {
-                if (grid[i][j] == 'S') {
-                    return false;
+    public synchronized int afloatLengths(int[] lengths) {
+        int count = 0;
+        for (int ship = 0; ship < ships; ship++) {
+            if (shipHealth[ship] > 0) {
+                if (count < lengths.length) {
+                    lengths[count] = shipLengths[ship];
                 }
+                count++;
             }
         }
-        return true;
+        return count;
+    }
+
+    /**
+     * Returns a fogged version of the grid, hiding ship locations.
+     * The view is built once and then updated by every attack.
+     * 
+     * @return A GameGrid with only hits and misses visible.
+     */
+    public synchronized GameGrid getFoggedGrid() {
+        if (fog == null) {
+            fog = new GameGrid(size);
+            fog.hits.addAll(hits); // Show hits/misses, ships stay hidden
+            fog.misses.addAll(misses);
+        }
+        return fog;
+    }
+
+    /**
+     * Creates an independent copy of this grid.
+     * 
+     * @return A new GameGrid with the same cells.
+     */
+    public synchronized GameGrid copy() {
+        GameGrid copy = new GameGrid(size);
+        copy.shipCells.putAll(shipCells);
+        copy.hits.addAll(hits);
+        copy.misses.addAll(misses);
+        copy.shipLengths = shipLengths.clone();
+        copy.shipHealth = shipHealth.clone();
+        copy.ships = ships;
+        copy.shipsAfloat = shipsAfloat;
+        return copy;
+    }
+
+    /**
+     * Checks if all ships on the grid have been sunk.
+     * 
+     * @return true if all ships are sunk, false otherwise.
+     */
+    public boolean isAllShipsSunk() {
+        return shipsAfloat == 0;
+    }
+
+    /**
+     * @return The number of cells attacked so far.
+     */
+    public synchronized int getShots() {
+        return hits.size() + misses.size();
+    }
+
+    /**
+     * Returns the number of ships not sunk yet.
+     * 
+     * @return The ships still afloat.
+     */
+    public int getShipsAfloat() {
+        return shipsAfloat;
+    }
+
+    public int getSize() {
+        return size;
     }
 
     /**
      * Displays the current state of the grid in the console.
+     * Boards too large for a terminal are summarized.
      */
     public void displayGrid() {
-        System.out.println("   0 1 2 3 4 5");
+        if (size > MAX_DISPLAY_SIZE) {
+            System.out.println(size + "x" + size + " grid: " + shipCells.size() + " ship cells, " + hits.size()
+                    + " hits, " + misses.size() + " misses");
+            return;
+        }
+
+        char[][] grid = getGrid();
+        StringBuilder header = new StringBuilder("   ");
+        for (int j = 0; j < size; j++) {
+            header.append(j).append(' ');
+        }
+        System.out.println(header);
         for (int i = 0; i < grid.length; i++) {
             System.out.print(i + " ");
             for (char c : grid[i]) {
@@ -107,11 +333,37 @@ public class GameGrid implements Serializable {
     }
 
     /**
-     * Retrieves the grid as a 2D character array.
+     * Retrieves the grid as a 2D character array: water ('~'), ship ('S'),
+     * hit ('X') and miss ('O'). The array is built on demand.
      * 
      * @return The grid.
      */
-    public char[][] getGrid() {
+    public synchronized char[][] getGrid() {
+        char[][] grid = new char[size][size];
+        for (char[] row : grid) {
+            Arrays.fill(row, '~'); // Water
+        }
+        for (long cell : shipCells.keySet()) {
+            grid[(int) (cell >>> 32)][(int) cell] = 'S'; // Ship
+        }
+        for (long cell : hits) {
+            grid[(int) (cell >>> 32)][(int) cell] = 'X'; // Hit
+        }
+        for (long cell : misses) {
+            grid[(int) (cell >>> 32)][(int) cell] = 'O'; // Miss
+        }
         return grid;
     }
-}
\ No newline at end of file
+
+    /**
+     * Serializes the grid atomically, so a grid returned through RMI is never
+     * written while an attack is updating it.
+     */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+    }
+
+    private static long cell(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+}
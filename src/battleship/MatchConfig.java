@@ -0,0 +1,134 @@
+package battleship;
+
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Board size, fleet composition and number of players of a match.
+ * The fleet lists the length of each ship in placement order.
+ */
+public class MatchConfig implements Serializable {
+    public static final int MAX_SIZE = 1 << 16; // Largest supported board side
+    public static final int MAX_PLAYERS = 64; // Largest free-for-all match
+    public static final MatchConfig DEFAULT = new MatchConfig(6, new int[] { 1, 1, 1, 1, 1 });
+
+    private final int size;
+    private final int[] fleet;
+    private final int players;
+
+    /**
+     * Creates a two-player match configuration.
+     * 
+     * @param size  The side of the square board.
+     * @param fleet The length of each ship, in placement order.
+     * @throws IllegalArgumentException If the fleet does not fit on the board.
+     */
+    public MatchConfig(int size, int[] fleet) {
+        this(size, fleet, 2);
+    }
+
+    /**
+     * Creates a match configuration.
+     * 
+     * @param size    The side of the square board.
+     * @param fleet   The length of each ship, in placement order.
+     * @param players The number of players of the match.
+     * @throws IllegalArgumentException If the fleet does not fit on the board or
+     *                                  the number of players is not supported.
+     */
+    public MatchConfig(int size, int[] fleet, int players) {
+        if (players < 2 || players > MAX_PLAYERS) {
+            throw new IllegalArgumentException("Players must be between 2 and " + MAX_PLAYERS);
+        }
+        if (size < 1 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("Board size must be between 1 and " + MAX_SIZE);
+        }
+        if (fleet.length == 0) {
+            throw new IllegalArgumentException("Fleet must contain at least one ship");
+        }
+
+        long cells = 0;
+        for (int length : fleet) {
+            if (length < 1 || length > size) {
+                throw new IllegalArgumentException("Ship length must be between 1 and " + size);
+            }
+            cells += length;
+        }
+        if (cells > (long) size * size) {
+            throw new IllegalArgumentException("Fleet does not fit on a " + size + "x" + size + " board");
+        }
+
+        this.size = size;
+        this.fleet = fleet.clone();
+        this.players = players;
+    }
+
+    /**
+     * Checks a deserialized configuration like the constructor does, since it may
+     * come from any RMI client, and copies its fleet.
+     *
+     * @return A validated copy of the configuration.
+     * @throws InvalidObjectException If the configuration is not valid.
+     */
+    private Object readResolve() throws ObjectStreamException {
+        if (fleet == null) {
+            throw new InvalidObjectException("Fleet is missing");
+        }
+        try {
+            return new MatchConfig(size, fleet, players);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidObjectException(e.getMessage());
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int[] getFleet() {
+        return fleet.clone();
+    }
+
+    public int getPlayers() {
+        return players;
+    }
+
+    public int getFleetSize() {
+        return fleet.length;
+    }
+
+    /**
+     * Returns the length of a ship of the fleet.
+     * 
+     * @param ship The position of the ship in placement order.
+     * @return The ship length.
+     */
+    public int getShipLength(int ship) {
+        return fleet[ship];
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof MatchConfig)) {
+            return false;
+        }
+        MatchConfig config = (MatchConfig) other;
+        return size == config.size && players == config.players && Arrays.equals(fleet, config.fleet);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * size + players) + Arrays.hashCode(fleet);
+    }
+
+    @Override
+    public String toString() {
+        return "MatchConfig{" +
+                "size=" + size +
+                ", fleet=" + Arrays.toString(fleet) +
+                ", players=" + players +
+                '}';
+    }
+}
@@ -0,0 +1,1088 @@
+package battleship.client;
+
+import battleship.GameGrid;
+import battleship.MatchConfig;
+import battleship.server.MatchAssignment;
+import battleship.server.MatchEvent;
+import battleship.server.MatchListener;
+import battleship.server.MoveResponse;
+import battleship.server.RaftServerInterface;
+import battleship.server.ShardMap;
+import battleship.server.SpectatorListener;
+import java.io.Closeable;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.UnknownHostException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Asynchronous client of the Battleship cluster, able to drive many matches
+ * from one process. Every request returns a CompletableFuture.
+ * <ul>
+ * <li>The leader of each consensus group is looked up once and looked up again
+ * when it fails or refuses a request. Requests are retried meanwhile, until
+ * their timeout. The requests of a match go to the group of its id, and lobby
+ * requests to the group of the ticket, as given by the shard map of the
+ * cluster.</li>
+ * <li>Moves are pipelined: the moves submitted while earlier ones are in flight
+ * are sent together in one call per group, with a few calls in flight at once. The moves
+ * of a player are sent in submission order. Moves refused by the rate limits
+ * are sent again after the delay the leader asks for.</li>
+ * <li>Lobby assignments and match events are pushed by the servers to a single
+ * callback shared by every session, so waiting costs no thread and no
+ * polling. Match events are taken from a learner when there is one.</li>
+ * </ul>
+ * A few threads are enough for thousands of sessions, since only the RMI calls
+ * in flight hold one. Futures completed by a push notification run their
+ * dependent stages on the RMI thread of the notification, so heavy work should
+ * use the async variants of the stages.
+ */
+public class AsyncBattleshipClient implements Closeable {
+    static final int MAX_BATCH = 128; // Moves sent in one call
+    static final int PIPELINE_DEPTH = 4; // Move calls in flight at once
+    private static final long RETRY_DELAY = 200; // Before a new attempt after a failure (ms)
+    private static final long ASSIGNMENT_CHECK = 3000; // Before checking a lost assignment notification (ms)
+    private static final long DEFAULT_TIMEOUT = 30000; // Of a request, retries included (ms)
+    private static final long SOURCE_CHECK = 2000; // Between checks of the servers streaming events (ms)
+    private static final Pattern RETRY_AFTER = Pattern.compile("retry after (\\d+) ms");
+    private static final String NOT_LEADER = "!! Not the leader !!";
+
+    /**
+     * A call to a server.
+     */
+    public interface RemoteCall<T> {
+        T apply(RaftServerInterface server) throws RemoteException;
+    }
+
+    /**
+     * Thrown when the leader was lost while a move was in flight: the move may
+     * or may not have been played, check the state of the match before sending
+     * it again. The events of the match are taken again from the new leader (or
+     * a learner), so awaitTurn answers from the state after the failover.
+     */
+    public static class UncertainMoveException extends Exception {
+        UncertainMoveException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * The server asked is not (or no longer) the leader.
+     */
+    private static class NotLeaderException extends RemoteException {
+        NotLeaderException() {
+            super("Not the leader");
+        }
+    }
+
+    /**
+     * A move waiting for its response.
+     */
+    private static class PendingMove {
+        final int matchId;
+        final int seat;
+        final String move;
+        final long deadline;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+
+        PendingMove(int matchId, int seat, String move, long deadline) {
+            this.matchId = matchId;
+            this.seat = seat;
+            this.move = move;
+            this.deadline = deadline;
+        }
+
+        long player() {
+            return ((long) matchId << 16) | seat;
+        }
+    }
+
+    /**
+     * The events of a match received by this client, with the state they lead
+     * to.
+     */
+    private class MatchFeed {
+        final int matchId;
+        final List<Consumer<MatchEvent>> listeners = new CopyOnWriteArrayList<>();
+        final List<CompletableFuture<Boolean>> waiters = new ArrayList<>(); // Turn waiters
+        final List<Integer> waiterSeats = new ArrayList<>();
+        RaftServerInterface source; // Node streaming the events, null while subscribing
+        boolean subscribing;
+        boolean ended;
+        boolean synced; // A resync was received from the source
+        int resyncIndex = -1; // Events up to this index are part of the last resync
+        int seenIndex = -1; // The state received covers the log up to this index
+        int fence = -1; // Log index of the last move played by this client in the match
+        int turn = -1;
+        boolean finished;
+        boolean[] eliminated;
+
+        MatchFeed(int matchId) {
+            this.matchId = matchId;
+        }
+
+        /**
+         * Applies and forwards the events of a delivery.
+         */
+        void onEvents(MatchEvent[] events) {
+            List<MatchEvent> forwarded = new ArrayList<>(events.length);
+            boolean lost = false;
+            synchronized (this) {
+                for (MatchEvent event : events) {
+                    switch (event.getType()) {
+                        case "resync":
+                            synced = true;
+                            resyncIndex = event.getIndex();
+                            seenIndex = event.getIndex();
+                            turn = event.getSeat();
+                            finished = event.getSeat() < 0;
+                            eliminated = event.getEliminated().clone();
+                            forwarded.add(event);
+                            continue;
+                        case "closed":
+                            source = null;
+                            synced = false;
+                            lost = true;
+                            continue;
+                        default:
+                            if (!synced || event.getIndex() <= resyncIndex) {
+                                continue; // Already part of the resync
+                            }
+                            seenIndex = Math.max(seenIndex, event.getIndex());
+                    }
+                    switch (event.getType()) {
+                        case "attack":
+                            String sunk = "All ships of player " + event.getTarget() + " sunk";
+                            if (event.getResult() != null && event.getResult().contains(sunk)) {
+                                eliminated[event.getTarget()] = true;
+                            }
+                            break;
+                        case "left":
+                            eliminated[event.getSeat()] = true;
+                            break;
+                        case "turn":
+                            turn = event.getSeat();
+                            break;
+                        case "finished":
+                            finished = true;
+                            break;
+                        default:
+                    }
+                    forwarded.add(event);
+                }
+            }
+            for (MatchEvent event : forwarded) {
+                for (Consumer<MatchEvent> listener : listeners) {
+                    listener.accept(event);
+                }
+            }
+            wakeWaiters();
+            if (lost) {
+                subscribe(this); // This node stopped serving it, look for another one
+            } else if (isOver()) {
+                drop(this);
+            }
+        }
+
+        synchronized boolean isOver() {
+            return synced && finished;
+        }
+
+        /**
+         * Completes the turn waiters the current state answers.
+         */
+        void wakeWaiters() {
+            List<CompletableFuture<Boolean>> ready = new ArrayList<>();
+            List<Boolean> answers = new ArrayList<>();
+            synchronized (this) {
+                if (!synced) {
+                    return;
+                }
+                for (int i = waiters.size() - 1; i >= 0; i--) {
+                    int seat = waiterSeats.get(i);
+                    // The turn is only trusted once the state includes the last move of the client
+                    if (finished || eliminated[seat] || (turn == seat && seenIndex >= fence)) {
+                        ready.add(waiters.remove(i));
+                        answers.add(!finished && !eliminated[seat]);
+                        waiterSeats.remove(i);
+                    }
+                }
+            }
+            for (int i = 0; i < ready.size(); i++) {
+                ready.get(i).complete(answers.get(i));
+            }
+        }
+
+        /**
+         * Ends the feed: the match is over or no longer served.
+         */
+        void end() {
+            List<CompletableFuture<Boolean>> pending;
+            synchronized (this) {
+                ended = true;
+                pending = new ArrayList<>(waiters);
+                waiters.clear();
+                waiterSeats.clear();
+            }
+            pending.forEach(waiter -> waiter.complete(false));
+            MatchEvent closed = new MatchEvent("closed", matchId, -1, -1, -1, -1, -1, null, null, null);
+            for (Consumer<MatchEvent> listener : listeners) {
+                listener.accept(closed);
+            }
+        }
+    }
+
+    /**
+     * Callback shared by every session of the client, receiving the lobby
+     * assignments and the events of the watched matches.
+     */
+    private class Notifications extends UnicastRemoteObject implements MatchListener, SpectatorListener {
+        Notifications() throws RemoteException {
+            super();
+        }
+
+        @Override
+        public void matchAssigned(MatchAssignment assignment) {
+            CompletableFuture<MatchAssignment> waiting = lobby.get(assignment.getTicket());
+            if (waiting != null) {
+                waiting.complete(assignment);
+            }
+        }
+
+        @Override
+        public void matchEvents(MatchEvent[] events) {
+            MatchFeed feed = feeds.get(events[0].getMatchId());
+            if (feed != null) {
+                feed.onEvents(events);
+            }
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final long timeout; // Of a request, retries included (ms)
+    private final ExecutorService callers; // Threads making the blocking RMI calls
+    private final ScheduledExecutorService timer; // Delayed retries
+    private final Notifications notifications;
+    private final Random random = new Random();
+    private volatile boolean closed;
+
+    private volatile ShardMap shards; // Null until fetched
+    private CompletableFuture<ShardMap> shardLookup; // Fetch in progress, guarded by this
+    private final Map<Integer, RaftServerInterface> leaders = new ConcurrentHashMap<>(); // By group, once looked up
+    private final Map<Integer, CompletableFuture<RaftServerInterface>> discoveries = new HashMap<>(); // Guarded by this
+
+    private final ArrayDeque<PendingMove> queued = new ArrayDeque<>(); // Moves not sent yet, guarded by this
+    private final Set<Long> busyPlayers = new HashSet<>(); // With a move in flight or waiting for a retry
+    private int callsInFlight; // Move calls in flight, guarded by this
+
+    private final Map<Long, CompletableFuture<MatchAssignment>> lobby = new ConcurrentHashMap<>(); // By ticket
+    private final Map<Integer, MatchFeed> feeds = new ConcurrentHashMap<>(); // By match
+
+    /**
+     * Creates a client of the cluster registered on localhost.
+     *
+     * @throws RemoteException if the notification callback cannot be exported.
+     */
+    public AsyncBattleshipClient() throws RemoteException {
+        this("localhost", 1099, 4, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Creates a client.
+     *
+     * @param host    the host of the RMI registry of the cluster.
+     * @param port    the port of the registry.
+     * @param threads the threads making the RMI calls, i.e. the calls in flight.
+     * @param timeout the time (ms) after which a request that keeps failing is
+     *                given up.
+     * @throws RemoteException if the notification callback cannot be exported.
+     */
+    public AsyncBattleshipClient(String host, int port, int threads, long timeout) throws RemoteException {
+        this.host = host;
+        this.port = port;
+        this.timeout = timeout;
+        this.callers = Executors.newFixedThreadPool(threads, runnable -> daemon(runnable, "battleship-call"));
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> daemon(runnable, "battleship-retry"));
+        this.notifications = new Notifications();
+        timer.scheduleWithFixedDelay(this::checkSources, SOURCE_CHECK, SOURCE_CHECK, TimeUnit.MILLISECONDS);
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /*
+     * Leader discovery and retries
+     */
+
+    /**
+     * Returns the shard map of the cluster, fetching it if unknown. It never
+     * changes, so it is fetched once.
+     *
+     * @return the future shard map, failed if no server can be reached.
+     */
+    private CompletableFuture<ShardMap> shardMap() {
+        ShardMap known = shards;
+        if (known != null) {
+            return CompletableFuture.completedFuture(known);
+        }
+        synchronized (this) {
+            if (shardLookup == null || shardLookup.isDone()) {
+                shardLookup = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return fetchShards(LocateRegistry.getRegistry(host, port));
+                    } catch (RemoteException e) {
+                        throw new CompletionException(e);
+                    }
+                }, callers);
+            }
+            return shardLookup;
+        }
+    }
+
+    /**
+     * Asks the registered servers for the shard map, until one answers.
+     */
+    private ShardMap fetchShards(Registry registry) throws RemoteException {
+        for (String serverName : registry.list()) {
+            if (ShardMap.groupOfName(serverName) < 0) {
+                continue;
+            }
+            try {
+                shards = ((RaftServerInterface) registry.lookup(serverName)).getShardMap();
+                return shards;
+            } catch (RemoteException | NotBoundException e) {
+                // Down or gone, ask the next one
+            }
+        }
+        throw new RemoteException("No server reachable");
+    }
+
+    /**
+     * Returns the leader of a group, looking it up if unknown. Concurrent
+     * requests share the same lookup.
+     *
+     * @param group the consensus group.
+     * @return the future leader, failed if no server is the leader.
+     */
+    private CompletableFuture<RaftServerInterface> leader(int group) {
+        RaftServerInterface current = leaders.get(group);
+        if (current != null) {
+            return CompletableFuture.completedFuture(current);
+        }
+        synchronized (this) {
+            CompletableFuture<RaftServerInterface> discovery = discoveries.get(group);
+            if (discovery == null || discovery.isDone()) {
+                discovery = CompletableFuture.supplyAsync(() -> findLeader(group), callers);
+                discoveries.put(group, discovery);
+            }
+            return discovery;
+        }
+    }
+
+    /**
+     * Asks every registered server of a group whether it is the leader.
+     */
+    private RaftServerInterface findLeader(int group) {
+        try {
+            Registry registry = LocateRegistry.getRegistry(host, port);
+            for (String serverName : registry.list()) {
+                if (ShardMap.groupOfName(serverName) != group) {
+                    continue;
+                }
+                try {
+                    RaftServerInterface server = (RaftServerInterface) registry.lookup(serverName);
+                    if (server.isLeader()) {
+                        leaders.put(group, server);
+                        return server;
+                    }
+                } catch (RemoteException | NotBoundException e) {
+                    // Down or gone, ask the next one
+                }
+            }
+        } catch (RemoteException e) {
+            throw new CompletionException(e);
+        }
+        throw new CompletionException(new NotLeaderException());
+    }
+
+    /**
+     * Forgets a leader after it failed, so the next request of its group looks
+     * it up.
+     */
+    private void leaderFailed(RaftServerInterface failed) {
+        if (!leaders.values().removeIf(server -> server == failed)) {
+            return; // Already handled
+        }
+        sourceFailed(failed, feeds.values());
+    }
+
+    /**
+     * Runs an attempt again after a delay, or fails the request if its deadline
+     * would be passed.
+     */
+    private void retry(Runnable attempt, CompletableFuture<?> result, long deadline, long delay, Throwable cause) {
+        if (closed || System.currentTimeMillis() + delay > deadline) {
+            result.completeExceptionally(unwrap(cause));
+        } else {
+            timer.schedule(attempt, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException)
+                && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    /**
+     * Runs a call on the leader of the first group, retried (on the new leader)
+     * while it fails. Only idempotent calls should be made this way, e.g. reads.
+     *
+     * @param call the call.
+     * @return the future result of the call.
+     */
+    public <T> CompletableFuture<T> call(RemoteCall<T> call) {
+        return call(map -> 0, call);
+    }
+
+    /**
+     * Runs a call on the leader of the group of a match.
+     *
+     * @param matchId the match.
+     * @param call    the call.
+     * @return the future result of the call.
+     */
+    public <T> CompletableFuture<T> call(int matchId, RemoteCall<T> call) {
+        return call(map -> map.groupOf(matchId), call);
+    }
+
+    private <T> CompletableFuture<T> call(ToIntFunction<ShardMap> route, RemoteCall<T> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(route, call, result, System.currentTimeMillis() + timeout);
+        return result;
+    }
+
+    private <T> void attempt(ToIntFunction<ShardMap> route, RemoteCall<T> call, CompletableFuture<T> result,
+            long deadline) {
+        shardMap().thenCompose(map -> leader(route.applyAsInt(map))).thenAcceptAsync(server -> {
+            try {
+                result.complete(call.apply(server));
+            } catch (RemoteException e) {
+                leaderFailed(server);
+                retry(() -> attempt(route, call, result, deadline), result, deadline, RETRY_DELAY, e);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }, callers).exceptionally(error -> {
+            retry(() -> attempt(route, call, result, deadline), result, deadline, RETRY_DELAY, error);
+            return null;
+        });
+    }
+
+    /*
+     * Lobby
+     */
+
+    /**
+     * Joins the lobby and waits to be paired with other players.
+     *
+     * @param config the requested match, or null for the default one.
+     * @return the future assignment. It does not time out, players may wait
+     *         long for opponents, but fails if the cluster cannot be reached.
+     */
+    public CompletableFuture<MatchAssignment> joinLobby(MatchConfig config) {
+        long ticket = random.nextLong(); // Identifies the player in the lobby
+        CompletableFuture<MatchAssignment> assignment = new CompletableFuture<>();
+        lobby.put(ticket, assignment);
+        assignment.whenComplete((assigned, error) -> lobby.remove(ticket));
+        enterLobby(ticket, config, assignment);
+        return assignment;
+    }
+
+    /**
+     * Joins (again, which is safe) the lobby of the leader of the group of the
+     * ticket, then checks the assignment if no notification came in time, e.g.
+     * after a failover.
+     */
+    private void enterLobby(long ticket, MatchConfig config, CompletableFuture<MatchAssignment> assignment) {
+        if (assignment.isDone()) {
+            return;
+        }
+        call(map -> map.groupOfTicket(ticket), server -> {
+            if (!server.joinLobby(ticket, 0, config, notifications)) {
+                throw new NotLeaderException();
+            }
+            return server;
+        }).whenComplete((server, error) -> {
+            if (error != null) {
+                assignment.completeExceptionally(unwrap(error));
+            } else {
+                timer.schedule(() -> checkAssignment(ticket, config, assignment), ASSIGNMENT_CHECK,
+                        TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    private void checkAssignment(long ticket, MatchConfig config, CompletableFuture<MatchAssignment> assignment) {
+        if (assignment.isDone() || closed) {
+            assignment.cancel(false);
+            return;
+        }
+        ToIntFunction<ShardMap> route = map -> map.groupOfTicket(ticket);
+        call(route, server -> server.getAssignment(ticket)).whenComplete((assigned, error) -> {
+            if (assigned != null) {
+                assignment.complete(assigned); // The notification was lost
+            } else {
+                enterLobby(ticket, config, assignment);
+            }
+        });
+    }
+
+    /*
+     * Moves
+     */
+
+    /**
+     * Sends a move. Moves are sent in batches with the other pending moves of
+     * the client, and the moves of a player in submission order.
+     *
+     * @param matchId the match of the player.
+     * @param seat    the player.
+     * @param move    the move, e.g. "place,x,y[,v]" or "attack,x,y[,player]".
+     * @return the future response of the leader. It fails with an
+     *         UncertainMoveException if the leader was lost while the move was
+     *         in flight, or a TimeoutException if the move could not be sent
+     *         before the timeout.
+     */
+    public CompletableFuture<String> move(int matchId, int seat, String move) {
+        PendingMove pending = new PendingMove(matchId, seat, move, System.currentTimeMillis() + timeout);
+        synchronized (this) {
+            queued.add(pending);
+        }
+        sendMoves();
+        return pending.result;
+    }
+
+    /**
+     * Sends the queued moves, as long as fewer than PIPELINE_DEPTH calls are in
+     * flight.
+     */
+    private void sendMoves() {
+        ShardMap map = shards;
+        if (map == null) {
+            shardMap().whenComplete((known, error) -> {
+                if (error == null) {
+                    sendMoves();
+                } else {
+                    expireMoves(unwrap(error));
+                }
+            });
+            return;
+        }
+        while (true) {
+            List<PendingMove> batch;
+            synchronized (this) {
+                if (callsInFlight >= PIPELINE_DEPTH || queued.isEmpty()) {
+                    return;
+                }
+                batch = takeBatch(map);
+                if (batch.isEmpty()) {
+                    return; // Only moves of players waiting for earlier ones
+                }
+                callsInFlight++;
+            }
+            leader(map.groupOf(batch.get(0).matchId)).thenAcceptAsync(server -> sendBatch(server, batch), callers)
+                    .exceptionally(error -> {
+                        movesDone(batch, null, null, error);
+                        return null;
+                    });
+        }
+    }
+
+    /**
+     * Fails the queued moves past their deadline while the cluster cannot be
+     * reached, and tries the others again later.
+     */
+    private void expireMoves(Throwable cause) {
+        List<PendingMove> expired = new ArrayList<>();
+        boolean waiting;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Iterator<PendingMove> pending = queued.iterator();
+            while (pending.hasNext()) {
+                PendingMove move = pending.next();
+                if (closed || now + RETRY_DELAY > move.deadline) {
+                    pending.remove();
+                    expired.add(move);
+                }
+            }
+            waiting = !queued.isEmpty();
+        }
+        expired.forEach(move -> move.result.completeExceptionally(cause));
+        if (waiting) {
+            timer.schedule(this::sendMoves, RETRY_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Takes the next batch from the queue: moves of players without a move in
+     * flight, several of the same player keeping their order, all in the group
+     * of the first one. Called with the lock held.
+     */
+    private List<PendingMove> takeBatch(ShardMap map) {
+        List<PendingMove> batch = new ArrayList<>();
+        Set<Long> taken = new HashSet<>();
+        Set<Long> blocked = new HashSet<>();
+        Iterator<PendingMove> pending = queued.iterator();
+        int group = -1;
+        while (pending.hasNext() && batch.size() < MAX_BATCH) {
+            PendingMove move = pending.next();
+            long player = move.player();
+            if (group >= 0 && map.groupOf(move.matchId) != group) {
+                continue; // Sent to another leader, in a later batch (a player stays in one group)
+            }
+            if (blocked.contains(player) || (busyPlayers.contains(player) && !taken.contains(player))) {
+                blocked.add(player); // Its later moves wait as well
+                continue;
+            }
+            pending.remove();
+            if (move.result.isDone()) {
+                continue; // Cancelled by the caller
+            }
+            batch.add(move);
+            taken.add(player);
+            group = map.groupOf(move.matchId);
+        }
+        busyPlayers.addAll(taken);
+        return batch;
+    }
+
+    private void sendBatch(RaftServerInterface server, List<PendingMove> batch) {
+        int[] matchIds = new int[batch.size()];
+        String[] moves = new String[batch.size()];
+        int[] seats = new int[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            matchIds[i] = batch.get(i).matchId;
+            moves[i] = batch.get(i).move;
+            seats[i] = batch.get(i).seat;
+        }
+        try {
+            movesDone(batch, server, server.processMoves(matchIds, moves, seats), null);
+        } catch (RemoteException | RuntimeException e) {
+            leaderFailed(server);
+            movesDone(batch, server, null, e);
+        }
+    }
+
+    /**
+     * Completes the moves of a call, or queues them again when they were surely
+     * not played (rate limits, no leader reached).
+     *
+     * @param batch     the moves of the call.
+     * @param server    the server called, null if no leader was found.
+     * @param responses the responses, or null if the call failed.
+     * @param error     the failure of the call.
+     */
+    private void movesDone(List<PendingMove> batch, RaftServerInterface server, MoveResponse[] responses,
+            Throwable error) {
+        List<PendingMove> retries = new ArrayList<>();
+        long delay = RETRY_DELAY;
+        Throwable cause = unwrap(error);
+        boolean notSent = server == null || cause instanceof ConnectException
+                || cause instanceof ConnectIOException || cause instanceof UnknownHostException;
+
+        for (int i = 0; i < batch.size(); i++) {
+            PendingMove move = batch.get(i);
+            if (responses == null) {
+                if (notSent) {
+                    retries.add(move);
+                } else {
+                    uncertain(move.matchId);
+                    move.result.completeExceptionally(new UncertainMoveException("Leader lost", cause));
+                }
+                continue;
+            }
+            String response = responses[i].getResponse();
+            Matcher retryAfter = RETRY_AFTER.matcher(response);
+            if (retryAfter.find()) {
+                delay = Math.max(delay, Long.parseLong(retryAfter.group(1)));
+                retries.add(move);
+            } else if (response.equals(NOT_LEADER)) {
+                leaderFailed(server);
+                retries.add(move);
+            } else if (response.isEmpty()) {
+                uncertain(move.matchId);
+                move.result.completeExceptionally(new UncertainMoveException("Move not confirmed", null));
+            } else {
+                if (responses[i].getIndex() >= 0) {
+                    played(move.matchId, responses[i].getIndex());
+                }
+                move.result.complete(response);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        List<PendingMove> requeued = new ArrayList<>(retries.size());
+        for (PendingMove move : retries) {
+            if (closed || now + delay > move.deadline) {
+                move.result.completeExceptionally(
+                        (cause != null) ? cause : new TimeoutException("Move not accepted in time"));
+            } else {
+                requeued.add(move);
+            }
+        }
+
+        synchronized (this) {
+            callsInFlight--;
+            for (PendingMove move : batch) {
+                busyPlayers.remove(move.player());
+            }
+            for (PendingMove move : requeued) {
+                busyPlayers.add(move.player()); // Their later moves wait for the retry
+            }
+        }
+        if (!requeued.isEmpty()) {
+            timer.schedule(() -> requeue(requeued), delay, TimeUnit.MILLISECONDS);
+        }
+        sendMoves();
+    }
+
+    /**
+     * Records a move played by the client, so that turn waiters wait for the
+     * events of the match to include it.
+     */
+    private void played(int matchId, int index) {
+        MatchFeed feed = feeds.computeIfAbsent(matchId, MatchFeed::new); // Subscribed by the first waiter
+        synchronized (feed) {
+            feed.fence = Math.max(feed.fence, index);
+        }
+    }
+
+    /**
+     * Subscribes a match again after a move of unknown outcome, so its turn is
+     * not answered from a state that may miss the move.
+     */
+    private void uncertain(int matchId) {
+        MatchFeed feed = feeds.get(matchId);
+        if (feed == null) {
+            return; // The first waiter subscribes with the current state
+        }
+        synchronized (feed) {
+            feed.source = null;
+            feed.synced = false;
+        }
+        subscribe(feed);
+    }
+
+    /**
+     * Puts moves to retry back at the head of the queue, ahead of the later
+     * moves of their players.
+     */
+    private void requeue(List<PendingMove> moves) {
+        synchronized (this) {
+            for (int i = moves.size() - 1; i >= 0; i--) {
+                queued.addFirst(moves.get(i));
+                busyPlayers.remove(moves.get(i).player());
+            }
+        }
+        sendMoves();
+    }
+
+    /**
+     * Leaves a match: the player is eliminated, the others keep playing.
+     *
+     * @param matchId the match of the player.
+     * @param seat    the player.
+     * @return the future completed once the leader handled it.
+     */
+    public CompletableFuture<Void> leave(int matchId, int seat) {
+        return call(matchId, server -> {
+            server.clientDisconnection(matchId, seat);
+            return null;
+        });
+    }
+
+    /*
+     * Reads
+     */
+
+    public CompletableFuture<GameGrid> getPlayerGrid(int matchId, int seat) {
+        return call(matchId, server -> server.getPlayerGrid(matchId, seat));
+    }
+
+    public CompletableFuture<GameGrid> getFoggedOpponentGrid(int matchId, int seat) {
+        return call(matchId, server -> server.getFoggedOpponentGrid(matchId, seat));
+    }
+
+    public CompletableFuture<GameGrid> getFoggedGrid(int matchId, int seat) {
+        return call(matchId, server -> server.getFoggedGrid(matchId, seat));
+    }
+
+    public CompletableFuture<Integer> getNumShipsPlaced(int matchId, int seat) {
+        return call(matchId, server -> server.getNumShipsPlaced(matchId, seat));
+    }
+
+    public CompletableFuture<Boolean> isEliminated(int matchId, int seat) {
+        return call(matchId, server -> server.isEliminated(matchId, seat));
+    }
+
+    public CompletableFuture<Boolean> isMatchFinished(int matchId) {
+        return call(matchId, server -> server.isMatchFinished(matchId));
+    }
+
+    /*
+     * Push notifications
+     */
+
+    /**
+     * Waits for the turn of a player, notified by the match events.
+     *
+     * @param matchId the match of the player.
+     * @param seat    the player.
+     * @return the future completed with true when it is the turn of the player,
+     *         or false when the player is out, the match is over or no longer
+     *         served.
+     */
+    public CompletableFuture<Boolean> awaitTurn(int matchId, int seat) {
+        CompletableFuture<Boolean> turn = new CompletableFuture<>();
+        MatchFeed feed = feed(matchId);
+        synchronized (feed) {
+            if (feed.ended) {
+                turn.complete(false);
+                return turn;
+            }
+            feed.waiters.add(turn);
+            feed.waiterSeats.add(seat);
+        }
+        feed.wakeWaiters();
+        return turn;
+    }
+
+    /**
+     * Watches a match as spectator. The listener receives a resync event with
+     * the current state first (and again if the stream had to move to another
+     * server), then the events in order, and a closed event at the end.
+     *
+     * @param matchId  the match to watch.
+     * @param listener the consumer of the events, called on RMI threads.
+     */
+    public void watch(int matchId, Consumer<MatchEvent> listener) {
+        MatchFeed feed = feed(matchId);
+        synchronized (feed) {
+            if (!feed.ended) {
+                feed.listeners.add(listener);
+                return;
+            }
+        }
+        listener.accept(new MatchEvent("closed", matchId, -1, -1, -1, -1, -1, null, null, null));
+    }
+
+    /**
+     * Stops watching a match.
+     *
+     * @param matchId  the watched match.
+     * @param listener the consumer given to watch.
+     */
+    public void unwatch(int matchId, Consumer<MatchEvent> listener) {
+        MatchFeed feed = feeds.get(matchId);
+        if (feed != null) {
+            feed.listeners.remove(listener);
+        }
+    }
+
+    private MatchFeed feed(int matchId) {
+        MatchFeed feed = feeds.computeIfAbsent(matchId, MatchFeed::new);
+        subscribe(feed);
+        return feed;
+    }
+
+    /**
+     * Subscribes the client to the events of a match, on a learner if possible.
+     * The feed ends if no server knows the match.
+     */
+    private void subscribe(MatchFeed feed) {
+        synchronized (feed) {
+            if (feed.source != null || feed.subscribing || feed.ended || closed) {
+                return;
+            }
+            feed.subscribing = true;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        CompletableFuture<RaftServerInterface> source = new CompletableFuture<>();
+        trySubscribe(feed, source, deadline);
+        source.whenComplete((server, error) -> {
+            synchronized (feed) {
+                feed.subscribing = false;
+            }
+            if (server == null) {
+                drop(feed);
+            }
+        });
+    }
+
+    private void trySubscribe(MatchFeed feed, CompletableFuture<RaftServerInterface> source, long deadline) {
+        CompletableFuture.runAsync(() -> {
+            try {
+                Registry registry = LocateRegistry.getRegistry(host, port);
+                int group = ((shards != null) ? shards : fetchShards(registry)).groupOf(feed.matchId);
+                RaftServerInterface leaderServer = null;
+                for (String serverName : registry.list()) {
+                    if (ShardMap.groupOfName(serverName) != group) {
+                        continue; // Servers of other groups do not know the match
+                    }
+                    try {
+                        RaftServerInterface server = (RaftServerInterface) registry.lookup(serverName);
+                        if (server.isLeader()) {
+                            leaderServer = server; // Last resort, spectators load the leader
+                        } else if (watchFrom(feed, server)) {
+                            source.complete(server);
+                            return;
+                        }
+                    } catch (RemoteException | NotBoundException e) {
+                        // Down or gone, ask the next one
+                    }
+                }
+                if (leaderServer != null && watchFrom(feed, leaderServer)) {
+                    source.complete(leaderServer);
+                } else if (leaderServer != null && leaderServer.isLeader()) {
+                    source.complete(null); // Unknown match, unless it stepped down meanwhile
+                } else {
+                    retry(() -> trySubscribe(feed, source, deadline), source, deadline, RETRY_DELAY,
+                            new NotLeaderException());
+                }
+            } catch (RemoteException e) {
+                retry(() -> trySubscribe(feed, source, deadline), source, deadline, RETRY_DELAY, e);
+            }
+        }, callers);
+    }
+
+    private boolean watchFrom(MatchFeed feed, RaftServerInterface server) throws RemoteException {
+        synchronized (feed) {
+            feed.source = server; // Events may arrive before watchMatch returns
+        }
+        server.stopWatching(feed.matchId, notifications); // A stream left over from a previous subscription
+        if (server.watchMatch(feed.matchId, notifications)) {
+            return true;
+        }
+        synchronized (feed) {
+            feed.source = null;
+        }
+        return false;
+    }
+
+    /**
+     * Checks that the servers streaming events are up: a crashed server never
+     * closes its streams, so their matches are subscribed again elsewhere.
+     */
+    private void checkSources() {
+        Map<RaftServerInterface, List<MatchFeed>> bySource = new HashMap<>();
+        for (MatchFeed feed : feeds.values()) {
+            synchronized (feed) {
+                if (feed.source != null && feed.synced) {
+                    bySource.computeIfAbsent(feed.source, server -> new ArrayList<>()).add(feed);
+                }
+            }
+        }
+        for (Map.Entry<RaftServerInterface, List<MatchFeed>> entry : bySource.entrySet()) {
+            callers.execute(() -> {
+                try {
+                    entry.getKey().isLeader(); // One call per server, whatever its number of streams
+                } catch (RemoteException e) {
+                    sourceFailed(entry.getKey(), entry.getValue());
+                }
+            });
+        }
+    }
+
+    /**
+     * Subscribes again elsewhere the feeds streamed by a failed server.
+     */
+    private void sourceFailed(RaftServerInterface failed, Iterable<MatchFeed> candidates) {
+        for (MatchFeed feed : candidates) {
+            synchronized (feed) {
+                if (!failed.equals(feed.source)) { // Stubs of the same server are equal, not identical
+                    continue; // Streamed by another server, or already moved
+                }
+                feed.source = null;
+                feed.synced = false;
+            }
+            subscribe(feed);
+        }
+    }
+
+    /**
+     * Forgets a feed that ended.
+     */
+    private void drop(MatchFeed feed) {
+        if (!feeds.remove(feed.matchId, feed)) {
+            return;
+        }
+        RaftServerInterface source;
+        synchronized (feed) {
+            source = feed.source;
+            feed.source = null;
+        }
+        if (source != null) {
+            callers.execute(() -> {
+                try {
+                    source.stopWatching(feed.matchId, notifications);
+                } catch (RemoteException e) {
+                    // The stream ends with the server anyway
+                }
+            });
+        }
+        feed.end();
+    }
+
+    /**
+     * Stops the client: watched matches are left, pending requests fail.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (MatchFeed feed : feeds.values()) {
+            drop(feed);
+        }
+        lobby.values().forEach(assignment -> assignment.cancel(false));
+        try {
+            UnicastRemoteObject.unexportObject(notifications, true);
+        } catch (RemoteException e) {
+            // Already unexported
+        }
+        timer.shutdownNow();
+        callers.shutdown();
+    }
+}
@@ -1,245 +1,294 @@
 package battleship.client;
 
-import battleship.server.RaftServerInterface;
-import java.net.MalformedURLException;
-import java.rmi.ConnectException;
-import java.rmi.Naming;
-import java.rmi.NotBoundException;
+import battleship.GameGrid;
+import battleship.MatchConfig;
+import battleship.server.MatchAssignment;
+import battleship.server.MatchEvent;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 
+/**
+ * Command line client, playing one match (or watching one) through the
+ * AsyncBattleshipClient.
+ */
 public class BattleshipClient {
+    private final AsyncBattleshipClient client;
+    private final Scanner scanner = new Scanner(System.in); // Scanner for user input
+    private int matchId;
+    private int playerIndex;
+
+    BattleshipClient(AsyncBattleshipClient client) {
+        this.client = client;
+    }
 
     /**
-     * Connects to the Raft server and returns the leader server instance.
+     * Prints the events of a watched match.
      *
-     * @return the leader server if successfully connected, null otherwise.
+     * @param event the event to print.
      */
-    private static RaftServerInterface connect() {
-        RaftServerInterface server = null;
-        try {
-            // Get the registry from the server
-            Registry registry = LocateRegistry.getRegistry("localhost", 1099);
-
-            String[] serverNames = registry.list();
-            // Try to find the leader server
-            for (String serverName : serverNames) {
-                server = (RaftServerInterface) Naming.lookup("//localhost/" + serverName);
-                if (server.isLeader()) {
-                    return server; // Return the leader server
+    private static void printEvent(MatchEvent event) {
+        switch (event.getType()) {
+            case "resync":
+                GameGrid[] grids = event.getGrids();
+                for (int seat = 0; seat < grids.length; seat++) {
+                    System.out.println("Player " + seat + (event.getEliminated()[seat] ? " (out)" : "") + " grid:");
+                    grids[seat].displayGrid();
                 }
-            }
-        } catch (ConnectException ex) {
-            System.err.println("Sorry, servers are down!");
-        } catch (RemoteException | MalformedURLException | NotBoundException e) {
-            System.err.println("Error connecting to server: " + e.getMessage());
+                System.out.println((event.getSeat() >= 0) ? "Turn of player " + event.getSeat()
+                        : "Match over, fleets revealed");
+                break;
+            case "placed":
+                System.out.println("Player " + event.getSeat() + " placed " + event.getTarget() + " ships");
+                break;
+            case "attack":
+                System.out.println("Player " + event.getSeat() + " attacks player " + event.getTarget() + " at "
+                        + event.getPosX() + "," + event.getPosY() + ": " + event.getResult());
+                break;
+            case "left":
+                System.out.println("Player " + event.getSeat() + " left the match");
+                break;
+            case "turn":
+                System.out.println("Turn of player " + event.getSeat());
+                break;
+            case "finished":
+                System.out.println("Player " + event.getSeat() + " wins! Fleets were:");
+                for (GameGrid grid : event.getGrids()) {
+                    grid.displayGrid();
+                }
+                break;
+            default:
+                System.out.println(event);
         }
-        return server; // Return null if no leader server is found
     }
 
     /**
-     * Waits for the player's turn by checking the server's current turn.
+     * Watches a match as spectator until it is archived. Learners are asked
+     * first, so spectators do not load the leader.
      *
-     * @param server   the Raft server interface to communicate with.
-     * @param playerId the ID of the current player.
-     * @throws RemoteException      if a remote error occurs during communication
-     *                              with the server.
-     * @throws InterruptedException if the thread is interrupted while waiting.
+     * @param matchId the ID of the match to watch.
+     * @throws InterruptedException if the thread is interrupted while watching.
      */
-    private static void waitYourTurn(RaftServerInterface server, int playerId)
-            throws InterruptedException {
-        while (true) {
-            try {
-                if (server.getCurrentTurn() != playerId) {
-                    // Inform the player it's not their turn yet
-                    System.out.println("Other player's turn, please wait...");
-
-                    // Search if other player is exit
-                    if (server.isMatchFinished()) {
-                        handleDisconnection(server, playerId);
-                        System.exit(0);
-                    } else {
-                        // Sleep for 5 seconds before checking again
-                        Thread.sleep(5000);
-                    }
-                } else {
-                    break;
-                }
-            } catch (RemoteException e) {
-                server = connect();
-
-                if (server == null) {
-                    System.out.println("Servers are down...sorry!");
-                    break;
+    private void watch(int matchId) throws InterruptedException {
+        CountDownLatch closed = new CountDownLatch(1);
+        boolean[] started = new boolean[1];
+        client.watch(matchId, event -> {
+            if (event.getType().equals("closed")) {
+                closed.countDown();
+            } else {
+                if (!started[0]) {
+                    System.out.println("Watching match " + matchId);
+                    started[0] = true;
                 }
+                printEvent(event);
             }
+        });
+        closed.await();
+        System.out.println(started[0] ? "Match no longer available, goodbye!" : "Unknown match: " + matchId);
+    }
+
+    /**
+     * Waits for the player's turn, notified by the servers.
+     *
+     * @return true when it is the player's turn, false if the match is over
+     *         for the player (after leaving it).
+     * @throws ExecutionException   if the servers cannot be reached.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    private boolean waitYourTurn() throws ExecutionException, InterruptedException {
+        CompletableFuture<Boolean> turn = client.awaitTurn(matchId, playerIndex);
+        if (!turn.isDone()) {
+            // Inform the player it's not their turn yet
+            System.out.println("Other player's turn, please wait...");
+        }
+        if (turn.get()) {
+            return true;
+        }
+
+        if (!client.isMatchFinished(matchId).get() && client.isEliminated(matchId, playerIndex).get()) {
+            System.out.println("Your fleet has been sunk, you are out of the match!");
         }
+        handleDisconnection();
+        return false;
     }
 
     /**
      * Handles the disconnection of a player from the server.
      *
-     * @param leader      the leader server interface.
-     * @param playerIndex the index of the player to disconnect.
-     * @throws RemoteException if a remote error occurs during communication with
-     *                         the server.
+     * @throws ExecutionException   if the servers cannot be reached.
+     * @throws InterruptedException if the thread is interrupted while waiting.
      */
-    private static void handleDisconnection(RaftServerInterface leader, int playerIndex) throws RemoteException {
-        leader.clientDisconnection(playerIndex); // Notify server of disconnection
+    private void handleDisconnection() throws ExecutionException, InterruptedException {
+        client.leave(matchId, playerIndex).get(); // Notify server of disconnection
         System.out.println("Match terminated, goodbye!");
     }
 
     /**
-     * Attempts to find a new leader server if the current one becomes unavailable.
+     * Sends a move and waits for its response. Rate limits and leader changes
+     * are handled by the client library.
      *
-     * @param leaderServer the current leader server (used for finding a new
-     *                     leader).
+     * @param move the move command.
+     * @return the response of the server.
+     * @throws ExecutionException   if the servers cannot be reached.
+     * @throws InterruptedException if the thread is interrupted while waiting.
      */
-    private static RaftServerInterface searchNewLeader() {
-        System.out.println("**********************************************");
-        System.out.println("* Repeat the instruction, previous not taken! *");
-        System.out.println("**********************************************");
-        return connect(); // Reconnect to the server
-    }
-
-    public static void main(String[] args) {
-        RaftServerInterface leader = connect(); // Connect to the leader server
-        if (leader == null) {
-            System.out.println("Servers are down...sorry!");
-            return;
-        }
-
-        int playerIndex = -1;
+    private String sendMove(String move) throws ExecutionException, InterruptedException {
         try {
-            // Notify the server that the player is ready for the match
-            playerIndex = leader.initMatch();
-        } catch (RemoteException re) {
-            System.out.println("Impossible to start match...sorry!");
-            return;
+            return client.move(matchId, playerIndex, move).get();
+        } catch (ExecutionException e) {
+            if (!(e.getCause() instanceof AsyncBattleshipClient.UncertainMoveException)) {
+                throw e;
+            }
+            System.out.println("*************************************************************");
+            System.out.println("* Leader changed, check the grid before repeating the move! *");
+            System.out.println("*************************************************************");
+            return "Move not confirmed";
         }
+    }
 
-        System.out.println("Waiting for another player to join...");
+    /**
+     * Places the fleet, then plays the attacks until the match is over for the
+     * player.
+     *
+     * @param assignment the match and seat of the player.
+     * @throws ExecutionException   if the servers cannot be reached.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    private void play(MatchAssignment assignment) throws ExecutionException, InterruptedException {
+        matchId = assignment.getMatchId();
+        playerIndex = assignment.getSeat();
+        MatchConfig matchConfig = assignment.getConfig();
 
-        // Wait for the second player to join the game
         while (true) {
-            try {
-                // Wait until both players are ready
-                if (!leader.arePlayersReady()) {
-                    Thread.sleep(3000);
-                } else {
-                    break;
-                }
-            } catch (RemoteException re) {
-                // Reconnect if there's a RemoteException
-                leader = connect();
-            } catch (InterruptedException ie) {
-                System.err.println("Match terminated!");
+            // Wait for the player's turn
+            if (!waitYourTurn()) {
                 return;
             }
-        }
 
-        Scanner scanner = new Scanner(System.in); // Scanner for user input
-        while (true) {
-            try {
-                // Wait for the player's turn
-                waitYourTurn(leader, playerIndex);
-
-                if (leader.getNumShipsPlaced(playerIndex) < 5) {
-                    leader.getPlayerGrid(playerIndex).displayGrid();
-                    System.out.print("Enter position where want to place ship (place,x,y)or 'exit':");
-
-                    String placeInstruction = scanner.nextLine(); // Get user input
-                    String placeResponce;
-
-                    if (placeInstruction.equalsIgnoreCase("exit")) {
-                        // Handle exit condition by disconnecting the player
-                        handleDisconnection(leader, playerIndex);
-                        System.exit(0);
-                        break;
-                    } else if (!placeInstruction.matches("^(place),\\d+,\\d+$")) {
-                        // Validate the format of the ship placement command
-                        placeResponce = "Invalid move format! Use 'place,x,y'. Try again!";
-                    } else {
-                        // Process the move on the server
-                        // long startTime = System.nanoTime();
-
-                        placeResponce = leader.processMove(placeInstruction, playerIndex);
-
-                        // long endTime = System.nanoTime();
-                        // long latency = (endTime - startTime) / 1000000;
-                        // System.out.println("Round-trip latency: " + latency + " ms");
-                    }
+            int shipsPlaced = client.getNumShipsPlaced(matchId, playerIndex).get();
+            if (shipsPlaced >= matchConfig.getFleetSize()) {
+                break; // End the ship placement phase after placing the whole fleet
+            }
+            client.getPlayerGrid(matchId, playerIndex).get().displayGrid();
+            System.out.print("Enter position where want to place ship of length "
+                    + matchConfig.getShipLength(shipsPlaced) + " (place,x,y[,h|v])or 'exit':");
 
-                    System.out.println(placeResponce); // Display the response
-                } else {
-                    break; // End the ship placement phase after placing 5 ships
-                }
-            } catch (RemoteException e) {
-                // If the server goes down, try to find a new leader
-                leader = searchNewLeader();
+            String placeInstruction = scanner.nextLine(); // Get user input
+            String placeResponce;
 
-                if (leader == null) {
-                    System.out.println("Servers are down...sorry!");
-                    break;
-                }
-            } catch (InterruptedException ie) {
-                System.err.println("Match terminated!");
-                break;
+            if (placeInstruction.equalsIgnoreCase("exit")) {
+                // Handle exit condition by disconnecting the player
+                handleDisconnection();
+                return;
+            } else if (!placeInstruction.matches("^(place),\\d+,\\d+(,[hv])?$")) {
+                // Validate the format of the ship placement command
+                placeResponce = "Invalid move format! Use 'place,x,y' or 'place,x,y,v'. Try again!";
+            } else {
+                placeResponce = sendMove(placeInstruction); // Process the move on the server
             }
+
+            System.out.println(placeResponce); // Display the response
         }
 
         // The phase where players attack each other's ships
         while (true) {
-            try {
-                waitYourTurn(leader, playerIndex);
-
-                if (leader.isMatchFinished()) {
-                    handleDisconnection(leader, playerIndex);
-                    break;
-                } else {
-                    // Display the opponent's grid with fog
-                    System.err.println("Opponent grid:");
-                    leader.getFoggedOpponentGrid(playerIndex).displayGrid();
-                    System.out.print("Your turn! Enter move (attack,x,y) or 'exit': ");
+            if (!waitYourTurn()) {
+                return;
+            }
+
+            if (assignment.getPlayers() == 2) {
+                // Display the opponent's grid with fog
+                System.err.println("Opponent grid:");
+                client.getFoggedOpponentGrid(matchId, playerIndex).get().displayGrid();
+                System.out.print("Your turn! Enter move (attack,x,y) or 'exit': ");
+            } else {
+                // Display the fogged grid of every opponent still in the match
+                for (int seat = 0; seat < assignment.getPlayers(); seat++) {
+                    if (seat != playerIndex && !client.isEliminated(matchId, seat).get()) {
+                        System.err.println("Player " + seat + " grid:");
+                        client.getFoggedGrid(matchId, seat).get().displayGrid();
+                    }
                 }
+                System.out.print("Your turn! Enter move (attack,x,y,player) or 'exit': ");
+            }
 
-                String move = scanner.nextLine();
+            String move = scanner.nextLine();
+            String response;
 
-                String response;
+            if (move.equalsIgnoreCase("exit")) {
+                client.leave(matchId, playerIndex).get();
+                System.out.println("GoodBye!");
+                return;
+            } else if (!move.matches("^(attack),\\d+,\\d+(,\\d+)?$")) {
+                response = "Invalid move format! Use 'attack,x,y' or 'attack,x,y,player'. Try again!";
+            } else {
+                response = sendMove(move);
+            }
 
-                if (move.equalsIgnoreCase("exit")) {
-                    leader.clientDisconnection(playerIndex);
-                    System.out.println("GoodBye!");
-                    break;
-                } else if (!move.matches("^(attack),\\d+,\\d+$")) {
-                    response = "Invalid move format! Use 'attack,x,y'. Try again!";
-                } else {
-                    // long startTime = System.nanoTime();
+            System.out.println("Response: " + response); // Display the server's response
+        }
+    }
 
-                    response = leader.processMove(move, playerIndex);
+    /**
+     * Parses the optional match configuration arguments.
+     *
+     * @param args the command line: [boardSize shipLength,shipLength,... [players]].
+     * @return the requested configuration, or null for the default match.
+     */
+    private static MatchConfig parseConfig(String[] args) {
+        if (args.length < 2) {
+            return null;
+        }
+        String[] lengths = args[1].split(",");
+        int[] fleet = new int[lengths.length];
+        for (int i = 0; i < lengths.length; i++) {
+            fleet[i] = Integer.parseInt(lengths[i].trim());
+        }
+        int players = (args.length > 2) ? Integer.parseInt(args[2]) : 2;
+        return new MatchConfig(Integer.parseInt(args[0]), fleet, players);
+    }
 
-                    /*
-                     * long endTime = System.nanoTime();
-                     * long latency = (endTime - startTime) / 1000000;
-                     * System.out.println("Round-trip latency: " + latency + " ms");
-                     */
-                }
+    public static void main(String[] args) {
+        boolean watching = args.length == 2 && args[0].equals("--watch");
+        MatchConfig config = null;
+        if (!watching) {
+            try {
+                config = parseConfig(args);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Usage: java BattleshipClient [boardSize shipLength,shipLength,... [players]]");
+                System.out.println("       java BattleshipClient --watch <matchId>");
+                System.out.println(e.getMessage());
+                return;
+            }
+        }
 
-                System.out.println("Response: " + response); // Display the server's response
+        AsyncBattleshipClient client;
+        try {
+            client = new AsyncBattleshipClient();
+        } catch (RemoteException re) {
+            System.out.println("Impossible to start match...sorry!");
+            return;
+        }
 
-            } catch (RemoteException ex) {
-                leader = searchNewLeader();
-                if (leader == null) {
-                    System.out.println("Servers are down...sorry!");
-                    break;
-                }
-            } catch (InterruptedException ie) {
-                System.err.println("Match terminated!");
-                break;
+        BattleshipClient cli = new BattleshipClient(client);
+        try {
+            if (watching) {
+                cli.watch(Integer.parseInt(args[1]));
+            } else {
+                System.out.println("Waiting for other players to join...");
+                // Wait in the lobby until the server groups us with other players
+                cli.play(client.joinLobby(config).get());
             }
+        } catch (ExecutionException e) {
+            System.out.println("Servers are down...sorry!");
+        } catch (InterruptedException ie) {
+            System.err.println("Match terminated!");
+        } finally {
+            cli.scanner.close();
+            client.close();
         }
-        scanner.close();
+        System.exit(0);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,196 @@
+package battleship.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Heartbeat interval and election timeout derived from what the network actually
+ * does, instead of fixed values.
+ * <ul>
+ * <li>Followers keep a window of the gaps between the leader's messages and use a
+ * phi-accrual detector: the leader is suspected once the time since its last
+ * message is unlikely enough (phi above PHI_THRESHOLD) given the mean and
+ * deviation of those gaps. Jittery links and GC pauses widen the deviation and
+ * so the timeout, a steady LAN shrinks it.</li>
+ * <li>The leader keeps a smoothed RTT and RTT deviation per follower (as TCP does)
+ * and sends heartbeats a few RTTs apart.</li>
+ * </ul>
+ * Both values are kept within the configured bounds. The election timeout
+ * never drops below a few heartbeat intervals of the leader: the gaps only show
+ * its rhythm so far, so every heartbeat also carries the interval until the
+ * next one, and a leader slowing down announces it before doing so.
+ */
+class AdaptiveTimeouts {
+    static final long MIN_HEARTBEAT_INTERVAL = 50; // ms
+    static final long MAX_HEARTBEAT_INTERVAL = 150; // ms
+    static final int HEARTBEATS_PER_TIMEOUT = 3; // Heartbeat intervals of the leader an election timeout outlasts
+    static final long MAX_ELECTION_TIMEOUT = 2000; // ms
+    static final double PHI_THRESHOLD = 8; // Suspicion level triggering an election
+    private static final int WINDOW = 100; // Heartbeat gaps remembered
+    private static final double MIN_DEVIATION = 10; // Floor of the gap deviation (ms)
+    private static final int RTTS_PER_HEARTBEAT = 4; // Heartbeat interval in RTT timeouts
+    private static final double Z = deviationsFor(PHI_THRESHOLD); // Deviations above the mean where phi hits the threshold
+
+    private final double[] gaps = new double[WINDOW]; // Ring of the last gaps between leader messages (ms)
+    private int gapCount;
+    private int nextGap;
+    private double gapSum;
+    private double gapSquares;
+    private long lastArrival = -1; // Time of the last leader message (ms), -1 if none yet
+    private long leaderInterval = MAX_HEARTBEAT_INTERVAL; // Heartbeat interval announced by the leader (ms)
+    private final Map<Integer, double[]> rtts = new HashMap<>(); // Per follower: smoothed RTT, RTT deviation (ms)
+
+    /**
+     * Records a message from the current leader.
+     *
+     * @param now      The arrival time (ms).
+     * @param interval The heartbeat interval announced by the leader (ms), 0 if
+     *                 the message does not carry one.
+     */
+    synchronized void heartbeatReceived(long now, long interval) {
+        if (interval > 0) {
+            leaderInterval = Math.max(MIN_HEARTBEAT_INTERVAL, Math.min(MAX_HEARTBEAT_INTERVAL, interval));
+        }
+        if (lastArrival >= 0) {
+            double gap = now - lastArrival;
+            if (gapCount == WINDOW) {
+                gapSum -= gaps[nextGap];
+                gapSquares -= gaps[nextGap] * gaps[nextGap];
+            } else {
+                gapCount++;
+            }
+            gaps[nextGap] = gap;
+            gapSum += gap;
+            gapSquares += gap * gap;
+            nextGap = (nextGap + 1) % WINDOW;
+        }
+        lastArrival = now;
+    }
+
+    /**
+     * Forgets the gaps, e.g. when a new leader (with its own rhythm) takes over.
+     */
+    synchronized void resetArrivals() {
+        gapCount = 0;
+        nextGap = 0;
+        gapSum = 0;
+        gapSquares = 0;
+        lastArrival = -1;
+        leaderInterval = MAX_HEARTBEAT_INTERVAL;
+    }
+
+    /**
+     * @return The shortest election timeout for the current leader (ms): a few of
+     *         its heartbeat intervals.
+     */
+    synchronized long minElectionTimeout() {
+        return HEARTBEATS_PER_TIMEOUT * leaderInterval;
+    }
+
+    /**
+     * Computes how long a follower waits for the leader before starting an
+     * election: the time at which phi reaches PHI_THRESHOLD.
+     *
+     * @return The election timeout (ms), before randomization.
+     */
+    synchronized long electionTimeout() {
+        if (gapCount < 2) {
+            return MAX_ELECTION_TIMEOUT / 4; // No history yet, use a conservative value
+        }
+        long timeout = Math.round(meanGap() + Z * gapDeviation());
+        return Math.max(minElectionTimeout(), Math.min(MAX_ELECTION_TIMEOUT, timeout));
+    }
+
+    /**
+     * Computes the current suspicion level of the leader.
+     *
+     * @param now The current time (ms).
+     * @return phi, 0 if there is no history yet.
+     */
+    synchronized double phi(long now) {
+        if (gapCount < 2 || lastArrival < 0) {
+            return 0;
+        }
+        return phi((now - lastArrival - meanGap()) / gapDeviation());
+    }
+
+    /**
+     * Records the round trip of a call to a follower.
+     *
+     * @param follower The index of the follower.
+     * @param rtt      The measured round trip (ms).
+     */
+    synchronized void rttSample(int follower, double rtt) {
+        double[] estimate = rtts.get(follower);
+        if (estimate == null) {
+            rtts.put(follower, new double[] { rtt, rtt / 2 });
+            return;
+        }
+        estimate[1] = 0.75 * estimate[1] + 0.25 * Math.abs(estimate[0] - rtt);
+        estimate[0] = 0.875 * estimate[0] + 0.125 * rtt;
+    }
+
+    /**
+     * Computes the interval between heartbeats, from the slowest follower.
+     *
+     * @return The heartbeat interval (ms).
+     */
+    synchronized long heartbeatInterval() {
+        double slowest = 0;
+        for (double[] estimate : rtts.values()) {
+            slowest = Math.max(slowest, estimate[0] + 4 * estimate[1]);
+        }
+        long interval = Math.round(RTTS_PER_HEARTBEAT * slowest);
+        return Math.max(MIN_HEARTBEAT_INTERVAL, Math.min(MAX_HEARTBEAT_INTERVAL, interval));
+    }
+
+    /**
+     * Captures the computed values.
+     *
+     * @param now The current time (ms).
+     * @return The timing of this node.
+     */
+    synchronized TimingInfo info(long now) {
+        Map<Integer, Double> peerRtts = new HashMap<>();
+        rtts.forEach((follower, estimate) -> peerRtts.put(follower, estimate[0]));
+        return new TimingInfo(heartbeatInterval(), electionTimeout(), phi(now),
+                (gapCount > 0) ? meanGap() : 0, (gapCount > 0) ? gapDeviation() : 0, peerRtts);
+    }
+
+    private double meanGap() {
+        return gapSum / gapCount;
+    }
+
+    private double gapDeviation() {
+        double mean = meanGap();
+        double variance = Math.max(0, gapSquares / gapCount - mean * mean);
+        return Math.max(MIN_DEVIATION, Math.sqrt(variance));
+    }
+
+    /**
+     * Suspicion level of a gap y deviations above the mean, with the logistic
+     * approximation of the normal distribution used by phi-accrual detectors.
+     */
+    private static double phi(double y) {
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        return (y > 0) ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+    }
+
+    /**
+     * Finds how many deviations above the mean phi reaches a level (phi grows
+     * with y, so a bisection is enough).
+     */
+    private static double deviationsFor(double level) {
+        double low = 0;
+        double high = 40;
+        for (int i = 0; i < 60; i++) {
+            double mid = (low + high) / 2;
+            if (phi(mid) < level) {
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        return high;
+    }
+}
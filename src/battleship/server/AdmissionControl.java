@@ -0,0 +1,136 @@
+package battleship.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Admission control of the moves reaching the leader, checked before a move is
+ * handed to the commit pipeline so a rejected move never touches the log:
+ * <ul>
+ * <li>a token bucket per player (match and seat) and one per match cap the
+ * sustained rate and the burst of moves, so a flooding client only slows down
+ * itself and its own match;</li>
+ * <li>a global limit on the moves being replicated at once keeps the pipeline
+ * queues short, so well-behaved players keep their latency under load.</li>
+ * </ul>
+ * A rejected caller gets a hint of how long to wait before retrying. The limits
+ * can be changed with the battleship.rate.* system properties.
+ */
+class AdmissionControl {
+    static final double PLAYER_RATE = doubleProperty("battleship.rate.player", 5); // Moves per second
+    static final double PLAYER_BURST = doubleProperty("battleship.rate.player.burst", 10);
+    static final double MATCH_RATE = doubleProperty("battleship.rate.match", 20); // Moves per second, all seats
+    static final double MATCH_BURST = doubleProperty("battleship.rate.match.burst", 40);
+    static final int MAX_IN_FLIGHT = (int) doubleProperty("battleship.rate.inflight", 1024); // Moves being replicated
+    private static final long OVERLOAD_RETRY = 50; // Retry hint when the in-flight limit is hit (ms)
+
+    private final Map<Long, TokenBucket> players = new ConcurrentHashMap<>(); // By match and seat
+    private final Map<Integer, TokenBucket> matches = new ConcurrentHashMap<>();
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+
+    /**
+     * Tries to admit a move: takes an in-flight slot and a token from the
+     * buckets of the player and of the match. An admitted move must be released
+     * with {@link #release()} once the pipeline answered.
+     *
+     * @param matchId The match of the move.
+     * @param seat    The seat of the player.
+     * @return 0 if the move is admitted, otherwise the time to wait before
+     *         retrying (ms).
+     */
+    long admit(int matchId, int seat) {
+        if (!inFlight.tryAcquire()) {
+            return OVERLOAD_RETRY;
+        }
+
+        long now = System.nanoTime();
+        TokenBucket player = players.computeIfAbsent(playerKey(matchId, seat),
+                key -> new TokenBucket(PLAYER_RATE, PLAYER_BURST, now));
+        long wait = player.take(now);
+        if (wait == 0) {
+            TokenBucket match = matches.computeIfAbsent(matchId, key -> new TokenBucket(MATCH_RATE, MATCH_BURST, now));
+            wait = match.take(now);
+            if (wait > 0) {
+                player.refund(); // The move is not played, the player keeps its token
+            }
+        }
+        if (wait > 0) {
+            inFlight.release();
+        }
+        return wait;
+    }
+
+    /**
+     * Frees the in-flight slot of an admitted move.
+     */
+    void release() {
+        inFlight.release();
+    }
+
+    /**
+     * Drops the buckets of a match that was archived.
+     *
+     * @param matchId The match.
+     * @param players The number of seats of the match.
+     */
+    void forget(int matchId, int players) {
+        matches.remove(matchId);
+        for (int seat = 0; seat < players; seat++) {
+            this.players.remove(playerKey(matchId, seat));
+        }
+    }
+
+    int inFlight() {
+        return MAX_IN_FLIGHT - inFlight.availablePermits();
+    }
+
+    private static long playerKey(int matchId, int seat) {
+        return ((long) matchId << 16) | (seat & 0xFFFF);
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return (value != null) ? Double.parseDouble(value) : defaultValue;
+    }
+
+    /**
+     * Bucket refilled at a fixed rate up to its capacity, one token per move.
+     */
+    static class TokenBucket {
+        private final double rate; // Tokens per nanosecond
+        private final double capacity;
+        private double tokens;
+        private long refilled; // Time of the last refill (ns)
+
+        TokenBucket(double perSecond, double capacity, long now) {
+            this.rate = perSecond / 1e9;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.refilled = now;
+        }
+
+        /**
+         * Takes a token if one is available.
+         *
+         * @param now The current time (ns).
+         * @return 0 if a token was taken, otherwise the time until one is
+         *         available (ms, at least 1).
+         */
+        synchronized long take(long now) {
+            if (now > refilled) {
+                tokens = Math.min(capacity, tokens + (now - refilled) * rate);
+                refilled = now;
+            }
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - tokens) / rate / 1e6));
+        }
+
+        synchronized void refund() {
+            tokens = Math.min(capacity, tokens + 1);
+        }
+    }
+}
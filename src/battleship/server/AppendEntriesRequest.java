@@ -0,0 +1,152 @@
+package battleship.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+public class AppendEntriesRequest implements Serializable {
+    private int group; // Consensus group of the leader
+    private int term; // Leader's term
+    private int leaderId; // Index of the leader sending the entries
+    private int prevLogIndex; // Index of the entry immediately preceding the new ones
+    private int prevLogTerm; // Term of the prevLogIndex entry
+    private transient LogEntry[] entries; // Entries to store (empty for heartbeat), see writeObject
+    private int leaderCommit; // Leader's commit index
+    private transient boolean compress; // Send the entries as a packed, compressed block
+    private transient boolean packOnly; // Packed but never deflated, to measure the two gains apart
+    private long heartbeatInterval; // Time until the leader's next heartbeat (ms), 0 if not a heartbeat
+
+    public AppendEntriesRequest(int group, int term, int leaderId, int prevLogIndex, int prevLogTerm,
+            LogEntry[] entries, int leaderCommit, boolean compress) {
+        this.group = group;
+        this.term = term;
+        this.leaderId = leaderId;
+        this.prevLogIndex = prevLogIndex;
+        this.prevLogTerm = prevLogTerm;
+        this.entries = entries;
+        this.leaderCommit = leaderCommit;
+        this.compress = compress;
+    }
+
+    /**
+     * Keeps the packed layout of a compressed request but skips the deflate
+     * step (used by ReplicationBenchmark).
+     *
+     * @return This request.
+     */
+    AppendEntriesRequest packOnly() {
+        this.packOnly = true;
+        return this;
+    }
+
+    /**
+     * Announces the time until the next heartbeat, from which the follower
+     * bounds its election timeout.
+     *
+     * @param interval The heartbeat interval (ms).
+     * @return This request.
+     */
+    AppendEntriesRequest heartbeatEvery(long interval) {
+        this.heartbeatInterval = interval;
+        return this;
+    }
+
+    public int getGroup() {
+        return group;
+    }
+
+    public int getTerm() {
+        return term;
+    }
+
+    public int getLeaderId() {
+        return leaderId;
+    }
+
+    public int getPrevLogIndex() {
+        return prevLogIndex;
+    }
+
+    public int getPrevLogTerm() {
+        return prevLogTerm;
+    }
+
+    public LogEntry[] getEntries() {
+        return entries;
+    }
+
+    public int getLeaderCommit() {
+        return leaderCommit;
+    }
+
+    public long getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    /**
+     * Writes the entries either as objects or, when compression was negotiated
+     * with the follower, packed in the log's column layout as a single block.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeBoolean(compress);
+        if (!compress) {
+            out.writeObject(entries);
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(entries.length * 24 + 4);
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(entries.length);
+        for (LogEntry entry : entries) {
+            data.writeInt(entry.getTerm());
+            data.writeInt(entry.getMatchId());
+            data.writeShort(entry.getPlayerIndex());
+            data.writeByte(Log.opcodeOf(entry.getCommand()));
+            data.writeByte(entry.getTarget());
+            data.writeInt(entry.getPosX());
+            data.writeInt(entry.getPosY());
+        }
+        data.flush();
+        BlockCompression.writeBlock(out, bytes.toByteArray(), !packOnly);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (!in.readBoolean()) {
+            entries = (LogEntry[]) in.readObject();
+            return;
+        }
+
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(BlockCompression.readBlock(in)));
+        entries = new LogEntry[data.readInt()];
+        for (int i = 0; i < entries.length; i++) {
+            int entryTerm = data.readInt();
+            int matchId = data.readInt();
+            int playerIndex = data.readShort();
+            String command = Log.commandOf(data.readUnsignedByte());
+            int target = data.readByte();
+            int posX = data.readInt();
+            int posY = data.readInt();
+            entries[i] = new LogEntry(entryTerm, matchId, playerIndex, command, posX, posY, target);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AppendEntriesRequest{" +
+                "group=" + group +
+                ", term=" + term +
+                ", leaderId=" + leaderId +
+                ", prevLogIndex=" + prevLogIndex +
+                ", prevLogTerm=" + prevLogTerm +
+                ", entries=" + entries.length +
+                ", leaderCommit=" + leaderCommit +
+                '}';
+    }
+}
@@ -0,0 +1,36 @@
+package battleship.server;
+
+import java.io.Serializable;
+
+public class AppendEntriesResponse implements Serializable {
+    private int term; // Follower's term, lets a stale leader step down
+    private boolean success; // true if the follower's log matched and the entries were stored
+    private int lastLogIndex; // Matched index on success, otherwise the index the leader should retry after
+
+    public AppendEntriesResponse(int term, boolean success, int lastLogIndex) {
+        this.term = term;
+        this.success = success;
+        this.lastLogIndex = lastLogIndex;
+    }
+
+    public int getTerm() {
+        return term;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public int getLastLogIndex() {
+        return lastLogIndex;
+    }
+
+    @Override
+    public String toString() {
+        return "AppendEntriesResponse{" +
+                "term=" + term +
+                ", success=" + success +
+                ", lastLogIndex=" + lastLogIndex +
+                '}';
+    }
+}
@@ -0,0 +1,103 @@
+package battleship.server;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate block compression for the replication streams (AppendEntries batches
+ * and snapshots). Blocks smaller than THRESHOLD are not worth the CPU and are
+ * written as they are. A node can opt out with -Dbattleship.compression=false;
+ * leader and follower agree on the setting when replication to the follower
+ * starts.
+ */
+final class BlockCompression {
+    static final int THRESHOLD = 1024; // Smallest block compressed (bytes)
+    static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("battleship.compression"));
+
+    private BlockCompression() {
+    }
+
+    /**
+     * Writes a block, compressed if it is large enough.
+     *
+     * @param out     The stream to write to.
+     * @param data    The block.
+     * @param deflate false to store the block as it is, whatever its size.
+     * @throws IOException If the stream fails.
+     */
+    static void writeBlock(ObjectOutputStream out, byte[] data, boolean deflate) throws IOException {
+        byte[] compressed = (deflate && data.length >= THRESHOLD) ? deflate(data) : null;
+        if (compressed != null && compressed.length < data.length) {
+            out.writeInt(data.length);
+            out.writeInt(compressed.length);
+            out.write(compressed);
+        } else {
+            out.writeInt(data.length);
+            out.writeInt(-1); // Stored
+            out.write(data);
+        }
+    }
+
+    /**
+     * Reads a block written by writeBlock.
+     *
+     * @param in The stream to read from.
+     * @return The uncompressed block.
+     * @throws IOException If the stream fails or the block is corrupted.
+     */
+    static byte[] readBlock(ObjectInputStream in) throws IOException {
+        int length = in.readInt();
+        int compressedLength = in.readInt();
+        byte[] data = new byte[(compressedLength < 0) ? length : compressedLength];
+        in.readFully(data);
+        return (compressedLength < 0) ? data : inflate(data, length);
+    }
+
+    static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[Math.max(64, data.length / 2)];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            return Arrays.copyOf(buffer, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static byte[] inflate(byte[] data, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] result = new byte[length];
+            int read = 0;
+            while (read < length && !inflater.finished()) {
+                int n = inflater.inflate(result, read, length - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != length) {
+                throw new IOException("Truncated compressed block");
+            }
+            return result;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted compressed block", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package battleship.server;
+
+import battleship.MatchConfig;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Built-in opponent of the leader, sitting in the seats of a match that no
+ * player took (players who waited too long in the lobby get bots instead).
+ * <p>
+ * Its moves go through the commit pipeline like the players' ones, and each
+ * one is a pure function of the match state, the match id and the seat, so a
+ * new leader replaying the log plays exactly the move the old one would have
+ * played. Nothing about the bot lives outside the log.
+ * <p>
+ * An attack aims at the cell covered by the most ship placements still
+ * possible (probability density), placements through a hit ship weighing much
+ * more so that it is finished first. The placements are counted on bitboards,
+ * one shifted AND per ship cell. Every move is computed by a single thread
+ * reusing the same buffers, so many bot matches cost little CPU and no garbage
+ * besides their log entries. Boards too large for a density map fall back to
+ * shooting around the hits, and to spread pseudo-random shots otherwise.
+ */
+class BotOpponent {
+    static final long TICKET = Long.MIN_VALUE; // Lobby ticket of the bot seats, refused from the players
+    static final int SEAT_FLAG = 1; // Target of the join-match entry of a bot seat
+    static final long WAIT = Long.getLong("battleship.bot.wait", 10000); // Wait for players (ms), < 0 disables
+    static final long LOBBY_CHECK = 1000; // Period of the lobby check (ms)
+    private static final int DENSITY_MAX_SIZE = 64; // Largest board side with a density map
+    private static final int HIT_WEIGHT = 64; // Extra weight of a placement per hit it covers
+    private static final int PLACE_ATTEMPTS = 64; // Random placements tried before a scan
+    private static final int PROBE_ATTEMPTS = 1024; // Random shots tried before a scan
+    private static final long RETRY_DELAY = 100; // Wait before a move that was not committed is played again (ms)
+
+    private final CommitPipeline pipeline;
+    private final IntSupplier leaderTerm; // Current term, -1 when not leader
+    private final Set<Integer> pending = ConcurrentHashMap.newKeySet(); // Matches with a bot move in flight
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "bot");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Buffers of the bot thread, grown to the largest board and fleet seen
+    private long[] afloatHits = new long[1]; // Hits of the ships afloat
+    private long[] blocked = new long[1]; // Misses and sunk cells
+    private long[] free = new long[1]; // Cells a ship afloat may cover
+    private long[] starts = new long[1]; // First cells of the placements
+    private int[] density = new int[64];
+    private int[] lengths = new int[8];
+    private long[] hitCells = new long[16];
+
+    BotOpponent(CommitPipeline pipeline, IntSupplier leaderTerm) {
+        this.pipeline = pipeline;
+        this.leaderTerm = leaderTerm;
+    }
+
+    /**
+     * Lets the bot play if the turn is one of its seats. Called whenever the
+     * match changed or was restored, with the state lock held; the move is
+     * computed and proposed on the bot thread.
+     *
+     * @param match The match.
+     */
+    void play(Match match) {
+        if (match.isMatchFinished()) {
+            return;
+        }
+        int seat = match.getCurrentTurn();
+        if (match.isBot(seat) && pending.add(match.getMatchId())) {
+            executor.execute(() -> move(match, seat));
+        }
+    }
+
+    /**
+     * Records a move applied to a match, then lets the bot play.
+     *
+     * @param match The match.
+     * @param seat  The player of the move.
+     */
+    void applied(Match match, int seat) {
+        if (seat >= 0 && match.isBot(seat)) {
+            pending.remove(match.getMatchId());
+        }
+        play(match);
+    }
+
+    /**
+     * Forgets an archived match.
+     *
+     * @param matchId The match.
+     */
+    void forget(int matchId) {
+        pending.remove(matchId);
+    }
+
+    /**
+     * Forgets the moves in flight, e.g. when this node loses leadership. The
+     * next leader plays them again from the log.
+     */
+    void clear() {
+        pending.clear();
+    }
+
+    /**
+     * Bot thread: computes the move of a seat and proposes it. A move that is
+     * not committed while this node stays leader is computed again later.
+     */
+    private void move(Match match, int seat) {
+        int matchId = match.getMatchId();
+        int term = leaderTerm.getAsInt();
+        LogEntry entry = null;
+        if (term >= 0) {
+            synchronized (match) { // One consistent state
+                entry = nextMove(match, seat, term);
+            }
+        }
+        if (entry == null) {
+            pending.remove(matchId);
+            return;
+        }
+
+        pipeline.propose(entry).result().whenComplete((response, e) -> {
+            if (response == null && leaderTerm.getAsInt() == term) {
+                pending.remove(matchId);
+                executor.schedule(() -> play(match), RETRY_DELAY, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * Computes the next move of a bot seat from the match state alone.
+     *
+     * @param match The match, locked by the caller.
+     * @param seat  The bot seat.
+     * @param term  The term of the entry.
+     * @return The entry of the move, or null if the seat has nothing to play.
+     */
+    private LogEntry nextMove(Match match, int seat, int term) {
+        if (match.isMatchFinished() || match.getCurrentTurn() != seat || match.isEliminated(seat)) {
+            return null;
+        }
+        int matchId = match.getMatchId();
+        MatchConfig config = match.getConfig();
+        long seed = mix(((long) matchId << 32) ^ seat);
+
+        int placed = match.getShipsPlaced(seat);
+        if (placed < config.getFleetSize()) {
+            long cell = placement(match, seat, config.getShipLength(placed), seed + placed);
+            if (cell == -1) {
+                return new LogEntry(term, matchId, seat, "leave-match", 0, 0); // Fleet cannot fit anymore
+            }
+            boolean vertical = cell < 0;
+            cell &= Long.MAX_VALUE;
+            return new LogEntry(term, matchId, seat, vertical ? "place-vertical" : "place", (int) (cell >>> 32),
+                    (int) cell);
+        }
+
+        int target = target(match, seat);
+        if (target < 0) {
+            return null;
+        }
+        long cell = (config.getSize() <= DENSITY_MAX_SIZE) ? densityShot(match, target, seed)
+                : probeShot(match, target, seed);
+        if (cell < 0) {
+            return null;
+        }
+        return new LogEntry(term, matchId, seat, "attack", (int) (cell >>> 32), (int) cell, target);
+    }
+
+    /**
+     * Picks where to place a ship: a few pseudo-random positions, then the first
+     * one that fits scanning from a seeded cell.
+     *
+     * @param match  The match.
+     * @param seat   The bot seat.
+     * @param length The length of the ship.
+     * @param seed   The seed of the ship.
+     * @return The packed first cell, with the sign bit set for a vertical ship,
+     *         or -1 if the ship fits nowhere.
+     */
+    private static long placement(Match match, int seat, int length, long seed) {
+        int size = match.getConfig().getSize();
+        for (int attempt = 0; attempt < PLACE_ATTEMPTS; attempt++) {
+            long random = mix(seed + attempt);
+            int x = Math.floorMod(random, size);
+            int y = Math.floorMod(random >>> 24, size);
+            boolean vertical = random < 0;
+            if (match.canPlaceShip(seat, x, y, length, vertical)) {
+                return packed(x, y) | (vertical ? Long.MIN_VALUE : 0);
+            }
+        }
+
+        long cells = (long) size * size;
+        long start = Math.floorMod(mix(seed), cells);
+        for (long i = 0; i < cells; i++) {
+            long cell = (start + i) % cells;
+            int x = (int) (cell / size);
+            int y = (int) (cell % size);
+            if (match.canPlaceShip(seat, x, y, length, false)) {
+                return packed(x, y);
+            }
+            if (match.canPlaceShip(seat, x, y, length, true)) {
+                return packed(x, y) | Long.MIN_VALUE;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Picks the opponent to attack: the one with the fewest ships afloat, the
+     * next in turn order on ties.
+     *
+     * @return The target seat, or -1 if no opponent is left.
+     */
+    private static int target(Match match, int seat) {
+        int players = match.getPlayers();
+        int target = -1;
+        int fewest = Integer.MAX_VALUE;
+        for (int i = 1; i < players; i++) {
+            int other = (seat + i) % players;
+            if (!match.isEliminated(other) && match.getShipsAfloat(other) < fewest) {
+                fewest = match.getShipsAfloat(other);
+                target = other;
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Picks the cell covered by the most placements of the ships afloat, among
+     * the cells not shot yet. Ties go to the first cell after a seeded one.
+     *
+     * @param match  The match.
+     * @param target The attacked seat.
+     * @param seed   The seed of the bot.
+     * @return The packed cell, or -1 if every cell was shot.
+     */
+    private long densityShot(Match match, int target, long seed) {
+        int size = match.getConfig().getSize();
+        int cells = size * size;
+        int words = (cells + 63) >>> 6;
+        ensureCapacity(cells, words);
+
+        Arrays.fill(afloatHits, 0, words, 0);
+        Arrays.fill(blocked, 0, words, 0);
+        int shots = match.markShots(target, afloatHits, blocked);
+        for (int w = 0; w < words; w++) {
+            free[w] = ~blocked[w];
+        }
+        if ((cells & 63) != 0) {
+            free[words - 1] &= (1L << (cells & 63)) - 1; // No cell past the board
+        }
+
+        Arrays.fill(density, 0, cells, 0);
+        int ships = afloatLengths(match, target);
+        Arrays.sort(lengths, 0, ships);
+        for (int ship = 0, same; ship < ships; ship += same) {
+            int length = lengths[ship];
+            for (same = 1; ship + same < ships && lengths[ship + same] == length; same++) {
+                // Ships of the same length share their placements
+            }
+            addPlacements(length, same, 1, size, words); // Along y
+            if (length > 1) {
+                addPlacements(length, same, size, size, words); // Along x
+            }
+        }
+
+        int start = Math.floorMod(mix(seed + shots), cells);
+        int best = -1;
+        for (int i = 0, cell = start; i < cells; i++, cell = (cell + 1 == cells) ? 0 : cell + 1) {
+            if ((best < 0 || density[cell] > density[best]) && !isSet(afloatHits, cell) && !isSet(blocked, cell)) {
+                best = cell;
+            }
+        }
+        return (best < 0) ? -1 : packed(best / size, best % size);
+    }
+
+    /**
+     * Adds the placements of a ship in one direction to the density. Bit i of
+     * starts ends up set when cells i, i + step, ... of the ship are all free.
+     *
+     * @param length The length of the ship.
+     * @param ships  The number of ships afloat of that length.
+     * @param step   The bit distance of two cells of the ship: 1 along y, size
+     *               along x.
+     * @param size   The board side.
+     * @param words  The words of the bitboards.
+     */
+    private void addPlacements(int length, int ships, int step, int size, int words) {
+        System.arraycopy(free, 0, starts, 0, words);
+        for (int k = 1; k < length; k++) {
+            andShifted(starts, free, k * step, words);
+        }
+        for (int w = 0; w < words; w++) {
+            long bits = starts[w];
+            while (bits != 0) {
+                int start = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (step == 1 && start % size + length > size) {
+                    continue; // Would wrap onto the next row
+                }
+                int weight = ships;
+                for (int k = 0, cell = start; k < length; k++, cell += step) {
+                    if (isSet(afloatHits, cell)) {
+                        weight += ships * HIT_WEIGHT;
+                    }
+                }
+                for (int k = 0, cell = start; k < length; k++, cell += step) {
+                    density[cell] += weight;
+                }
+            }
+        }
+    }
+
+    /**
+     * Shoots boards too large for a density map: next to the hits of a ship
+     * afloat (along a line of hits first), otherwise pseudo-random cells on a
+     * checkerboard when no ship afloat is a single cell.
+     *
+     * @param match  The match.
+     * @param target The attacked seat.
+     * @param seed   The seed of the bot.
+     * @return The packed cell, or -1 if every cell was shot.
+     */
+    private long probeShot(Match match, int target, long seed) {
+        int size = match.getConfig().getSize();
+        int hits = match.afloatHits(target, hitCells);
+        if (hits > hitCells.length) {
+            hitCells = new long[Integer.highestOneBit(hits) << 1];
+            hits = match.afloatHits(target, hitCells);
+        }
+        Arrays.sort(hitCells, 0, hits); // Order depends on the board representation
+
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < hits; i++) {
+                int x = (int) (hitCells[i] >>> 32);
+                int y = (int) hitCells[i];
+                for (int direction = 0; direction < 4; direction++) {
+                    int dx = (direction == 0) ? 1 : (direction == 1) ? -1 : 0;
+                    int dy = (direction == 2) ? 1 : (direction == 3) ? -1 : 0;
+                    if (pass == 0 && !isAfloatHit(x - dx, y - dy, size, hits)) {
+                        continue; // Lines of hits first
+                    }
+                    int nx = x + dx;
+                    int ny = y + dy;
+                    while (isAfloatHit(nx, ny, size, hits)) {
+                        nx += dx;
+                        ny += dy;
+                    }
+                    if (nx >= 0 && ny >= 0 && nx < size && ny < size && !match.isShot(target, nx, ny)) {
+                        return packed(nx, ny);
+                    }
+                }
+            }
+        }
+
+        int ships = afloatLengths(match, target);
+        int shortest = Integer.MAX_VALUE;
+        for (int ship = 0; ship < ships; ship++) {
+            shortest = Math.min(shortest, lengths[ship]);
+        }
+        long shotSeed = mix(seed + match.getShots(target)); // A new sequence for every shot
+        for (int attempt = 0; attempt < PROBE_ATTEMPTS; attempt++) {
+            long random = mix(shotSeed + attempt);
+            int x = Math.floorMod(random, size);
+            int y = Math.floorMod(random >>> 24, size);
+            if (shortest > 1 && ((x + y) & 1) == 1) {
+                y = (y + 1 < size) ? y + 1 : y - 1; // Every ship covers a cell of the checkerboard
+            }
+            if (!match.isShot(target, x, y)) {
+                return packed(x, y);
+            }
+        }
+
+        long cells = (long) size * size;
+        long start = Math.floorMod(shotSeed, cells);
+        for (long i = 0; i < cells; i++) {
+            long cell = (start + i) % cells;
+            if (!match.isShot(target, (int) (cell / size), (int) (cell % size))) {
+                return packed((int) (cell / size), (int) (cell % size));
+            }
+        }
+        return -1;
+    }
+
+    private boolean isAfloatHit(int x, int y, int size, int hits) {
+        return x >= 0 && y >= 0 && x < size && y < size && Arrays.binarySearch(hitCells, 0, hits, packed(x, y)) >= 0;
+    }
+
+    /**
+     * Reads the lengths of the ships afloat of a seat into the lengths buffer.
+     *
+     * @return The number of ships afloat.
+     */
+    private int afloatLengths(Match match, int seat) {
+        int ships = match.afloatLengths(seat, lengths);
+        if (ships > lengths.length) {
+            lengths = new int[ships];
+            match.afloatLengths(seat, lengths);
+        }
+        return ships;
+    }
+
+    private void ensureCapacity(int cells, int words) {
+        if (density.length < cells) {
+            density = new int[cells];
+        }
+        if (free.length < words) {
+            afloatHits = new long[words];
+            blocked = new long[words];
+            free = new long[words];
+            starts = new long[words];
+        }
+    }
+
+    /**
+     * ANDs a bitboard with another one shifted down: bit i of target stays set
+     * only if bit i + shift of source is set.
+     */
+    private static void andShifted(long[] target, long[] source, int shift, int words) {
+        int wordShift = shift >>> 6;
+        int bitShift = shift & 63;
+        for (int w = 0; w < words; w++) {
+            int from = w + wordShift;
+            long shifted = (from < words) ? source[from] >>> bitShift : 0;
+            if (bitShift != 0 && from + 1 < words) {
+                shifted |= source[from + 1] << (64 - bitShift);
+            }
+            target[w] &= shifted;
+        }
+    }
+
+    private static boolean isSet(long[] board, int bit) {
+        return (board[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    private static long packed(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Scrambles a seed (SplitMix64 finalizer), so every choice of the bot
+     * follows from the match alone. Also spreads the keys of the ShardMap ring.
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
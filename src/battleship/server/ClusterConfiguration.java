@@ -0,0 +1,95 @@
+package battleship.server;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Set of voting servers of the cluster, identified by their server index, and
+ * of the learners: servers that receive and apply the log but neither vote nor
+ * count toward the quorum. Instances are immutable: membership changes produce
+ * a new configuration.
+ */
+public class ClusterConfiguration implements Serializable {
+    private final int[] members; // Sorted server indexes
+    private final int[] learners; // Sorted server indexes, never also members
+
+    public ClusterConfiguration(int[] members) {
+        this(members, new int[0]);
+    }
+
+    public ClusterConfiguration(int[] members, int[] learners) {
+        this.members = Arrays.stream(members).distinct().sorted().toArray();
+        this.learners = Arrays.stream(learners).distinct().filter(l -> !contains(l)).sorted().toArray();
+    }
+
+    public boolean contains(int serverIndex) {
+        return Arrays.binarySearch(members, serverIndex) >= 0;
+    }
+
+    public int[] getMembers() {
+        return members.clone();
+    }
+
+    public boolean isLearner(int serverIndex) {
+        return Arrays.binarySearch(learners, serverIndex) >= 0;
+    }
+
+    public int[] getLearners() {
+        return learners.clone();
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    /**
+     * Returns the number of servers forming a majority of this configuration.
+     * 
+     * @return The quorum size.
+     */
+    public int quorum() {
+        return members.length / 2 + 1;
+    }
+
+    /**
+     * Returns a configuration that also contains the given server, as voter. A
+     * learner is promoted.
+     * 
+     * @param serverIndex The server to add.
+     * @return The new configuration.
+     */
+    public ClusterConfiguration with(int serverIndex) {
+        int[] added = Arrays.copyOf(members, members.length + 1);
+        added[members.length] = serverIndex;
+        return new ClusterConfiguration(added, learners);
+    }
+
+    /**
+     * Returns a configuration that also contains the given server, as learner.
+     * 
+     * @param serverIndex The server to add.
+     * @return The new configuration.
+     */
+    public ClusterConfiguration withLearner(int serverIndex) {
+        int[] added = Arrays.copyOf(learners, learners.length + 1);
+        added[learners.length] = serverIndex;
+        return new ClusterConfiguration(members, added);
+    }
+
+    /**
+     * Returns a configuration without the given server, voter or learner.
+     * 
+     * @param serverIndex The server to remove.
+     * @return The new configuration.
+     */
+    public ClusterConfiguration without(int serverIndex) {
+        return new ClusterConfiguration(Arrays.stream(members).filter(m -> m != serverIndex).toArray(),
+                Arrays.stream(learners).filter(l -> l != serverIndex).toArray());
+    }
+
+    @Override
+    public String toString() {
+        return "ClusterConfiguration" + Arrays.toString(members)
+                + ((learners.length > 0) ? " learners" + Arrays.toString(learners) : "");
+    }
+}
@@ -0,0 +1,267 @@
+package battleship.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Staged pipeline for the moves of the leader. A move goes through four stages,
+ * each one a single thread draining a bounded queue in batches:
+ * <ol>
+ * <li>append: stores a batch of moves in the log under one lock and wakes up
+ * the follower senders once (which replicate in batches of their own);</li>
+ * <li>commit: waits until the commit index, advanced by the follower answers,
+ * covers the oldest pending move;</li>
+ * <li>apply: applies every committed move to its match, in log order;</li>
+ * <li>respond: hands the results back to the waiting RMI threads.</li>
+ * </ol>
+ * While one batch waits for the followers the next one is already appended, so
+ * concurrent moves share lock acquisitions, replication round trips and wake-ups.
+ * Full queues push back on the callers, who give up after their timeout.
+ * A proposal may carry several entries (the creation of a match), they are
+ * appended contiguously and applied together once the last one is committed.
+ */
+class CommitPipeline {
+    static final int QUEUE_SIZE = 4096; // Moves waiting between two stages
+    static final int BATCH = 256; // Max moves handled by a stage at once
+
+    /**
+     * The node the pipeline works for.
+     */
+    interface StateMachine {
+        /**
+         * Appends a batch of proposals to the leader log and signals the followers.
+         * Each proposal is checked on its own: a rejected one keeps index -1 and
+         * the others are still appended. The entries of a new match get their
+         * match id here.
+         *
+         * @param batch The proposals, in order.
+         */
+        void append(List<Proposal> batch);
+
+        /**
+         * Waits (a bounded time) until an entry is committed.
+         *
+         * @param entryIndex The index of the entry.
+         * @return The commit index, or -1 if this node is no longer leader.
+         */
+        int awaitCommit(int entryIndex);
+
+        /**
+         * Applies committed entries to the game state.
+         *
+         * @param batch The proposals, in log order, all committed.
+         */
+        void apply(List<Proposal> batch);
+    }
+
+    /**
+     * A move travelling through the pipeline.
+     */
+    static class Proposal {
+        final LogEntry entry; // The first entry
+        final LogEntry[] entries;
+        int index = -1; // Log index of the first entry, set by the append stage, -1 if rejected
+        String response; // Set by the apply stage, null if the move was not applied
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+
+        Proposal(LogEntry... entries) {
+            this.entry = entries[0];
+            this.entries = entries;
+        }
+
+        /**
+         * @return The log index of the last entry.
+         */
+        int lastIndex() {
+            return index + entries.length - 1;
+        }
+
+        /**
+         * @return The future response, completed with null if the entry was not
+         *         committed.
+         */
+        CompletableFuture<String> result() {
+            return result;
+        }
+    }
+
+    private final StateMachine machine;
+    private final long timeout; // Max wait of a caller (ms)
+    private final BlockingQueue<Proposal> appendQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final BlockingQueue<Proposal> commitQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final BlockingQueue<Proposal> respondQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+    CommitPipeline(StateMachine machine, long timeout) {
+        this.machine = machine;
+        this.timeout = timeout;
+        start("append", this::appendStage);
+        start("apply", this::applyStage);
+        start("respond", this::respondStage);
+    }
+
+    private static void start(String name, Runnable stage) {
+        Thread thread = new Thread(stage, "pipeline-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Submits an entry and waits for the result of applying it.
+     *
+     * @param entry The entry to replicate and apply.
+     * @return The response of the state machine, or null if the entry was not
+     *         committed in time (or this node lost leadership).
+     */
+    String submit(LogEntry entry) {
+        return await(propose(entry), System.currentTimeMillis() + timeout);
+    }
+
+    /**
+     * Submits entries without waiting for them, so that a caller can have several
+     * proposals in flight. Proposals of the same thread keep their order in the
+     * log, and the entries of one proposal are never interleaved with others.
+     *
+     * @param entries The entries to replicate and apply together.
+     * @return The proposal, whose result is completed with null if the entries
+     *         were not committed (or could not even be queued in time).
+     */
+    Proposal propose(LogEntry... entries) {
+        Proposal proposal = new Proposal(entries);
+        try {
+            if (!appendQueue.offer(proposal, timeout, TimeUnit.MILLISECONDS)) {
+                proposal.result.complete(null); // Pipeline saturated
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            proposal.result.complete(null);
+        }
+        return proposal;
+    }
+
+    /**
+     * Waits for the response of a proposed entry.
+     *
+     * @param proposal The proposal returned by propose.
+     * @param deadline The time (ms) after which the caller gives up.
+     * @return The response, or null if the entry was not committed by the
+     *         deadline.
+     */
+    String await(Proposal proposal, long deadline) {
+        try {
+            return proposal.result.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The max wait (ms) of a caller.
+     */
+    long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Append stage: one log append and one follower wake-up per batch.
+     */
+    private void appendStage() {
+        List<Proposal> batch = new ArrayList<>(BATCH);
+        while (true) {
+            try {
+                batch.add(appendQueue.take());
+                appendQueue.drainTo(batch, BATCH - 1);
+
+                machine.append(batch);
+                for (Proposal proposal : batch) {
+                    if (proposal.index < 0) {
+                        proposal.result.complete(null);
+                    } else {
+                        commitQueue.put(proposal); // Blocks while the commit stage is behind
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                fail(batch, e);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Commit and apply stages: waits for the oldest pending proposal, then applies
+     * every pending proposal the commit index already covers entirely.
+     */
+    private void applyStage() {
+        ArrayDeque<Proposal> pending = new ArrayDeque<>();
+        List<Proposal> batch = new ArrayList<>(BATCH);
+        while (true) {
+            try {
+                if (pending.isEmpty()) {
+                    pending.add(commitQueue.take());
+                }
+                commitQueue.drainTo(pending, Math.max(0, BATCH - pending.size()));
+
+                int committed = machine.awaitCommit(pending.peekFirst().lastIndex());
+                if (committed < 0) {
+                    // Leadership lost: the new leader decides what these entries become
+                    pending.forEach(proposal -> proposal.result.complete(null));
+                    pending.clear();
+                    continue;
+                }
+
+                while (!pending.isEmpty() && pending.peekFirst().lastIndex() <= committed && batch.size() < BATCH) {
+                    batch.add(pending.pollFirst());
+                }
+                if (!batch.isEmpty()) {
+                    machine.apply(batch);
+                    for (Proposal proposal : batch) {
+                        respondQueue.put(proposal);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                fail(batch, e);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Respond stage: completes the futures the RMI threads are waiting on.
+     */
+    private void respondStage() {
+        List<Proposal> batch = new ArrayList<>(BATCH);
+        while (true) {
+            try {
+                batch.add(respondQueue.take());
+                respondQueue.drainTo(batch, BATCH - 1);
+                for (Proposal proposal : batch) {
+                    proposal.result.complete(proposal.response);
+                    System.out.println(proposal.entry);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            batch.clear();
+        }
+    }
+
+    private static void fail(List<Proposal> batch, RuntimeException e) {
+        System.err.println("Commit pipeline error: " + e);
+        for (Proposal proposal : batch) {
+            proposal.result.complete(null);
+        }
+    }
+}
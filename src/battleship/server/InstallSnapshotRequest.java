@@ -0,0 +1,93 @@
+package battleship.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+public class InstallSnapshotRequest implements Serializable {
+    private int group; // Consensus group of the leader
+    private int term; // Leader's term
+    private int leaderId; // Index of the leader sending the snapshot
+    private transient Snapshot snapshot; // Game state replacing the follower's log prefix, see writeObject
+    private transient boolean compress; // Send the snapshot as a compressed block
+    private transient boolean packOnly; // Serialized as a block but never deflated, to measure the two gains apart
+
+    public InstallSnapshotRequest(int group, int term, int leaderId, Snapshot snapshot, boolean compress) {
+        this.group = group;
+        this.term = term;
+        this.leaderId = leaderId;
+        this.snapshot = snapshot;
+        this.compress = compress;
+    }
+
+    /**
+     * Keeps the single block of a compressed request but skips the deflate
+     * step (used by ReplicationBenchmark).
+     *
+     * @return This request.
+     */
+    InstallSnapshotRequest packOnly() {
+        this.packOnly = true;
+        return this;
+    }
+
+    public int getGroup() {
+        return group;
+    }
+
+    public int getTerm() {
+        return term;
+    }
+
+    public int getLeaderId() {
+        return leaderId;
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Writes the snapshot either as an object or, when compression was negotiated
+     * with the follower, serialized into a single compressed block.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeBoolean(compress);
+        if (!compress) {
+            out.writeObject(snapshot);
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream block = new ObjectOutputStream(bytes)) {
+            block.writeObject(snapshot);
+        }
+        BlockCompression.writeBlock(out, bytes.toByteArray(), !packOnly);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (!in.readBoolean()) {
+            snapshot = (Snapshot) in.readObject();
+            return;
+        }
+
+        try (ObjectInputStream block = new ObjectInputStream(new ByteArrayInputStream(BlockCompression.readBlock(in)))) {
+            snapshot = (Snapshot) block.readObject();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "InstallSnapshotRequest{" +
+                "group=" + group +
+                ", term=" + term +
+                ", leaderId=" + leaderId +
+                ", lastIncludedIndex=" + snapshot.getLastIncludedIndex() +
+                '}';
+    }
+}
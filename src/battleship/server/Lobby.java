@@ -0,0 +1,193 @@
+package battleship.server;
+
+import battleship.MatchConfig;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free matchmaking queue. Players wait in a bucket (e.g. a skill or latency
+ * tier) and are grouped with players of the same bucket asking for the same
+ * match configuration, which also fixes the number of players. A joiner that completes
+ * a group reserves it with a single CAS on the bucket counter, so concurrent joins
+ * never block each other. Players left waiting too long can be completed with
+ * bots. A bucket is dropped once empty, since clients choose the buckets.
+ */
+class Lobby {
+    /**
+     * A player waiting to be paired.
+     */
+    static class Ticket {
+        final long id;
+        final int bucket;
+        final MatchConfig config;
+        final boolean bot; // Seat of the server bot, never queued
+        final long joined = System.currentTimeMillis(); // Start of the wait (ms)
+        volatile MatchListener listener;
+
+        Ticket(long id, int bucket, MatchConfig config, MatchListener listener) {
+            this(id, bucket, config, listener, false);
+        }
+
+        private Ticket(long id, int bucket, MatchConfig config, MatchListener listener, boolean bot) {
+            this.id = id;
+            this.bucket = bucket;
+            this.config = config;
+            this.listener = listener;
+            this.bot = bot;
+        }
+
+        /**
+         * @param config The configuration of the match.
+         * @return A ticket for a seat of the server bot.
+         */
+        static Ticket bot(MatchConfig config) {
+            return new Ticket(BotOpponent.TICKET, -1, config, null, true);
+        }
+    }
+
+    private record BucketKey(int bucket, MatchConfig config) {
+    }
+
+    private static class Bucket {
+        final ConcurrentLinkedQueue<Ticket> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger waiting = new AtomicInteger(); // Tickets in the queue not yet reserved, -1 once dropped
+
+        /**
+         * Counts a ticket just queued, unless the bucket was dropped meanwhile.
+         *
+         * @return true if counted, false if the ticket must go to a new bucket.
+         */
+        boolean enter() {
+            int count = waiting.get();
+            while (count >= 0) {
+                if (waiting.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+                count = waiting.get();
+            }
+            return false;
+        }
+    }
+
+    private final ConcurrentHashMap<BucketKey, Bucket> buckets = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Ticket> tickets = new ConcurrentHashMap<>(); // Waiting or pairing tickets
+
+    /**
+     * Adds a player to the lobby. A ticket already waiting (or being paired) only
+     * gets its listener refreshed, so clients can safely retry.
+     * 
+     * @param ticket The ticket of the player.
+     * @return The tickets of a full match if this join completed one, null otherwise.
+     */
+    Ticket[] join(Ticket ticket) {
+        Ticket waiting = tickets.putIfAbsent(ticket.id, ticket);
+        if (waiting != null) {
+            waiting.listener = ticket.listener;
+            return null;
+        }
+
+        BucketKey key = new BucketKey(ticket.bucket, ticket.config);
+        Bucket bucket = buckets.computeIfAbsent(key, b -> new Bucket());
+        bucket.queue.offer(ticket);
+        while (!bucket.enter()) {
+            bucket.queue.remove(ticket); // Dropped, so nobody polls it any more
+            buckets.remove(key, bucket);
+            bucket = buckets.computeIfAbsent(key, b -> new Bucket());
+            bucket.queue.offer(ticket);
+        }
+
+        // Reserve a whole group: the reserved tickets are already in the queue
+        int matchSize = ticket.config.getPlayers();
+        int available = bucket.waiting.get();
+        while (available >= matchSize) {
+            if (bucket.waiting.compareAndSet(available, available - matchSize)) {
+                Ticket[] group = new Ticket[matchSize];
+                for (int i = 0; i < matchSize; i++) {
+                    group[i] = bucket.queue.poll();
+                }
+                dropIfEmpty(key, bucket);
+                return group;
+            }
+            available = bucket.waiting.get();
+        }
+        return null;
+    }
+
+    /**
+     * Completes with bots the groups of the buckets whose oldest player waited
+     * too long. The waiting tickets are reserved with the same CAS as in join,
+     * so a concurrent join either completes a group of players first or waits
+     * for the next one.
+     * 
+     * @param joinedBefore Buckets with a ticket that joined before this time (ms)
+     *                     are completed.
+     * @return The groups, with the players first and bots in the other seats.
+     */
+    List<Ticket[]> fillWithBots(long joinedBefore) {
+        List<Ticket[]> groups = new ArrayList<>();
+        for (Map.Entry<BucketKey, Bucket> entry : buckets.entrySet()) {
+            Bucket bucket = entry.getValue();
+            Ticket oldest = bucket.queue.peek();
+            if (oldest == null || oldest.joined > joinedBefore) {
+                continue;
+            }
+
+            MatchConfig config = entry.getKey().config();
+            int available = bucket.waiting.get();
+            while (available > 0) {
+                int players = Math.min(available, config.getPlayers() - 1);
+                if (bucket.waiting.compareAndSet(available, available - players)) {
+                    Ticket[] group = new Ticket[config.getPlayers()];
+                    for (int i = 0; i < group.length; i++) {
+                        group[i] = (i < players) ? bucket.queue.poll() : Ticket.bot(config);
+                    }
+                    groups.add(group);
+                    dropIfEmpty(entry.getKey(), bucket);
+                    break;
+                }
+                available = bucket.waiting.get();
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Drops a bucket left without tickets. A ticket queued meanwhile either keeps
+     * the bucket (the queue is not empty) or sees it dropped and moves to a new
+     * one.
+     *
+     * @param key    The key of the bucket.
+     * @param bucket The bucket.
+     */
+    private void dropIfEmpty(BucketKey key, Bucket bucket) {
+        if (bucket.queue.isEmpty() && bucket.waiting.compareAndSet(0, -1)) {
+            buckets.remove(key, bucket);
+        }
+    }
+
+    /**
+     * Forgets the tickets of a group once its match assignment is recorded (or
+     * could not be), so the same ids can join again later.
+     * 
+     * @param group The tickets of the group.
+     */
+    void release(Ticket[] group) {
+        for (Ticket ticket : group) {
+            if (!ticket.bot) {
+                tickets.remove(ticket.id);
+            }
+        }
+    }
+
+    /**
+     * Drops every waiting ticket, e.g. when this node loses leadership.
+     */
+    void clear() {
+        buckets.clear();
+        tickets.clear();
+    }
+}
@@ -1,32 +1,457 @@
 package battleship.server;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
+/**
+ * Replicated log stored as primitive struct-of-arrays segments.
+ * Every entry takes two longs and an int: a header (term, opcode, target,
+ * player), the packed coordinates and the match id. Entries are materialized as {@link LogEntry} only when they
+ * leave the node; replay reads the columns directly through the *At accessors.
+ * <p>
+ * Entries of a match become garbage once its archive-match entry is committed.
+ * The log counts the live entries of each segment and drops a full segment as
+ * soon as none is left, so memory follows the running matches rather than the
+ * history. Dropped segments leave a gap in the index space: followers that
+ * still need entries from a gap get a snapshot instead.
+ */
 public class Log {
-    private final List<LogEntry> entries = new ArrayList<>();
+    private static final int SEGMENT_SHIFT = 12;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT; // 4096 entries per segment
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    // Opcodes stored in the header, indexed by their numeric value
+    private static final String[] COMMANDS = { "place", "attack", "add-server", "remove-server", "create-match",
+            "join-match", "fleet", "place-vertical", "leave-match", "archive-match", "add-learner" };
+
+    private long[][] headers = new long[16][]; // term (32) | opcode (8) | target + 1 (8) | player (16)
+    private long[][] positions = new long[16][]; // posX (32) | posY (32)
+    private int[][] matchIds = new int[16][];
+    private int size; // Index of the next entry to append
+    private int firstIndex; // First index still stored, entries before it live in a snapshot
+    private int baseTerm; // Term of the entry at firstIndex - 1
+    private int[] liveCounts = new int[16]; // Entries of each segment not yet reclaimable
+    private long[] droppedTerms = new long[16]; // First term (32) | last term (32) of each dropped segment
+    private final Map<Integer, Footprint> footprints = new HashMap<>(); // Segments holding each match
+
+    /**
+     * Segments holding the entries of a match, with the number of entries in
+     * each, in append order.
+     */
+    private static class Footprint {
+        int[] segments = new int[2];
+        int[] counts = new int[2];
+        int size;
+
+        void add(int segment) {
+            if (size > 0 && segments[size - 1] == segment) {
+                counts[size - 1]++;
+                return;
+            }
+            if (size == segments.length) {
+                segments = Arrays.copyOf(segments, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            segments[size] = segment;
+            counts[size++] = 1;
+        }
+
+        void removeLast() {
+            if (--counts[size - 1] == 0) {
+                size--;
+            }
+        }
+    }
 
     public void append(LogEntry entry) {
-        entries.add(entry);
+        append(entry.getTerm(), entry.getMatchId(), opcodeOf(entry.getCommand()), entry.getPlayerIndex(),
+                entry.getPosX(), entry.getPosY(), entry.getTarget());
+    }
+
+    private void append(int term, int matchId, int opcode, int playerIndex, int posX, int posY, int target) {
+        int segment = size >>> SEGMENT_SHIFT;
+        if (segment >= headers.length) {
+            // Only the segment directory grows, entries are never copied
+            headers = Arrays.copyOf(headers, Math.max(segment + 1, headers.length * 2));
+            positions = Arrays.copyOf(positions, headers.length);
+            matchIds = Arrays.copyOf(matchIds, headers.length);
+            liveCounts = Arrays.copyOf(liveCounts, headers.length);
+            droppedTerms = Arrays.copyOf(droppedTerms, headers.length);
+        }
+        if (headers[segment] == null) {
+            headers[segment] = new long[SEGMENT_SIZE];
+            positions[segment] = new long[SEGMENT_SIZE];
+            matchIds[segment] = new int[SEGMENT_SIZE];
+        }
+
+        int offset = size & SEGMENT_MASK;
+        headers[segment][offset] = ((long) term << 32) | ((long) (opcode & 0xFF) << 24)
+                | ((long) ((target + 1) & 0xFF) << 16) | (playerIndex & 0xFFFF);
+        positions[segment][offset] = ((long) posX << 32) | (posY & 0xFFFFFFFFL);
+        matchIds[segment][offset] = matchId;
+        size++;
+
+        // Configuration entries are never reclaimed, match entries until their match is archived
+        liveCounts[segment]++;
+        if (matchId >= 0) {
+            footprints.computeIfAbsent(matchId, m -> new Footprint()).add(segment);
+        }
+        if (offset == 0 && segment > 0) {
+            dropIfDead(segment - 1); // The previous segment is now full
+        }
+    }
+
+    /**
+     * Marks the entries of a match as reclaimable, once its archive-match entry
+     * is committed, and drops the full segments left without live entries.
+     *
+     * @param matchId The archived match.
+     */
+    public void archive(int matchId) {
+        Footprint footprint = footprints.remove(matchId);
+        if (footprint == null) {
+            return;
+        }
+        for (int i = 0; i < footprint.size; i++) {
+            int segment = footprint.segments[i];
+            liveCounts[segment] -= footprint.counts[i];
+            dropIfDead(segment);
+        }
+    }
+
+    /**
+     * Checks whether a match still has entries that were not reclaimed. Entries
+     * left in partly reclaimed segments after the archive of their match must
+     * not bring it back when the log is read again.
+     *
+     * @param matchId The match.
+     * @return true if the match was not archived (and reclaimed), false otherwise.
+     */
+    public boolean hasLiveEntries(int matchId) {
+        return footprints.containsKey(matchId);
+    }
+
+    /**
+     * Finds the entries of a match, scanning only the segments holding them.
+     *
+     * @param matchId The match.
+     * @param upTo    The last index to consider.
+     * @return The indexes of the entries, in order; empty if the match was
+     *         archived.
+     */
+    public int[] indexesOf(int matchId, int upTo) {
+        Footprint footprint = footprints.get(matchId);
+        if (footprint == null) {
+            return new int[0];
+        }
+        int total = 0;
+        for (int i = 0; i < footprint.size; i++) {
+            total += footprint.counts[i];
+        }
+        int[] indexes = new int[total];
+        int found = 0;
+        for (int i = 0; i < footprint.size; i++) {
+            int segment = footprint.segments[i];
+            int first = segment << SEGMENT_SHIFT;
+            int last = Math.min(Math.min(first + SEGMENT_MASK, size - 1), upTo);
+            for (int index = first; index <= last && found < total; index++) {
+                if (matchIds[segment][index & SEGMENT_MASK] == matchId) {
+                    indexes[found++] = index;
+                }
+            }
+        }
+        return Arrays.copyOf(indexes, found);
+    }
+
+    private void dropIfDead(int segment) {
+        // Full and not holding the last entry, whose term decides votes and heartbeat checks
+        boolean full = ((segment + 1) << SEGMENT_SHIFT) < size;
+        if (full && liveCounts[segment] <= 0 && headers[segment] != null) {
+            int first = segment << SEGMENT_SHIFT;
+            int last = first + SEGMENT_MASK;
+            droppedTerms[segment] = ((long) termAt(first) << 32) | (termAt(last) & 0xFFFFFFFFL);
+            headers[segment] = null;
+            positions[segment] = null;
+            matchIds[segment] = null;
+        }
+    }
+
+    /**
+     * Checks that every entry of a range is still stored, so it can be sent.
+     *
+     * @param from First index (firstIndex - 1 is known through the snapshot).
+     * @param to   Last index.
+     * @return true if no entry of the range was reclaimed, false otherwise.
+     */
+    public boolean isStored(int from, int to) {
+        if (from < firstIndex - 1) {
+            return false;
+        }
+        for (int segment = Math.max(from, firstIndex) >>> SEGMENT_SHIFT; segment <= to >>> SEGMENT_SHIFT
+                && segment < headers.length; segment++) {
+            if (headers[segment] == null && (segment << SEGMENT_SHIFT) < size) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Skips the entries reclaimed by archived matches.
+     *
+     * @param index A log index, at least firstIndex.
+     * @return index if it is stored, otherwise the first stored index after it (or size).
+     */
+    public int nextStored(int index) {
+        while (index < size && headers[index >>> SEGMENT_SHIFT] == null) {
+            index = ((index >>> SEGMENT_SHIFT) + 1) << SEGMENT_SHIFT;
+        }
+        return Math.min(index, size);
+    }
+
+    /**
+     * Counts the segments currently held in memory.
+     *
+     * @return The number of stored segments.
+     */
+    public int storedSegments() {
+        int stored = 0;
+        for (long[] segment : headers) {
+            if (segment != null) {
+                stored++;
+            }
+        }
+        return stored;
     }
 
     public LogEntry get(int index) {
-        return index < entries.size() ? entries.get(index) : null;
+        if (index < firstIndex || index >= size || headers[index >>> SEGMENT_SHIFT] == null) {
+            return null;
+        }
+        return new LogEntry(termAt(index), matchAt(index), playerAt(index), commandAt(index), posXAt(index),
+                posYAt(index), targetAt(index));
     }
 
     public LogEntry getLastElem() {
-        return entries.get(entries.size() - 1);
+        return get(size - 1);
     }
 
     public int lastIndex() {
-        return entries.size() - 1;
+        return size - 1;
     }
 
     public int size() {
-        return entries.size();
+        return size;
+    }
+
+    public int firstIndex() {
+        return firstIndex;
+    }
+
+    public int lastTerm() {
+        return termAt(size - 1);
+    }
+
+    /**
+     * Returns the term of an entry. The entry just before firstIndex is still
+     * known through the snapshot, so consistency checks work across it, and so
+     * are the first and last entries of a reclaimed segment and all of them if it
+     * was written in a single term.
+     *
+     * @param index The log index.
+     * @return The term, or -1 if the index is no longer (or not yet) stored.
+     */
+    public int termAt(int index) {
+        if (index == firstIndex - 1) {
+            return baseTerm;
+        }
+        if (index < firstIndex || index >= size) {
+            return -1;
+        }
+        if (headers[index >>> SEGMENT_SHIFT] == null) {
+            long terms = droppedTerms[index >>> SEGMENT_SHIFT];
+            if ((index & SEGMENT_MASK) == 0) {
+                return (int) (terms >>> 32);
+            }
+            if ((index & SEGMENT_MASK) == SEGMENT_MASK) {
+                return (int) terms;
+            }
+            return ((int) (terms >>> 32) == (int) terms) ? (int) terms : -1;
+        }
+        return (int) (headerAt(index) >>> 32);
+    }
+
+    public int matchAt(int index) {
+        return matchIds[index >>> SEGMENT_SHIFT][index & SEGMENT_MASK];
+    }
+
+    public String commandAt(int index) {
+        return commandIn(headerAt(index));
+    }
+
+    public int targetAt(int index) {
+        return targetIn(headerAt(index));
+    }
+
+    public int playerAt(int index) {
+        return playerIn(headerAt(index));
+    }
+
+    public int posXAt(int index) {
+        return posXIn(positionAt(index));
+    }
+
+    public int posYAt(int index) {
+        return posYIn(positionAt(index));
+    }
+
+    /**
+     * Returns the packed header of an entry, so that it can be copied out of the
+     * log and decoded later with the *In methods.
+     *
+     * @param index The index of the entry.
+     * @return The term, opcode, target and player of the entry.
+     */
+    long headerAt(int index) {
+        return headers[index >>> SEGMENT_SHIFT][index & SEGMENT_MASK];
+    }
+
+    /**
+     * @param index The index of the entry.
+     * @return The packed coordinates of the entry.
+     */
+    long positionAt(int index) {
+        return positions[index >>> SEGMENT_SHIFT][index & SEGMENT_MASK];
+    }
+
+    static String commandIn(long header) {
+        return COMMANDS[(int) (header >>> 24) & 0xFF];
+    }
+
+    static int targetIn(long header) {
+        return ((int) (header >>> 16) & 0xFF) - 1;
+    }
+
+    static int playerIn(long header) {
+        return (short) header;
+    }
+
+    static int posXIn(long position) {
+        return (int) (position >>> 32);
+    }
+
+    static int posYIn(long position) {
+        return (int) position;
+    }
+
+    /**
+     * Materializes a range of entries for replication.
+     *
+     * @param from First index to copy (inclusive).
+     * @param to   Last index to copy (inclusive).
+     * @return The entries, empty if the range is empty.
+     */
+    public LogEntry[] entries(int from, int to) {
+        LogEntry[] range = new LogEntry[Math.max(0, to - from + 1)];
+        for (int i = 0; i < range.length; i++) {
+            range[i] = get(from + i);
+        }
+        return range;
+    }
+
+    /**
+     * Drops every entry from the given index onwards (conflict with the leader).
+     *
+     * @param index First index to remove.
+     */
+    public void truncateFrom(int index) {
+        int newSize = Math.max(index, firstIndex);
+        // Uncommitted entries only, so none of them belongs to a reclaimed segment
+        for (int i = size - 1; i >= newSize; i--) {
+            liveCounts[i >>> SEGMENT_SHIFT]--;
+            int matchId = matchAt(i);
+            Footprint footprint = footprints.get(matchId);
+            if (footprint != null) {
+                footprint.removeLast();
+                if (footprint.size == 0) {
+                    footprints.remove(matchId);
+                }
+            }
+        }
+        if (newSize < size) {
+            size = newSize;
+        }
+    }
+
+    /**
+     * Replaces the log prefix with a snapshot ending at lastIncludedIndex.
+     * If the log already holds a matching entry there, the following entries are
+     * kept; otherwise the whole log is discarded.
+     *
+     * @param lastIncludedIndex Last index covered by the snapshot.
+     * @param lastIncludedTerm  Term of that entry.
+     */
+    public void installSnapshot(int lastIncludedIndex, int lastIncludedTerm) {
+        if (termAt(lastIncludedIndex) != lastIncludedTerm) {
+            // Nothing after the snapshot is kept, neither is the bookkeeping of the old entries
+            size = lastIncludedIndex + 1;
+            footprints.clear();
+            Arrays.fill(liveCounts, 0);
+        }
+
+        // Release the segments that are now entirely covered by the snapshot
+        int firstKeptSegment = (lastIncludedIndex + 1) >>> SEGMENT_SHIFT;
+        for (int segment = 0; segment < firstKeptSegment && segment < headers.length; segment++) {
+            headers[segment] = null;
+            positions[segment] = null;
+            matchIds[segment] = null;
+        }
+        firstIndex = lastIncludedIndex + 1;
+        baseTerm = lastIncludedTerm;
+    }
+
+    /**
+     * Checks whether a command is a player move (as opposed to a cluster
+     * configuration change).
+     *
+     * @param command The command name (e.g. "attack").
+     * @return true if the command is "place", "place-vertical" or "attack", false otherwise.
+     */
+    public static boolean isGameCommand(String command) {
+        return "place".equals(command) || "place-vertical".equals(command) || "attack".equals(command);
+    }
+
+    /**
+     * Checks whether a command changes the cluster configuration. The server index
+     * is stored in the posX column of these entries.
+     *
+     * @param command The command name.
+     * @return true if the command is "add-server", "add-learner" or "remove-server",
+     *         false otherwise.
+     */
+    public static boolean isConfigCommand(String command) {
+        return "add-server".equals(command) || "add-learner".equals(command) || "remove-server".equals(command);
+    }
+
+    /**
+     * @param command The command name.
+     * @return true if the command can be stored in the log, false otherwise.
+     */
+    static boolean isCommand(String command) {
+        return Arrays.asList(COMMANDS).contains(command);
+    }
+
+    static String commandOf(int opcode) {
+        return COMMANDS[opcode];
     }
 
-    public void cleanup(){
-        entries.clear();
+    static int opcodeOf(String command) {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            if (COMMANDS[i].equals(command)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown command: " + command);
     }
 }
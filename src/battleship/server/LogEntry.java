@@ -4,23 +4,45 @@ import java.io.Serializable;
 
 public class LogEntry implements Serializable {
     private int term; // The term in which the log was created
+    private int matchId; // The match the command belongs to (-1 for cluster commands)
     private int playerIndex;
     private String command; // The actual command (e.g., "Attack")
     private int posX; // X term of command
     private int posY; // Y term of command
+    private int target; // Attacked player (-1 when not an attack)
 
-    public LogEntry(int term, int playerIndex, String command, int posX, int posY) {
+    public LogEntry(int term, int matchId, int playerIndex, String command, int posX, int posY) {
+        this(term, matchId, playerIndex, command, posX, posY, -1);
+    }
+
+    public LogEntry(int term, int matchId, int playerIndex, String command, int posX, int posY, int target) {
         this.term = term;
+        this.matchId = matchId;
         this.playerIndex = playerIndex;
         this.command = command;
         this.posX = posX;
         this.posY = posY;
+        this.target = target;
     }
 
     public int getTerm() {
         return term;
     }
 
+    public int getMatchId() {
+        return matchId;
+    }
+
+    /**
+     * Binds an entry of a new match to its id, once the leader knows the index of
+     * its create-match entry.
+     *
+     * @param matchId The match id.
+     */
+    void setMatchId(int matchId) {
+        this.matchId = matchId;
+    }
+
     public int getPlayerIndex() {
         return playerIndex;
     }
@@ -37,13 +59,19 @@ public class LogEntry implements Serializable {
         return posY;
     }
 
+    public int getTarget() {
+        return target;
+    }
+
     @Override
     public String toString() {
         return "LogEntry{" +
                 "term=" + term +
-                "index="+ playerIndex +
+                ", match=" + matchId +
+                ", index="+ playerIndex +
                 ", command='" + command + '\'' +
                 ", position='"+ posX+","+posY + '\'' +
+                ", target=" + target +
                 '}';
     }
 }
@@ -0,0 +1,819 @@
+package battleship.server;
+
+import battleship.GameGrid;
+import battleship.MatchConfig;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * State of a single free-for-all match: the players' grids, ship counters and
+ * turn. Players are eliminated when their last ship sinks (or when they leave);
+ * the turn order skips them and the last player standing wins.
+ * Only the leader and the learners keep matches; a new leader rebuilds them from
+ * the log when it takes over.
+ * Each match is its own monitor, so moves of different matches never contend.
+ * <p>
+ * The state lives in a fixed-size slot of the off-heap MatchStore: version,
+ * turn and players left, then for each seat its ticket, counters and board
+ * (ship records, and bitboards of the ship cells, hits and misses). This
+ * object is a flyweight over the slot, with offsets shared by all the matches
+ * of a configuration, so the heap only holds a handle per match whatever the
+ * number of matches. Boards too large for a slot keep sparse GameGrid objects,
+ * their counters still in the slot. Copies for snapshots and the archive are
+ * heap images of the slot; grids handed out are built from it on demand.
+ */
+public class Match implements Serializable {
+    // Header of the slot
+    private static final int VERSION = 0; // Moves applied
+    private static final int TURN = 4;
+    private static final int PLAYERS_LEFT = 8;
+    private static final int FINISHED = 12;
+    private static final int SEATS = 16; // First seat record
+
+    // Seat record
+    private static final int TICKET = 0;
+    private static final int SHIPS_PLACED = 8;
+    private static final int SHIPS_AFLOAT = 12;
+    private static final int SHOTS = 16;
+    private static final int FLAGS = 20;
+    private static final int SEAT_BYTES = 24;
+    private static final int ELIMINATED = 1; // Flags
+    private static final int BOT = 2;
+
+    // Ship record of a board in the slot, in placement (fleet) order
+    private static final int POSITION = 0; // x << 16 | y of the first cell
+    private static final int HEALTH = 4; // Cells not hit yet
+    private static final int VERTICAL = 6;
+    private static final int SHIP_BYTES = 8;
+
+    private static final Map<Layout, Layout> LAYOUTS = new ConcurrentHashMap<>(); // Shared by equal configurations
+
+    private final int matchId; // Index of the create-match log entry
+    private final MatchConfig config; // Board size and fleet
+    private final int players;
+    private final GameGrid[] grids; // Boards too large for a slot, null when the boards are in the slot
+    private transient Layout layout;
+    private transient ByteBuffer state; // Arena of the slot, or heap image
+    private transient int base; // Offset of the slot in state
+    private transient Cleaner.Cleanable slot; // Frees the slot, null for a heap image
+
+    /**
+     * Offsets of the slot of a configuration.
+     */
+    private static final class Layout {
+        final int players;
+        final MatchConfig config;
+        final int words; // Longs per bitboard
+        final int boards; // Offset of the first board, 0 if the boards are not in the slot
+        final int shipBits; // Offsets in a board
+        final int hitBits;
+        final int missBits;
+        final int boardBytes;
+        final int bytes; // Slot size
+
+        Layout(int players, MatchConfig config) {
+            this.players = players;
+            this.config = config;
+            long cells = (long) config.getSize() * config.getSize();
+            long words = (cells + 63) >>> 6;
+            int header = SEATS + players * SEAT_BYTES;
+            int ships = ((config.getFleetSize() * SHIP_BYTES + 7) >>> 3) << 3;
+            long board = ships + 3 * words * 8;
+            boolean compact = config.getSize() <= 0xFFFF && header + players * board <= MatchStore.MAX_SLOT;
+            this.words = compact ? (int) words : 0;
+            this.boards = compact ? header : 0;
+            this.shipBits = ships;
+            this.hitBits = ships + this.words * 8;
+            this.missBits = ships + 2 * this.words * 8;
+            this.boardBytes = compact ? (int) board : 0;
+            this.bytes = compact ? header + players * (int) board : header;
+        }
+
+        static Layout of(int players, MatchConfig config) {
+            Layout layout = new Layout(players, config);
+            Layout shared = LAYOUTS.putIfAbsent(layout, layout);
+            return (shared != null) ? shared : layout;
+        }
+
+        boolean compact() {
+            return boards > 0;
+        }
+
+        int seat(int seat) {
+            return SEATS + seat * SEAT_BYTES;
+        }
+
+        int board(int seat) {
+            return boards + seat * boardBytes;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Layout && players == ((Layout) other).players
+                    && config.equals(((Layout) other).config);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * config.hashCode() + players;
+        }
+    }
+
+    public Match(int matchId, int players, MatchConfig config) {
+        this.matchId = matchId;
+        this.config = config;
+        this.players = players;
+        this.layout = Layout.of(players, config);
+        this.grids = layout.compact() ? null : new GameGrid[players];
+        if (grids != null) {
+            for (int i = 0; i < players; i++) {
+                grids[i] = new GameGrid(config.getSize());
+            }
+        }
+        allocate();
+        state.putInt(base + PLAYERS_LEFT, players);
+    }
+
+    /**
+     * Copies a match, in a new slot or in a heap image.
+     */
+    private Match(Match source, boolean live) {
+        this.matchId = source.matchId;
+        this.config = source.config;
+        this.players = source.players;
+        this.layout = source.layout;
+        this.grids = (source.grids != null) ? new GameGrid[players] : null;
+        if (grids != null) {
+            for (int i = 0; i < players; i++) {
+                grids[i] = source.grids[i].copy();
+            }
+        }
+        if (live) {
+            allocate();
+        } else {
+            state = ByteBuffer.allocate(layout.bytes).order(MatchStore.ORDER);
+        }
+        state.put(base, source.state, source.base, layout.bytes);
+    }
+
+    private void allocate() {
+        MatchStore store = MatchStore.shared();
+        long handle = store.allocate(layout.bytes);
+        state = store.buffer(handle);
+        base = MatchStore.offset(handle);
+        slot = store.register(this, handle, layout.bytes);
+    }
+
+    /**
+     * Assigns a lobby ticket to a seat.
+     *
+     * @param seat   The seat (player index) in the match.
+     * @param ticket The ticket of the player.
+     */
+    public synchronized void seat(int seat, long ticket) {
+        state.putLong(base + layout.seat(seat) + TICKET, ticket);
+    }
+
+    /**
+     * Gives a seat to the server bot, which plays it from the leader.
+     *
+     * @param seat The seat (player index) in the match.
+     */
+    public synchronized void seatBot(int seat) {
+        seat(seat, BotOpponent.TICKET);
+        putSeatInt(seat, FLAGS, seatInt(seat, FLAGS) | BOT);
+    }
+
+    /**
+     * Resolves the player attacked by a move. Without an explicit target the only
+     * opponent left is used.
+     *
+     * @param seat   The attacking player.
+     * @param target The requested target, or -1 if none was given.
+     * @return The target seat, or -1 if it is missing or not a valid opponent.
+     */
+    public synchronized int resolveTarget(int seat, int target) {
+        if (target == -1) {
+            return (getInt(PLAYERS_LEFT) == 2 && !isEliminated(seat)) ? nextAlive(seat) : -1;
+        }
+        if (target < 0 || target >= players || target == seat || isEliminated(target)) {
+            return -1;
+        }
+        return target;
+    }
+
+    /**
+     * Applies a committed move to the match.
+     *
+     * @param command "place", "place-vertical", "attack" or "leave-match".
+     * @param seat    The player making the move.
+     * @param posX    The X-coordinate.
+     * @param posY    The Y-coordinate.
+     * @param target  The attacked player (attacks only).
+     * @return A response message indicating the result of the move.
+     */
+    public synchronized String apply(String command, int seat, int posX, int posY, int target) {
+        if (!hasSeat(seat)) {
+            return "Unknown player!"; // Checked by the leader, but the slot must never be left
+        }
+        putInt(VERSION, getInt(VERSION) + 1);
+        if (command.equals("leave-match")) {
+            return processLeave(seat);
+        }
+        if (isMatchFinished() || isEliminated(seat)) {
+            return "You are out of the match!";
+        }
+        if (command.equals("attack")) {
+            int attacked = resolveTarget(seat, target);
+            if (attacked == -1) {
+                return "Invalid target!";
+            }
+            return processAttack(attacked, posX, posY);
+        }
+        return processPlace(seat, posX, posY, command.equals("place-vertical"));
+    }
+
+    /**
+     * Processes an attack move on the target grid.
+     *
+     * @param target The player whose grid is attacked.
+     * @param posX   The X-coordinate of the attack.
+     * @param posY   The Y-coordinate of the attack.
+     * @return A response message indicating the attack result.
+     */
+    private String processAttack(int target, int posX, int posY) {
+        String response = attack(target, posX, posY);
+
+        if (getShipsAfloat(target) == 0) {
+            eliminate(target);
+            response += " | All ships of player " + target + " sunk!";
+            if (isMatchFinished()) {
+                response += " You win!";
+                return response;
+            }
+        }
+
+        nextTurn();
+        return response;
+    }
+
+    /**
+     * Processes a ship placement move. The ship placed is the next one of the
+     * fleet, in configuration order.
+     *
+     * @param playerId The ID of the player placing the ship.
+     * @param posX     The X-coordinate of the first cell.
+     * @param posY     The Y-coordinate of the first cell.
+     * @param vertical true to extend the ship along x, false along y.
+     * @return A response message indicating the placement result.
+     */
+    private String processPlace(int playerId, int posX, int posY, boolean vertical) {
+        int placed = seatInt(playerId, SHIPS_PLACED);
+        if (placed == config.getFleetSize()) {
+            return "All ships already placed!";
+        }
+
+        String response = placeShip(playerId, posX, posY, config.getShipLength(placed), vertical);
+
+        if (response.equals("Placed")) {
+            putSeatInt(playerId, SHIPS_PLACED, ++placed);
+            if (placed == config.getFleetSize()) {
+                response += "|All ships placed!";
+                nextTurn();
+            }
+        }
+
+        return response;
+    }
+
+    /**
+     * Processes a player leaving: the player is eliminated and, if it was their
+     * turn, the turn passes on.
+     *
+     * @param seat The player leaving.
+     * @return A response message.
+     */
+    private String processLeave(int seat) {
+        if (isMatchFinished() || isEliminated(seat)) {
+            return "Left";
+        }
+        eliminate(seat);
+        if (!isMatchFinished() && getInt(TURN) == seat) {
+            nextTurn();
+        }
+        return "Left";
+    }
+
+    /**
+     * Removes a player from the turn order, finishing the match when only one
+     * player is left.
+     *
+     * @param seat The player to eliminate.
+     */
+    private void eliminate(int seat) {
+        putSeatInt(seat, FLAGS, seatInt(seat, FLAGS) | ELIMINATED);
+        int playersLeft = getInt(PLAYERS_LEFT) - 1;
+        putInt(PLAYERS_LEFT, playersLeft);
+        if (playersLeft <= 1) {
+            putInt(FINISHED, 1);
+        }
+    }
+
+    /**
+     * Advances the turn to the next player still in the match.
+     */
+    private void nextTurn() {
+        putInt(TURN, nextAlive(getInt(TURN)));
+    }
+
+    /**
+     * Finds the next player still in the match, in seat order.
+     *
+     * @param seat The seat to start after.
+     * @return The next seat not eliminated.
+     */
+    private int nextAlive(int seat) {
+        int next = seat;
+        do {
+            next = (next + 1) % players;
+        } while (isEliminated(next) && next != seat);
+        return next;
+    }
+
+    /**
+     * Places a ship on the board of a seat. The ship record is the next one of
+     * the seat, the caller counts it as placed.
+     *
+     * @return "Placed", or why the ship cannot be placed.
+     */
+    private String placeShip(int seat, int x, int y, int length, boolean vertical) {
+        if (grids != null) {
+            return grids[seat].placeShip(x, y, length, vertical);
+        }
+        String refused = checkPlacement(seat, x, y, length, vertical);
+        if (refused != null) {
+            return refused;
+        }
+
+        int step = vertical ? config.getSize() : 1;
+        for (int i = 0, cell = x * config.getSize() + y; i < length; i++, cell += step) {
+            setBit(seat, layout.shipBits, cell);
+        }
+        int ship = base + layout.board(seat) + seatInt(seat, SHIPS_PLACED) * SHIP_BYTES;
+        state.putInt(ship + POSITION, (x << 16) | y);
+        state.putChar(ship + HEALTH, (char) length);
+        state.put(ship + VERTICAL, (byte) (vertical ? 1 : 0));
+        putSeatInt(seat, SHIPS_AFLOAT, seatInt(seat, SHIPS_AFLOAT) + 1);
+        return "Placed";
+    }
+
+    /**
+     * @return Why a ship cannot be placed on a board in the slot, or null if it
+     *         can.
+     */
+    private String checkPlacement(int seat, int x, int y, int length, boolean vertical) {
+        int size = config.getSize();
+        int endX = vertical ? x + length - 1 : x;
+        int endY = vertical ? y : y + length - 1;
+        if (x < 0 || y < 0 || endX >= size || endY >= size) {
+            return "Ship does not fit on the grid!";
+        }
+        int step = vertical ? size : 1;
+        for (int i = 0, cell = x * size + y; i < length; i++, cell += step) {
+            if (isSet(seat, layout.shipBits, cell)) {
+                return "Space already occupied!";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Attacks a cell of the board of a seat.
+     *
+     * @return A message indicating whether the attack was a hit or a miss.
+     */
+    private String attack(int seat, int x, int y) {
+        if (grids != null) {
+            return grids[seat].attack(x, y);
+        }
+        int size = config.getSize();
+        if (x < 0 || y < 0 || x >= size || y >= size) {
+            return "Miss!"; // Moves are checked by the leader, never reached
+        }
+        int cell = x * size + y;
+        if (isSet(seat, layout.hitBits, cell) || isSet(seat, layout.missBits, cell)) {
+            return "Already hitted or missed!";
+        }
+
+        putSeatInt(seat, SHOTS, seatInt(seat, SHOTS) + 1);
+        if (!isSet(seat, layout.shipBits, cell)) {
+            setBit(seat, layout.missBits, cell);
+            return "Miss!";
+        }
+
+        setBit(seat, layout.hitBits, cell);
+        int ship = shipAt(seat, x, y);
+        int record = base + layout.board(seat) + ship * SHIP_BYTES;
+        int health = state.getChar(record + HEALTH) - 1;
+        state.putChar(record + HEALTH, (char) health);
+        if (health == 0) {
+            putSeatInt(seat, SHIPS_AFLOAT, seatInt(seat, SHIPS_AFLOAT) - 1);
+            return "Hit! Ship of length " + config.getShipLength(ship) + " sunk!";
+        }
+        return "Hit!";
+    }
+
+    /**
+     * Finds the ship covering a cell of a board in the slot.
+     *
+     * @return The ship number, or -1 if the cell is water.
+     */
+    private int shipAt(int seat, int x, int y) {
+        int placed = seatInt(seat, SHIPS_PLACED);
+        for (int ship = 0, record = base + layout.board(seat); ship < placed; ship++, record += SHIP_BYTES) {
+            int position = state.getInt(record + POSITION);
+            int shipX = position >>> 16;
+            int shipY = position & 0xFFFF;
+            int length = config.getShipLength(ship);
+            boolean covered = (state.get(record + VERTICAL) != 0)
+                    ? y == shipY && x >= shipX && x < shipX + length
+                    : x == shipX && y >= shipY && y < shipY + length;
+            if (covered) {
+                return ship;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Creates an independent heap copy of this match, used for snapshots and the
+     * archive. It does not take a slot of the store.
+     *
+     * @return A deep copy of the match.
+     */
+    public synchronized Match copy() {
+        return new Match(this, false);
+    }
+
+    /**
+     * Creates an independent copy of this match in a new slot of the store, for
+     * a node that applies moves to it.
+     *
+     * @return A deep copy of the match.
+     */
+    public synchronized Match liveCopy() {
+        return new Match(this, true);
+    }
+
+    /**
+     * Gives the slot back to the store once the match is no longer served here.
+     * The state moves to a heap image, so a late reader still sees it.
+     */
+    public synchronized void release() {
+        if (slot == null) {
+            return;
+        }
+        ByteBuffer image = ByteBuffer.allocate(layout.bytes).order(MatchStore.ORDER);
+        image.put(0, state, base, layout.bytes);
+        state = image;
+        base = 0;
+        slot.clean();
+        slot = null;
+    }
+
+    public int getMatchId() {
+        return matchId;
+    }
+
+    public int getPlayers() {
+        return players;
+    }
+
+    /**
+     * @param seat A seat asked for by a client.
+     * @return true if the seat belongs to the match.
+     */
+    public boolean hasSeat(int seat) {
+        return seat >= 0 && seat < players;
+    }
+
+    public MatchConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @return The number of moves applied so far, refused ones included.
+     */
+    public synchronized int getVersion() {
+        return getInt(VERSION);
+    }
+
+    public synchronized long getTicket(int seat) {
+        return state.getLong(base + layout.seat(seat) + TICKET);
+    }
+
+    public synchronized boolean isBot(int seat) {
+        return (seatInt(seat, FLAGS) & BOT) != 0;
+    }
+
+    /**
+     * @return true if the server bot plays at least one seat.
+     */
+    public synchronized boolean hasBots() {
+        for (int seat = 0; seat < players; seat++) {
+            if (isBot(seat)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds the grid of a player, with the ships.
+     *
+     * @param seat The player.
+     * @return A new grid, not updated by later moves.
+     */
+    public synchronized GameGrid getPlayerGrid(int seat) {
+        if (grids != null) {
+            return grids[seat].copy();
+        }
+        int size = config.getSize();
+        GameGrid grid = new GameGrid(size);
+        for (int ship = 0, record = base + layout.board(seat); ship < seatInt(seat, SHIPS_PLACED); ship++,
+                record += SHIP_BYTES) {
+            int position = state.getInt(record + POSITION);
+            grid.placeShip(position >>> 16, position & 0xFFFF, config.getShipLength(ship),
+                    state.get(record + VERTICAL) != 0);
+        }
+        copyShots(seat, layout.hitBits, grid, true, true);
+        copyShots(seat, layout.missBits, grid, true, false);
+        return grid;
+    }
+
+    /**
+     * Returns the grid of the next opponent still in the match (the only one in
+     * a two-player match).
+     *
+     * @param seat The player asking.
+     * @return The opponent's grid.
+     */
+    public synchronized GameGrid getOpponentGrid(int seat) {
+        return getPlayerGrid(nextAlive(seat));
+    }
+
+    /**
+     * Builds the fogged grid of a player: hits and misses only.
+     *
+     * @param seat The player.
+     * @return The fogged grid.
+     */
+    public synchronized GameGrid getFoggedGrid(int seat) {
+        if (grids != null) {
+            return grids[seat].getFoggedGrid().copy();
+        }
+        GameGrid fog = new GameGrid(config.getSize());
+        copyShots(seat, layout.hitBits, fog, false, true);
+        copyShots(seat, layout.missBits, fog, false, false);
+        return fog;
+    }
+
+    /**
+     * @param seat The player asking.
+     * @return The fogged grid of the next opponent still in the match.
+     */
+    public synchronized GameGrid getFoggedOpponentGrid(int seat) {
+        return getFoggedGrid(nextAlive(seat));
+    }
+
+    /**
+     * Copies the cells of a bitboard of the slot onto a grid.
+     *
+     * @param attack true to attack the cells, false to record them as shots of
+     *               a fogged grid.
+     * @param hit    Whether the cells are hits (fogged grids only).
+     */
+    private void copyShots(int seat, int bits, GameGrid grid, boolean attack, boolean hit) {
+        int size = config.getSize();
+        for (int word = 0; word < layout.words; word++) {
+            long set = state.getLong(base + layout.board(seat) + bits + (word << 3));
+            while (set != 0) {
+                int cell = (word << 6) + Long.numberOfTrailingZeros(set);
+                set &= set - 1;
+                if (attack) {
+                    grid.attack(cell / size, cell % size);
+                } else {
+                    grid.recordShot(cell / size, cell % size, hit);
+                }
+            }
+        }
+    }
+
+    /*
+     * Read by the bot, without building grids
+     */
+
+    /**
+     * @return The number of ships of a player not sunk yet.
+     */
+    public synchronized int getShipsAfloat(int seat) {
+        return (grids != null) ? grids[seat].getShipsAfloat() : seatInt(seat, SHIPS_AFLOAT);
+    }
+
+    /**
+     * @return The number of cells of a player attacked so far.
+     */
+    public synchronized int getShots(int seat) {
+        return (grids != null) ? grids[seat].getShots() : seatInt(seat, SHOTS);
+    }
+
+    /**
+     * @return true if a cell of a player was already attacked.
+     */
+    public synchronized boolean isShot(int seat, int x, int y) {
+        if (grids != null) {
+            return grids[seat].isShot(x, y);
+        }
+        int cell = x * config.getSize() + y;
+        return isSet(seat, layout.hitBits, cell) || isSet(seat, layout.missBits, cell);
+    }
+
+    /**
+     * Checks whether a player could place a ship, without placing it.
+     *
+     * @return true if the placement would succeed.
+     */
+    public synchronized boolean canPlaceShip(int seat, int x, int y, int length, boolean vertical) {
+        if (grids != null) {
+            return grids[seat].canPlaceShip(x, y, length, vertical);
+        }
+        return checkPlacement(seat, x, y, length, vertical) == null;
+    }
+
+    /**
+     * Marks what opponents know of the board of a player on bitboards, as
+     * GameGrid.markShots does.
+     *
+     * @param seat       The player.
+     * @param afloatHits Receives the hits of the ships still afloat.
+     * @param blocked    Receives the misses and the sunk cells.
+     * @return The number of shots on the board.
+     */
+    public synchronized int markShots(int seat, long[] afloatHits, long[] blocked) {
+        if (grids != null) {
+            return grids[seat].markShots(afloatHits, blocked);
+        }
+        int board = base + layout.board(seat);
+        for (int word = 0; word < layout.words; word++) {
+            afloatHits[word] = state.getLong(board + layout.hitBits + (word << 3));
+            blocked[word] = state.getLong(board + layout.missBits + (word << 3));
+        }
+        int size = config.getSize();
+        int placed = seatInt(seat, SHIPS_PLACED);
+        for (int ship = 0, record = board; ship < placed; ship++, record += SHIP_BYTES) {
+            if (state.getChar(record + HEALTH) == 0) { // Sunk cells cannot hold a ship afloat
+                int position = state.getInt(record + POSITION);
+                int step = (state.get(record + VERTICAL) != 0) ? size : 1;
+                int cell = (position >>> 16) * size + (position & 0xFFFF);
+                for (int i = 0; i < config.getShipLength(ship); i++, cell += step) {
+                    afloatHits[cell >>> 6] &= ~(1L << cell);
+                    blocked[cell >>> 6] |= 1L << cell;
+                }
+            }
+        }
+        return seatInt(seat, SHOTS);
+    }
+
+    /**
+     * Lists the hits of the ships of a player still afloat, as packed cells, as
+     * GameGrid.afloatHits does.
+     *
+     * @param seat  The player.
+     * @param cells Receives the cells, as many as fit.
+     * @return The number of such hits, possibly more than stored.
+     */
+    public synchronized int afloatHits(int seat, long[] cells) {
+        if (grids != null) {
+            return grids[seat].afloatHits(cells);
+        }
+        int size = config.getSize();
+        int placed = seatInt(seat, SHIPS_PLACED);
+        int count = 0;
+        for (int ship = 0, record = base + layout.board(seat); ship < placed; ship++, record += SHIP_BYTES) {
+            int length = config.getShipLength(ship);
+            int health = state.getChar(record + HEALTH);
+            if (health == 0 || health == length) {
+                continue; // Sunk, or not hit
+            }
+            int position = state.getInt(record + POSITION);
+            boolean vertical = state.get(record + VERTICAL) != 0;
+            for (int i = 0; i < length; i++) {
+                int x = (position >>> 16) + (vertical ? i : 0);
+                int y = (position & 0xFFFF) + (vertical ? 0 : i);
+                if (isSet(seat, layout.hitBits, x * size + y)) {
+                    if (count < cells.length) {
+                        cells[count] = ((long) x << 32) | y;
+                    }
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Lists the lengths of the ships of a player still afloat, as
+     * GameGrid.afloatLengths does.
+     *
+     * @param seat    The player.
+     * @param lengths Receives the lengths, as many as fit.
+     * @return The number of ships afloat.
+     */
+    public synchronized int afloatLengths(int seat, int[] lengths) {
+        if (grids != null) {
+            return grids[seat].afloatLengths(lengths);
+        }
+        int placed = seatInt(seat, SHIPS_PLACED);
+        int count = 0;
+        for (int ship = 0, record = base + layout.board(seat); ship < placed; ship++, record += SHIP_BYTES) {
+            if (state.getChar(record + HEALTH) > 0) {
+                if (count < lengths.length) {
+                    lengths[count] = config.getShipLength(ship);
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized int getCurrentTurn() {
+        return getInt(TURN);
+    }
+
+    public synchronized int getShipsPlaced(int seat) {
+        return seatInt(seat, SHIPS_PLACED);
+    }
+
+    public synchronized boolean isEliminated(int seat) {
+        return (seatInt(seat, FLAGS) & ELIMINATED) != 0;
+    }
+
+    public synchronized boolean isMatchFinished() {
+        return getInt(FINISHED) != 0;
+    }
+
+    private int getInt(int field) {
+        return state.getInt(base + field);
+    }
+
+    private void putInt(int field, int value) {
+        state.putInt(base + field, value);
+    }
+
+    private int seatInt(int seat, int field) {
+        return state.getInt(base + layout.seat(seat) + field);
+    }
+
+    private void putSeatInt(int seat, int field, int value) {
+        state.putInt(base + layout.seat(seat) + field, value);
+    }
+
+    private boolean isSet(int seat, int bits, int cell) {
+        return (state.getLong(base + layout.board(seat) + bits + ((cell >>> 6) << 3)) & (1L << cell)) != 0;
+    }
+
+    private void setBit(int seat, int bits, int cell) {
+        int word = base + layout.board(seat) + bits + ((cell >>> 6) << 3);
+        state.putLong(word, state.getLong(word) | (1L << cell));
+    }
+
+    /**
+     * Serializes the match with an image of its slot, atomically.
+     */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        byte[] image = new byte[layout.bytes];
+        state.get(base, image);
+        out.writeInt(image.length);
+        out.write(image);
+    }
+
+    /**
+     * Reads a match as a heap image, e.g. in a snapshot: liveCopy puts it in the
+     * store.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        layout = Layout.of(players, config);
+        byte[] image = new byte[in.readInt()];
+        in.readFully(image);
+        state = ByteBuffer.wrap(image).order(MatchStore.ORDER);
+        base = 0;
+    }
+}
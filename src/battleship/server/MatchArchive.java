@@ -0,0 +1,566 @@
+package battleship.server;
+
+import battleship.MatchConfig;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only archive of finished matches on local disk, for analytics.
+ * <p>
+ * matches.bin holds one record per match: its players, board, outcome and moves.
+ * The moves are stored by column (opcodes, seats, targets, x, y), coordinates as
+ * zig-zag varint deltas from the previous move, and the column lengths are in
+ * the record header so a query reads only the columns it needs. Records larger
+ * than BlockCompression.THRESHOLD are deflated.
+ * <p>
+ * index.bin holds a fixed summary per match (run, record position, finish time,
+ * seats and winner), loaded in memory when the archive is opened: win rates
+ * need no record at all, and the time and per-player indexes select the
+ * records the other queries decode.
+ * <p>
+ * Match ids start again from 0 when the cluster restarts, so every opening of
+ * the archive is a new run and a match is identified by its run and id.
+ * Players are identified by their lobby ticket.
+ * Usage: java battleship.server.MatchArchive &lt;directory&gt; winrate &lt;ticket&gt;
+ * | heatmap &lt;boardSize&gt; [fromMillis toMillis] | replay &lt;matchId&gt; [run] | list
+ */
+public class MatchArchive implements Closeable {
+    static final String DIRECTORY = System.getProperty("battleship.archive"); // Archive root, null if disabled
+    private static final int COLUMNS = 5; // Opcodes, seats, targets, x, y
+
+    private final RandomAccessFile data; // matches.bin
+    private final DataOutputStream index; // index.bin, appended
+    private final int run; // Run of the matches appended from now on
+    private final List<Summary> byTime = new ArrayList<>(); // In finish order
+    private final Map<Long, Summary> byMatch = new HashMap<>(); // By run and match id
+    private final Map<Long, List<Summary>> byPlayer = new HashMap<>();
+
+    /**
+     * Index entry of an archived match.
+     */
+    public static class Summary {
+        private final int run; // Opening of the archive in which the match was appended
+        private final int matchId;
+        private final long finishedAt; // ms since the epoch, on the archiving node
+        private final long offset; // Position of the record in matches.bin
+        private final int length; // Length of the record
+        private final int winner; // Seat of the winner, -1 if none
+        private final long[] tickets; // Ticket of each seat
+
+        Summary(int run, int matchId, long finishedAt, long offset, int length, int winner, long[] tickets) {
+            this.run = run;
+            this.matchId = matchId;
+            this.finishedAt = finishedAt;
+            this.offset = offset;
+            this.length = length;
+            this.winner = winner;
+            this.tickets = tickets;
+        }
+
+        public int getRun() {
+            return run;
+        }
+
+        public int getMatchId() {
+            return matchId;
+        }
+
+        public long getFinishedAt() {
+            return finishedAt;
+        }
+
+        public int getWinner() {
+            return winner;
+        }
+
+        public long[] getTickets() {
+            return tickets.clone();
+        }
+
+        @Override
+        public String toString() {
+            return "Summary{" +
+                    "run=" + run +
+                    ", matchId=" + matchId +
+                    ", finishedAt=" + finishedAt +
+                    ", players=" + tickets.length +
+                    ", winner=" + winner +
+                    '}';
+        }
+    }
+
+    private MatchArchive(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File indexFile = new File(directory, "index.bin");
+        this.data = new RandomAccessFile(new File(directory, "matches.bin"), "rw");
+
+        // Load the index, dropping a summary whose record was not completely written
+        long validIndex = 0;
+        int lastRun = 0;
+        if (indexFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+                while (true) {
+                    Summary summary = readSummary(in);
+                    if (summary.offset + summary.length > data.length()) {
+                        break;
+                    }
+                    add(summary);
+                    lastRun = Math.max(lastRun, summary.run);
+                    validIndex += 4 + 4 + 8 + 8 + 4 + 4 + 4 + 8L * summary.tickets.length;
+                }
+            } catch (EOFException e) {
+                // End of the index, possibly a partly written summary
+            }
+            try (RandomAccessFile truncate = new RandomAccessFile(indexFile, "rw")) {
+                truncate.setLength(validIndex);
+            }
+        }
+        Summary last = byTime.isEmpty() ? null : byTime.get(byTime.size() - 1);
+        data.setLength((last != null) ? last.offset + last.length : 0);
+        this.index = new DataOutputStream(new FileOutputStream(indexFile, true));
+        this.run = lastRun + 1;
+    }
+
+    /**
+     * Opens (or creates) an archive.
+     *
+     * @param directory The directory of the archive.
+     * @return The archive.
+     * @throws IOException If the files cannot be read or created.
+     */
+    public static MatchArchive open(File directory) throws IOException {
+        return new MatchArchive(directory);
+    }
+
+    private static long key(int run, int matchId) {
+        return ((long) run << 32) | (matchId & 0xFFFFFFFFL);
+    }
+
+    private void add(Summary summary) {
+        byTime.add(summary);
+        byMatch.put(key(summary.run, summary.matchId), summary);
+        for (long ticket : summary.tickets) {
+            if (ticket != BotOpponent.TICKET) {
+                byPlayer.computeIfAbsent(ticket, t -> new ArrayList<>()).add(summary);
+            }
+        }
+    }
+
+    /**
+     * Appends a finished match to the current run.
+     *
+     * @param matchId    The id of the match, as seen by the clients.
+     * @param match      The final state of the match.
+     * @param moves      Its moves in log order: place, place-vertical, attack and
+     *                   leave-match entries.
+     * @param finishedAt The finish time (ms since the epoch).
+     * @throws IOException If the archive cannot be written.
+     */
+    synchronized void append(int matchId, Match match, LogEntry[] moves, long finishedAt) throws IOException {
+        if (byMatch.containsKey(key(run, matchId))) {
+            return; // Already archived in this run
+        }
+        if (!byTime.isEmpty()) { // Keeps the time index sorted
+            finishedAt = Math.max(finishedAt, byTime.get(byTime.size() - 1).finishedAt);
+        }
+
+        int players = match.getPlayers();
+        long[] tickets = new long[players];
+        int winner = -1;
+        for (int seat = 0; seat < players; seat++) {
+            tickets[seat] = match.getTicket(seat);
+            if (!match.isEliminated(seat)) {
+                winner = seat;
+            }
+        }
+
+        byte[] record = encode(matchId, match.getConfig(), players, moves);
+        byte[] compressed = (record.length >= BlockCompression.THRESHOLD) ? BlockCompression.deflate(record) : null;
+        ByteBuffer block;
+        if (compressed != null && compressed.length < record.length) {
+            block = ByteBuffer.allocate(8 + compressed.length).putInt(record.length).putInt(compressed.length)
+                    .put(compressed);
+        } else {
+            block = ByteBuffer.allocate(8 + record.length).putInt(record.length).putInt(-1).put(record);
+        }
+
+        // The record first: a summary is only valid once its record is complete
+        long offset = data.length();
+        data.seek(offset);
+        data.write(block.array());
+        Summary summary = new Summary(run, matchId, finishedAt, offset, block.capacity(), winner, tickets);
+        writeSummary(index, summary);
+        index.flush();
+        add(summary);
+    }
+
+    /**
+     * Lists the archived matches of a player, oldest first.
+     *
+     * @param ticket The lobby ticket of the player.
+     * @return The summaries.
+     */
+    public synchronized List<Summary> matchesOf(long ticket) {
+        return new ArrayList<>(byPlayer.getOrDefault(ticket, Collections.emptyList()));
+    }
+
+    /**
+     * Lists the matches finished in a time range, through the time index.
+     *
+     * @param from First time included (ms since the epoch).
+     * @param to   Last time included.
+     * @return The summaries, oldest first.
+     */
+    public synchronized List<Summary> matchesBetween(long from, long to) {
+        int low = 0;
+        int high = byTime.size();
+        while (low < high) { // First summary finished at or after from
+            int mid = (low + high) >>> 1;
+            if (byTime.get(mid).finishedAt < from) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        List<Summary> result = new ArrayList<>();
+        for (int i = low; i < byTime.size() && byTime.get(i).finishedAt <= to; i++) {
+            result.add(byTime.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Computes the share of archived matches a player won, from the index only.
+     *
+     * @param ticket The lobby ticket of the player.
+     * @return The win rate, 0 if the player has no archived match.
+     */
+    public synchronized double winRate(long ticket) {
+        List<Summary> played = byPlayer.getOrDefault(ticket, Collections.emptyList());
+        int won = 0;
+        for (Summary summary : played) {
+            if (summary.winner >= 0 && summary.tickets[summary.winner] == ticket) {
+                won++;
+            }
+        }
+        return played.isEmpty() ? 0 : (double) won / played.size();
+    }
+
+    /**
+     * Counts the shots at each cell over the matches of a board size finished in
+     * a time range. Only the opcode and coordinate columns are decoded.
+     *
+     * @param size The board size.
+     * @param from First time included (ms since the epoch).
+     * @param to   Last time included.
+     * @return The number of attacks per cell, indexed [x][y].
+     * @throws IOException If a record cannot be read.
+     */
+    public synchronized int[][] heatmap(int size, long from, long to) throws IOException {
+        int[][] shots = new int[size][size];
+        int attack = Log.opcodeOf("attack");
+        for (Summary summary : matchesBetween(from, to)) {
+            ByteBuffer record = ByteBuffer.wrap(read(summary));
+            Header header = new Header(record);
+            if (header.size != size) {
+                continue;
+            }
+            int opcodes = record.position();
+            int xs = opcodes + header.columnLengths[0] + header.columnLengths[1] + header.columnLengths[2];
+            ByteBuffer xColumn = record.duplicate().position(xs);
+            ByteBuffer yColumn = record.duplicate().position(xs + header.columnLengths[3]);
+            int x = 0;
+            int y = 0;
+            for (int i = 0; i < header.moves; i++) {
+                x += zigZagDecode(readVarint(xColumn));
+                y += zigZagDecode(readVarint(yColumn));
+                if (record.get(opcodes + i) == attack && x >= 0 && y >= 0 && x < size && y < size) {
+                    shots[x][y]++;
+                }
+            }
+        }
+        return shots;
+    }
+
+    /**
+     * Finds the latest run in which a match id was archived.
+     *
+     * @param matchId The match.
+     * @return The run, or -1 if the match is not archived.
+     */
+    public synchronized int latestRun(int matchId) {
+        for (int i = byTime.size() - 1; i >= 0; i--) {
+            if (byTime.get(i).matchId == matchId) {
+                return byTime.get(i).run;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the moves of an archived match.
+     *
+     * @param run     The run in which the match was archived.
+     * @param matchId The match.
+     * @return The moves in log order, or null if the match is not archived.
+     * @throws IOException If the record cannot be read.
+     */
+    public synchronized LogEntry[] moves(int run, int matchId) throws IOException {
+        Summary summary = byMatch.get(key(run, matchId));
+        if (summary == null) {
+            return null;
+        }
+        ByteBuffer record = ByteBuffer.wrap(read(summary));
+        Header header = new Header(record);
+        ByteBuffer seats = record.duplicate().position(record.position() + header.columnLengths[0]);
+        ByteBuffer targets = seats.duplicate().position(seats.position() + header.columnLengths[1]);
+        ByteBuffer xs = targets.duplicate().position(targets.position() + header.columnLengths[2]);
+        ByteBuffer ys = xs.duplicate().position(xs.position() + header.columnLengths[3]);
+
+        LogEntry[] moves = new LogEntry[header.moves];
+        int x = 0;
+        int y = 0;
+        for (int i = 0; i < moves.length; i++) {
+            String command = Log.commandOf(record.get() & 0xFF);
+            x += zigZagDecode(readVarint(xs));
+            y += zigZagDecode(readVarint(ys));
+            moves[i] = new LogEntry(0, matchId, readVarint(seats), command, x, y, readVarint(targets) - 1);
+        }
+        return moves;
+    }
+
+    /**
+     * Replays an archived match from its moves.
+     *
+     * @param run     The run in which the match was archived.
+     * @param matchId The match.
+     * @return The final state of the match, or null if it is not archived.
+     * @throws IOException If the record cannot be read.
+     */
+    public synchronized Match replay(int run, int matchId) throws IOException {
+        Summary summary = byMatch.get(key(run, matchId));
+        LogEntry[] moves = moves(run, matchId);
+        if (moves == null) {
+            return null;
+        }
+        Header header = new Header(ByteBuffer.wrap(read(summary)));
+        Match match = new Match(matchId, summary.tickets.length, new MatchConfig(header.size, header.fleet,
+                summary.tickets.length));
+        for (int seat = 0; seat < summary.tickets.length; seat++) {
+            match.seat(seat, summary.tickets[seat]);
+        }
+        for (LogEntry move : moves) {
+            match.apply(move.getCommand(), move.getPlayerIndex(), move.getPosX(), move.getPosY(), move.getTarget());
+        }
+        return match;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        index.close();
+        data.close();
+    }
+
+    /**
+     * Encodes a match as a record: a header (match, board, fleet, number of
+     * moves, column lengths) followed by the columns.
+     */
+    private static byte[] encode(int matchId, MatchConfig config, int players, LogEntry[] moves) {
+        ByteArrayOutputStream[] columns = new ByteArrayOutputStream[COLUMNS];
+        for (int i = 0; i < COLUMNS; i++) {
+            columns[i] = new ByteArrayOutputStream(moves.length * 2);
+        }
+        int x = 0;
+        int y = 0;
+        for (LogEntry move : moves) {
+            columns[0].write(Log.opcodeOf(move.getCommand()));
+            writeVarint(columns[1], move.getPlayerIndex());
+            writeVarint(columns[2], move.getTarget() + 1);
+            writeVarint(columns[3], zigZagEncode(move.getPosX() - x));
+            writeVarint(columns[4], zigZagEncode(move.getPosY() - y));
+            x = move.getPosX();
+            y = move.getPosY();
+        }
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(16 + moves.length * 6);
+        writeVarint(record, matchId);
+        writeVarint(record, players);
+        writeVarint(record, config.getSize());
+        int[] fleet = config.getFleet();
+        writeVarint(record, fleet.length);
+        for (int length : fleet) {
+            writeVarint(record, length);
+        }
+        writeVarint(record, moves.length);
+        for (ByteArrayOutputStream column : columns) {
+            writeVarint(record, column.size());
+        }
+        for (ByteArrayOutputStream column : columns) {
+            record.write(column.toByteArray(), 0, column.size());
+        }
+        return record.toByteArray();
+    }
+
+    /**
+     * Header of a decoded record; the buffer is left at the first column.
+     */
+    private static class Header {
+        final int size;
+        final int[] fleet;
+        final int moves;
+        final int[] columnLengths = new int[COLUMNS];
+
+        Header(ByteBuffer record) {
+            readVarint(record); // Match id, also in the summary
+            readVarint(record); // Players, also in the summary
+            size = readVarint(record);
+            fleet = new int[readVarint(record)];
+            for (int i = 0; i < fleet.length; i++) {
+                fleet[i] = readVarint(record);
+            }
+            moves = readVarint(record);
+            for (int i = 0; i < COLUMNS; i++) {
+                columnLengths[i] = readVarint(record);
+            }
+        }
+    }
+
+    private byte[] read(Summary summary) throws IOException {
+        byte[] block = new byte[summary.length];
+        data.seek(summary.offset);
+        data.readFully(block);
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        int length = buffer.getInt();
+        int compressedLength = buffer.getInt();
+        if (compressedLength < 0) {
+            return Arrays.copyOfRange(block, 8, 8 + length);
+        }
+        return BlockCompression.inflate(Arrays.copyOfRange(block, 8, 8 + compressedLength), length);
+    }
+
+    private static void writeSummary(DataOutputStream out, Summary summary) throws IOException {
+        out.writeInt(summary.run);
+        out.writeInt(summary.matchId);
+        out.writeLong(summary.finishedAt);
+        out.writeLong(summary.offset);
+        out.writeInt(summary.length);
+        out.writeInt(summary.winner);
+        out.writeInt(summary.tickets.length);
+        for (long ticket : summary.tickets) {
+            out.writeLong(ticket);
+        }
+    }
+
+    private static Summary readSummary(DataInputStream in) throws IOException {
+        int run = in.readInt();
+        int matchId = in.readInt();
+        long finishedAt = in.readLong();
+        long offset = in.readLong();
+        int length = in.readInt();
+        int winner = in.readInt();
+        long[] tickets = new long[in.readInt()];
+        for (int i = 0; i < tickets.length; i++) {
+            tickets[i] = in.readLong();
+        }
+        return new Summary(run, matchId, finishedAt, offset, length, winner, tickets);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int zigZagEncode(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int zigZagDecode(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java battleship.server.MatchArchive <directory> winrate <ticket>"
+                    + " | heatmap <boardSize> [fromMillis toMillis] | replay <matchId> [run] | list");
+            return;
+        }
+        try (MatchArchive archive = open(new File(args[0]))) {
+            switch (args[1]) {
+                case "winrate":
+                    long ticket = Long.parseLong(args[2]);
+                    System.out.printf("Player %d: %d matches, win rate %.2f%n", ticket,
+                            archive.matchesOf(ticket).size(), archive.winRate(ticket));
+                    break;
+                case "heatmap":
+                    int size = Integer.parseInt(args[2]);
+                    long from = (args.length > 4) ? Long.parseLong(args[3]) : Long.MIN_VALUE;
+                    long to = (args.length > 4) ? Long.parseLong(args[4]) : Long.MAX_VALUE;
+                    int[][] shots = archive.heatmap(size, from, to);
+                    for (int x = 0; x < size; x++) {
+                        StringBuilder row = new StringBuilder();
+                        for (int y = 0; y < size; y++) {
+                            row.append(String.format("%5d", shots[x][y]));
+                        }
+                        System.out.println(row);
+                    }
+                    break;
+                case "replay":
+                    int matchId = Integer.parseInt(args[2]);
+                    int run = (args.length > 3) ? Integer.parseInt(args[3]) : archive.latestRun(matchId);
+                    LogEntry[] moves = archive.moves(run, matchId);
+                    if (moves == null) {
+                        System.out.println("Unknown match: " + matchId);
+                        break;
+                    }
+                    for (LogEntry move : moves) {
+                        System.out.println(move);
+                    }
+                    Match match = archive.replay(run, matchId);
+                    for (int seat = 0; seat < match.getPlayers(); seat++) {
+                        System.out.println("Player " + seat + (match.isEliminated(seat) ? " (out)" : " (winner)"));
+                        match.getPlayerGrid(seat).displayGrid();
+                    }
+                    break;
+                case "list":
+                    for (Summary summary : archive.matchesBetween(Long.MIN_VALUE, Long.MAX_VALUE)) {
+                        System.out.println(summary);
+                    }
+                    break;
+                default:
+                    System.out.println("Unknown query: " + args[1]);
+            }
+        }
+    }
+}
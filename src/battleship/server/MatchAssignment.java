@@ -0,0 +1,51 @@
+package battleship.server;
+
+import battleship.MatchConfig;
+import java.io.Serializable;
+
+public class MatchAssignment implements Serializable {
+    private long ticket; // Lobby ticket of the player
+    private int matchId; // Match the player was paired into
+    private int seat; // Player index inside the match
+    private int players; // Number of players of the match
+    private MatchConfig config; // Board size and fleet of the match
+
+    public MatchAssignment(long ticket, int matchId, int seat, int players, MatchConfig config) {
+        this.ticket = ticket;
+        this.matchId = matchId;
+        this.seat = seat;
+        this.players = players;
+        this.config = config;
+    }
+
+    public long getTicket() {
+        return ticket;
+    }
+
+    public int getMatchId() {
+        return matchId;
+    }
+
+    public int getSeat() {
+        return seat;
+    }
+
+    public int getPlayers() {
+        return players;
+    }
+
+    public MatchConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public String toString() {
+        return "MatchAssignment{" +
+                "ticket=" + ticket +
+                ", matchId=" + matchId +
+                ", seat=" + seat +
+                ", players=" + players +
+                ", config=" + config +
+                '}';
+    }
+}
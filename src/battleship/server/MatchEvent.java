@@ -0,0 +1,103 @@
+package battleship.server;
+
+import battleship.GameGrid;
+import java.io.Serializable;
+
+/**
+ * Committed event of a match sent to spectators. Types:
+ * <ul>
+ * <li>"placed": a player placed a ship (seat and ships placed only, the
+ * position stays hidden until the end of the match);</li>
+ * <li>"attack": seat attacked target at (posX, posY), with the result;</li>
+ * <li>"left": seat left the match;</li>
+ * <li>"turn": it is now the turn of seat;</li>
+ * <li>"finished": seat won, grids holds every player's unfogged grid;</li>
+ * <li>"resync": the whole visible state (fogged grids, turn or -1 once the
+ * match is over, eliminated players), sent first and in place of the events a
+ * slow spectator missed. The grids are revealed once the match is over. Its
+ * index is the last log entry applied by the node, so events that follow it
+ * with an index not above its own are already part of it;</li>
+ * <li>"closed": the match is no longer served here (archived, or this node
+ * stepped down), subscribe again elsewhere if needed.</li>
+ * </ul>
+ */
+public class MatchEvent implements Serializable {
+    private final String type;
+    private final int matchId;
+    private final int index; // Log index of the entry producing the event
+    private final int seat;
+    private final int target; // Attacked player, or ships placed for "placed"
+    private final int posX;
+    private final int posY;
+    private final String result; // Outcome of an attack
+    private final GameGrid[] grids; // "resync" and "finished" only
+    private final boolean[] eliminated; // "resync" only
+
+    public MatchEvent(String type, int matchId, int index, int seat, int target, int posX, int posY, String result,
+            GameGrid[] grids, boolean[] eliminated) {
+        this.type = type;
+        this.matchId = matchId;
+        this.index = index;
+        this.seat = seat;
+        this.target = target;
+        this.posX = posX;
+        this.posY = posY;
+        this.result = result;
+        this.grids = grids;
+        this.eliminated = eliminated;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public int getMatchId() {
+        return matchId;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getSeat() {
+        return seat;
+    }
+
+    public int getTarget() {
+        return target;
+    }
+
+    public int getPosX() {
+        return posX;
+    }
+
+    public int getPosY() {
+        return posY;
+    }
+
+    public String getResult() {
+        return result;
+    }
+
+    public GameGrid[] getGrids() {
+        return grids;
+    }
+
+    public boolean[] getEliminated() {
+        return eliminated;
+    }
+
+    @Override
+    public String toString() {
+        return "MatchEvent{" +
+                "type='" + type + '\'' +
+                ", matchId=" + matchId +
+                ", index=" + index +
+                ", seat=" + seat +
+                ", target=" + target +
+                ", posX=" + posX +
+                ", posY=" + posY +
+                ", result='" + result + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,11 @@
+package battleship.server;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Callback exported by a client waiting in the lobby.
+ */
+public interface MatchListener extends Remote {
+    void matchAssigned(MatchAssignment assignment) throws RemoteException;
+}
@@ -0,0 +1,128 @@
+package battleship.server;
+
+import battleship.MatchConfig;
+import java.util.Arrays;
+
+/**
+ * Rebuilds one match from its own log entries. When a node takes over, the log
+ * is partitioned by match into these replays, which run in parallel on a
+ * fork-join pool; a match needed before its replay ran is restored on the spot
+ * by the thread asking for it. The entries are copied out of the log when added,
+ * under the server lock, since the log is not thread-safe: appends and archives
+ * replace its segments while the replays run.
+ */
+class MatchReplay {
+    private final Log log;
+    private final int matchId;
+    private final int players;
+    private final MatchConfig config;
+    private final Match base; // State stored in the snapshot, null if the match started after it
+    private final long[] tickets; // Lobby ticket of each seat, to drop the assignments on archive
+    private long[] headers = new long[16]; // Packed headers of the entries of the match, in order
+    private long[] positions = new long[16]; // Packed coordinates of the same entries
+    private int count;
+    private Match match; // Restored state, null until the replay ran
+
+    MatchReplay(Log log, int matchId, int players, MatchConfig config) {
+        this.log = log;
+        this.matchId = matchId;
+        this.players = players;
+        this.config = config;
+        this.base = null;
+        this.tickets = new long[players];
+    }
+
+    MatchReplay(Log log, Match base) {
+        this.log = log;
+        this.matchId = base.getMatchId();
+        this.players = base.getPlayers();
+        this.config = base.getConfig();
+        this.base = base;
+        this.tickets = new long[players];
+        for (int seat = 0; seat < players; seat++) {
+            tickets[seat] = base.getTicket(seat);
+        }
+    }
+
+    /**
+     * Adds an entry of the match to the replay, copying it out of the log; the
+     * caller holds the server lock. Entries are added in log order.
+     * A match asked for while the takeover is still partitioning the log may be
+     * restored already, then the entry is applied to it directly.
+     *
+     * @param logIndex The index of the entry.
+     */
+    synchronized void add(int logIndex) {
+        long header = log.headerAt(logIndex);
+        long position = log.positionAt(logIndex);
+        if (match != null) {
+            replayEntry(match, header, position);
+            return;
+        }
+        if (count == headers.length) {
+            headers = Arrays.copyOf(headers, count * 2);
+            positions = Arrays.copyOf(positions, count * 2);
+        }
+        headers[count] = header;
+        positions[count++] = position;
+    }
+
+    /**
+     * Records the ticket of a seat, read from a join-match entry.
+     *
+     * @param seat   The seat.
+     * @param ticket The lobby ticket of the player.
+     */
+    void seat(int seat, long ticket) {
+        tickets[seat] = ticket;
+    }
+
+    long[] getTickets() {
+        return tickets.clone();
+    }
+
+    int getMatchId() {
+        return matchId;
+    }
+
+    int getPlayers() {
+        return players;
+    }
+
+    MatchConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Replays the entries of the match, once. Concurrent callers wait for the
+     * first one to finish and get the same match.
+     *
+     * @return The restored match.
+     */
+    synchronized Match restore() {
+        if (match != null) {
+            return match;
+        }
+
+        Match restored = (base != null) ? base.liveCopy() : new Match(matchId, players, config);
+        for (int i = 0; i < count; i++) {
+            replayEntry(restored, headers[i], positions[i]);
+        }
+        headers = null; // Not needed anymore
+        positions = null;
+        match = restored;
+        return match;
+    }
+
+    private void replayEntry(Match restored, long header, long position) {
+        String command = Log.commandIn(header);
+        int player = Log.playerIn(header);
+        if (command.equals("join-match") && Log.targetIn(header) == BotOpponent.SEAT_FLAG) {
+            restored.seatBot(player);
+        } else if (command.equals("join-match")) {
+            restored.seat(player, position); // The ticket is stored in both coordinates
+        } else {
+            restored.apply(command, player, Log.posXIn(position), Log.posYIn(position), Log.targetIn(header));
+        }
+    }
+}
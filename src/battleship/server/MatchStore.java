@@ -0,0 +1,148 @@
+package battleship.server;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Off-heap store of the live match states. The memory is taken from the OS in
+ * direct ByteBuffer arenas that are never given back, and carved into
+ * fixed-size slots: every size class (a power of two) takes whole arenas, and
+ * keeps its free slots in a list threaded through the free slots themselves.
+ * Allocating or freeing a slot is a pointer swap, and the slots add nothing to
+ * the heap for the GC to scan, however many matches are stored.
+ * <p>
+ * A slot is addressed by a handle: the arena index in the high 32 bits, the
+ * offset in the arena in the low ones. Slots are freed by their owner, or by a
+ * Cleaner once the owner is unreachable.
+ */
+final class MatchStore {
+    static final int MAX_SLOT = 1 << 20; // Largest slot (bytes), bigger states stay on the heap
+    static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN; // Of the slots and their heap images
+    private static final int MIN_SLOT = 64;
+    private static final int ARENA_SIZE = 4 << 20;
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SLOT / MIN_SLOT) + 1;
+    private static final MatchStore SHARED = new MatchStore();
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private volatile ByteBuffer[] arenas = new ByteBuffer[0]; // Replaced when growing, read without lock
+    private final long[] freeSlots = new long[CLASSES]; // Head of the free list of each class, -1 if empty
+    private final int[] carving = new int[CLASSES]; // Arena being carved by each class, -1 if none
+    private final int[] carved = new int[CLASSES]; // Bytes already carved from it
+    private int slotsInUse;
+
+    private MatchStore() {
+        Arrays.fill(freeSlots, -1);
+        Arrays.fill(carving, -1);
+    }
+
+    /**
+     * @return The store of this node.
+     */
+    static MatchStore shared() {
+        return SHARED;
+    }
+
+    /**
+     * Allocates a zeroed slot.
+     *
+     * @param bytes The size needed, at most MAX_SLOT.
+     * @return The handle of the slot.
+     */
+    synchronized long allocate(int bytes) {
+        int sizeClass = sizeClass(bytes);
+        int slotSize = MIN_SLOT << sizeClass;
+        long handle = freeSlots[sizeClass];
+        if (handle != -1) {
+            freeSlots[sizeClass] = arenas[arena(handle)].getLong(offset(handle)); // Next free slot
+        } else {
+            if (carving[sizeClass] < 0 || carved[sizeClass] + slotSize > ARENA_SIZE) {
+                carving[sizeClass] = grow();
+                carved[sizeClass] = 0;
+            }
+            handle = ((long) carving[sizeClass] << 32) | carved[sizeClass];
+            carved[sizeClass] += slotSize;
+        }
+
+        ByteBuffer arena = arenas[arena(handle)];
+        for (int i = offset(handle), end = i + slotSize; i < end; i += 8) {
+            arena.putLong(i, 0);
+        }
+        slotsInUse++;
+        return handle;
+    }
+
+    /**
+     * Gives a slot back to its free list.
+     *
+     * @param handle The handle of the slot.
+     * @param bytes  The size it was allocated with.
+     */
+    synchronized void free(long handle, int bytes) {
+        int sizeClass = sizeClass(bytes);
+        arenas[arena(handle)].putLong(offset(handle), freeSlots[sizeClass]);
+        freeSlots[sizeClass] = handle;
+        slotsInUse--;
+    }
+
+    /**
+     * Frees a slot once its owner is unreachable, or earlier through the
+     * returned Cleanable. The slot is freed once either way.
+     *
+     * @param owner  The object using the slot.
+     * @param handle The handle of the slot.
+     * @param bytes  The size it was allocated with.
+     * @return The Cleanable freeing the slot.
+     */
+    Cleaner.Cleanable register(Object owner, long handle, int bytes) {
+        return CLEANER.register(owner, () -> free(handle, bytes));
+    }
+
+    /**
+     * @param handle The handle of a slot.
+     * @return The arena holding the slot, to be accessed with absolute
+     *         positions only (it is shared by many slots).
+     */
+    ByteBuffer buffer(long handle) {
+        return arenas[arena(handle)];
+    }
+
+    static int offset(long handle) {
+        return (int) handle;
+    }
+
+    synchronized int getSlotsInUse() {
+        return slotsInUse;
+    }
+
+    /**
+     * @return The off-heap memory reserved by the arenas (bytes).
+     */
+    long getReservedBytes() {
+        return (long) arenas.length * ARENA_SIZE;
+    }
+
+    private static int arena(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static int sizeClass(int bytes) {
+        if (bytes > MAX_SLOT) {
+            throw new IllegalArgumentException("Slot of " + bytes + " bytes over the " + MAX_SLOT + " limit");
+        }
+        return Math.max(0, 32 - Integer.numberOfLeadingZeros(bytes - 1) - Integer.numberOfTrailingZeros(MIN_SLOT));
+    }
+
+    /**
+     * Adds an arena.
+     *
+     * @return Its index.
+     */
+    private int grow() {
+        ByteBuffer[] grown = Arrays.copyOf(arenas, arenas.length + 1);
+        grown[arenas.length] = ByteBuffer.allocateDirect(ARENA_SIZE).order(ORDER);
+        arenas = grown;
+        return grown.length - 1;
+    }
+}
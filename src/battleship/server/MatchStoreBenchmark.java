@@ -0,0 +1,99 @@
+package battleship.server;
+
+import battleship.GameGrid;
+import battleship.MatchConfig;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Compares the heap and the GC activity of many live matches kept in the
+ * off-heap store with the same boards kept as GameGrid objects on the heap.
+ * Usage: java battleship.server.MatchStoreBenchmark [matches] [moves]
+ */
+public class MatchStoreBenchmark {
+    public static void main(String[] args) throws Exception {
+        int matches = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        int moves = (args.length > 1) ? Integer.parseInt(args[1]) : 2000000;
+        MatchConfig config = new MatchConfig(10, new int[] { 5, 4, 3, 3, 2 });
+
+        long empty = heapUsed();
+        Match[] stored = new Match[matches];
+        for (int m = 0; m < matches; m++) {
+            Match match = new Match(m, 2, config);
+            for (int seat = 0; seat < 2; seat++) {
+                for (int ship = 0; ship < config.getFleetSize(); ship++) {
+                    match.apply("place", seat, ship * 2, 0, -1);
+                }
+            }
+            stored[m] = match;
+        }
+        report("Off-heap slots ", matches, moves, empty, (random, m) -> {
+            Match match = stored[m];
+            match.apply("attack", match.getCurrentTurn(), random.nextInt(10), random.nextInt(10), -1);
+        });
+        MatchStore store = MatchStore.shared();
+        System.out.printf("  %d slots in use, %d MB reserved off the heap%n", store.getSlotsInUse(),
+                store.getReservedBytes() >> 20);
+        for (Match match : stored) {
+            match.release();
+        }
+
+        empty = heapUsed();
+        GameGrid[][] grids = new GameGrid[matches][2];
+        for (int m = 0; m < matches; m++) {
+            for (int seat = 0; seat < 2; seat++) {
+                grids[m][seat] = new GameGrid(10);
+                for (int ship = 0; ship < config.getFleetSize(); ship++) {
+                    grids[m][seat].placeShip(ship * 2, 0, config.getShipLength(ship), false);
+                }
+            }
+        }
+        report("Heap GameGrids ", matches, moves, empty,
+                (random, m) -> grids[m][random.nextInt(2)].attack(random.nextInt(10), random.nextInt(10)));
+    }
+
+    private interface Move {
+        void play(Random random, int match);
+    }
+
+    /**
+     * Plays random attacks on random matches and prints the heap they hold and
+     * the collections they caused.
+     *
+     * @param name    The label of the measurement.
+     * @param matches The number of matches.
+     * @param moves   The number of attacks to play.
+     * @param empty   The heap used before the matches were created.
+     * @param move    Plays one attack.
+     */
+    private static void report(String name, int matches, int moves, long empty, Move move) {
+        Random random = new Random(42);
+        long collections = collections();
+        long collectionTime = collectionTime();
+        long start = System.nanoTime();
+        for (int i = 0; i < moves; i++) {
+            move.play(random, random.nextInt(matches));
+        }
+        double nanos = (double) (System.nanoTime() - start) / moves;
+        long held = heapUsed() - empty;
+        System.out.printf("%s: %6d MB heap for %d matches, %4d GCs (%5d ms) over %d attacks, %6.0f ns per attack%n",
+                name, held >> 20, matches, collections() - collections, collectionTime() - collectionTime, moves,
+                nanos);
+    }
+
+    private static long heapUsed() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long collections() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+    }
+
+    private static long collectionTime() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+    }
+}
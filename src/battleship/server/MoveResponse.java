@@ -0,0 +1,32 @@
+package battleship.server;
+
+import java.io.Serializable;
+
+/**
+ * Response to a move of a batch sent with processMoves.
+ */
+public class MoveResponse implements Serializable {
+    private final String response; // As returned by processMove
+    private final int index; // Log index of the move, -1 if it was not played
+
+    public MoveResponse(String response, int index) {
+        this.response = response;
+        this.index = index;
+    }
+
+    public String getResponse() {
+        return response;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        return "MoveResponse{" +
+                "response='" + response + '\'' +
+                ", index=" + index +
+                '}';
+    }
+}
@@ -0,0 +1,198 @@
+package battleship.server;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A node of the cluster, hosting one RaftServer per consensus group. The
+ * groups have the same members and run independently, but share what is per
+ * pair of nodes:
+ * <ul>
+ * <li>one RMI stub per peer node, through which every group sends its RPCs
+ * (the requests carry their group);</li>
+ * <li>the heartbeats: on every tick the heartbeats of all the groups led here
+ * towards a peer go in a single call, so idle groups cost one RPC per peer and
+ * tick, not one per group. Followers with entries to receive are served by
+ * their group as before;</li>
+ * <li>the leader placement: every few seconds a group led here hands over to
+ * its preferred leader (see ShardMap) if that node is caught up, which spreads
+ * the leaders, and the write load, over the nodes.</li>
+ * </ul>
+ */
+class RaftNode {
+    private static final long BALANCE_INTERVAL = 5000; // Between checks of the leader placement (ms)
+
+    private final int index; // Node ID
+    private final ShardMap shards;
+    private final RaftServer[] groups;
+    private final Registry reg; // RMI register
+    private final Map<Integer, RaftServerInterface> stubs = new ConcurrentHashMap<>(); // One per peer node
+    private final Set<Integer> beating = ConcurrentHashMap.newKeySet(); // Peers with a heartbeat call in flight
+    private final Timer timer = new Timer(true); // Runs the heartbeat and balance ticks
+    private final ExecutorService senders = Executors.newCachedThreadPool(); // Heartbeat calls and handovers
+
+    RaftNode(int index, ShardMap shards, ClusterConfiguration bootstrap) throws RemoteException {
+        this.index = index;
+        this.shards = shards;
+        this.reg = LocateRegistry.getRegistry("localhost", 1099);
+        this.groups = new RaftServer[shards.getGroups()];
+        for (int group = 0; group < groups.length; group++) {
+            groups[group] = new RaftServer(this, group, index, bootstrap);
+        }
+        heartbeatAfter(0);
+        if (groups.length > 1) {
+            balanceAfter(BALANCE_INTERVAL); // A single leader has nothing to be spread over
+        }
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    ShardMap getShards() {
+        return shards;
+    }
+
+    /**
+     * @param group A group.
+     * @return The server of this node in the group.
+     */
+    RaftServer group(int group) {
+        return groups[group];
+    }
+
+    RaftServer[] groups() {
+        return groups.clone();
+    }
+
+    /**
+     * Returns the RMI stub of a peer node, looking it up in the registry only on
+     * the first use (or after a failure evicted it). The stub is the group 0
+     * server of the peer, which hands the requests of other groups over.
+     *
+     * @param serverIndex The index of the peer.
+     * @return The peer stub.
+     * @throws RemoteException   If the registry cannot be reached.
+     * @throws NotBoundException If the peer is not registered.
+     */
+    RaftServerInterface peer(int serverIndex) throws RemoteException, NotBoundException {
+        RaftServerInterface stub = stubs.get(serverIndex);
+        if (stub == null) {
+            stub = (RaftServerInterface) reg.lookup(ShardMap.serverName(serverIndex, 0));
+            stubs.put(serverIndex, stub);
+        }
+        return stub;
+    }
+
+    /**
+     * Evicts the stub of a peer after a failed call, so the next call looks it
+     * up again.
+     *
+     * @param serverIndex The index of the peer.
+     */
+    void forget(int serverIndex) {
+        stubs.remove(serverIndex);
+    }
+
+    /**
+     * Stores the heartbeats of several groups, received in one call.
+     *
+     * @param requests The empty AppendEntries of the groups.
+     * @return The answer of each group.
+     */
+    AppendEntriesResponse[] heartbeat(AppendEntriesRequest[] requests) {
+        AppendEntriesResponse[] responses = new AppendEntriesResponse[requests.length];
+        for (int i = 0; i < requests.length; i++) {
+            responses[i] = groups[requests[i].getGroup()].storeEntries(requests[i]);
+        }
+        return responses;
+    }
+
+    /**
+     * Schedules the next heartbeat tick. The interval is the shortest of the
+     * groups led here, each following its measured RTTs.
+     *
+     * @param delay The delay before the tick (ms).
+     */
+    private void heartbeatAfter(long delay) {
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                Map<Integer, List<AppendEntriesRequest>> beats = new HashMap<>();
+                long interval = AdaptiveTimeouts.MAX_HEARTBEAT_INTERVAL;
+                for (RaftServer server : groups) {
+                    interval = Math.min(interval, server.collectHeartbeats(beats));
+                }
+                for (List<AppendEntriesRequest> requests : beats.values()) {
+                    for (AppendEntriesRequest request : requests) {
+                        request.heartbeatEvery(interval); // The followers bound their timeouts with it
+                    }
+                }
+                for (Map.Entry<Integer, List<AppendEntriesRequest>> beat : beats.entrySet()) {
+                    if (beating.add(beat.getKey())) { // A slow peer gets the next tick instead
+                        senders.execute(() -> sendHeartbeats(beat.getKey(), beat.getValue()));
+                    }
+                }
+                heartbeatAfter(interval);
+            }
+        }, delay);
+    }
+
+    /**
+     * Sends the heartbeats of all the groups towards a peer in one call, and
+     * hands each group its answer.
+     *
+     * @param follower The index of the peer.
+     * @param requests The heartbeats, one per group led here.
+     */
+    private void sendHeartbeats(int follower, List<AppendEntriesRequest> requests) {
+        try {
+            long start = System.nanoTime();
+            AppendEntriesRequest[] beats = requests.toArray(new AppendEntriesRequest[0]);
+            AppendEntriesResponse[] responses = peer(follower).heartbeat(beats);
+            double rtt = (System.nanoTime() - start) / 1e6;
+            for (int i = 0; i < responses.length; i++) {
+                groups[requests.get(i).getGroup()].heartbeatAnswered(follower, requests.get(i), responses[i], rtt);
+            }
+        } catch (NotBoundException | RemoteException e) {
+            forget(follower);
+            System.err.println("Failed to send heartbeats to: RaftServer" + follower);
+        } finally {
+            beating.remove(follower);
+        }
+    }
+
+    /**
+     * Schedules the next check of the leader placement.
+     *
+     * @param delay The delay before the check (ms).
+     */
+    private void balanceAfter(long delay) {
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                List<Runnable> handovers = new ArrayList<>();
+                for (RaftServer server : groups) {
+                    int preferred = server.preferredLeader();
+                    if (preferred >= 0) {
+                        handovers.add(() -> server.transferLeadership(preferred));
+                    }
+                }
+                handovers.forEach(senders::execute);
+                balanceAfter(BALANCE_INTERVAL);
+            }
+        }, delay);
+    }
+}
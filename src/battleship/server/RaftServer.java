@@ -1,605 +1,2329 @@
 package battleship.server;
 
 import battleship.GameGrid;
-import java.net.MalformedURLException;
+import battleship.MatchConfig;
+import java.io.File;
+import java.io.IOException;
 import java.rmi.*;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
 
 public class RaftServer extends UnicastRemoteObject implements RaftServerInterface {
-    private final Registry reg; // RMI register
+    private static final int MAX_BATCH = 1024; // Max entries per AppendEntries call
+    private static final int SNAPSHOT_LAG = 8192; // Lag after which a snapshot is cheaper than the entries
+    private static final int NEW_MATCH = -2; // Match id of the entries of a match being created, bound on append
+    private static final long REPLICATION_TIMEOUT = 1000; // Max wait for a commit (ms)
+    private static final long CATCH_UP_TIMEOUT = 10000; // Max wait for a new server to catch up (ms)
+    private static final long ARCHIVE_DELAY = 10000; // Time finished matches stay readable before archiving (ms)
+
+    private final RaftNode node; // Hosts the groups of this node, shares their peer stubs and heartbeats
+    private final int group; // Consensus group served
+    private final ShardMap shards; // Groups of the matches
     private final Log log; // Log
     private final int index; // Server ID
     private int currentTerm; // Term number
     private int votedFor;
     private boolean isLeader;
     private boolean isFollower;
-    private String[] boundNames; // Registered servers RMI
-    private Timer electionTimer;
+    private ClusterConfiguration baseConfiguration; // Membership before the first stored entry
+    private volatile ClusterConfiguration configuration; // Membership from the latest config entry
+    private int configIndex = -1; // Index of the latest config entry
+    private final Timer timer = new Timer(true); // Runs the election, lobby and archive tasks
+    private TimerTask electionTask;
+    private final AdaptiveTimeouts timeouts = new AdaptiveTimeouts(); // Heartbeat and election timing
+    private final Random random = new Random();
+    private volatile long leaderContact; // Last time a current leader contacted this node (ms)
+    private boolean transferring; // Leadership is being handed over, new entries are refused
     private final AtomicBoolean electionInProgress = new AtomicBoolean(false);
-    private final int[] playersId = { -1, -1 };
-    private final int[] shipsPlaced = { 0, 0 };
-    private GameGrid player1Grid;
-    private GameGrid player2Grid;
-    private int currentTurn;
-    private boolean isMatchFinished;
+    private final Map<Integer, Match> matches = new ConcurrentHashMap<>(); // Matches by id (leader only)
+    private final Map<Integer, MatchReplay> replays = new ConcurrentHashMap<>(); // Matches not rebuilt yet
+    private final ForkJoinPool replayPool = new ForkJoinPool(); // Rebuilds matches after a takeover
+    private final Set<Integer> archiving = ConcurrentHashMap.newKeySet(); // Finished matches being archived
+    private int compactedUpTo = -1; // Archive entries up to this index were reclaimed
+    private final Map<Long, MatchAssignment> assignments = new ConcurrentHashMap<>(); // Seats by lobby ticket
+    private final Lobby lobby = new Lobby();
+    private final ExecutorService notificationExecutor = Executors.newFixedThreadPool(4);
+    private int commitIndex = -1; // Highest log index known to be replicated on a majority
+    private int lastApplied = -1; // Highest log index applied to the grids
+    private int learnerApplied = -1; // Highest log index applied while learner, -1 when not a learner
+    private Snapshot snapshot; // Last installed snapshot, base of the log
+    private final Map<Integer, ReplicationProgress> progress = new ConcurrentHashMap<>();
+    private final ExecutorService replicationExecutor = Executors.newCachedThreadPool();
+    private final CommitPipeline pipeline; // Append, commit, apply and respond stages of the moves
+    private final AdmissionControl admission = new AdmissionControl(); // Rate limits of the moves
+    private final BotOpponent bots; // Plays the bot seats of the matches (leader only)
+    private final SpectatorHub spectators = new SpectatorHub(this, this::appliedIndex, this::publicId); // Streams
+    private final MatchArchive history; // Finished matches on disk, null if disabled
+    private final ExecutorService historyExecutor = Executors.newSingleThreadExecutor(); // Writes the history
 
     // Constructor
-    public RaftServer(int index) throws RemoteException {
+    RaftServer(RaftNode node, int group, int index, ClusterConfiguration bootstrap) throws RemoteException {
         super();
-        this.reg = LocateRegistry.getRegistry("localhost", 1099);
+        this.node = node;
+        this.group = group;
+        this.shards = node.getShards();
         this.log = new Log();
         this.index = index;
+        this.baseConfiguration = bootstrap;
+        this.configuration = bootstrap;
         this.currentTerm = 0;
         this.votedFor = -1;
         this.isLeader = false;
         this.isFollower = true;
+        this.history = openHistory(ShardMap.serverName(index, group));
+        this.pipeline = new CommitPipeline(new CommitPipeline.StateMachine() {
+            @Override
+            public void append(List<CommitPipeline.Proposal> batch) {
+                appendBatch(batch);
+            }
+
+            @Override
+            public int awaitCommit(int entryIndex) {
+                return awaitCommitIndex(entryIndex);
+            }
+
+            @Override
+            public void apply(List<CommitPipeline.Proposal> batch) {
+                applyCommitted(batch);
+            }
+        }, REPLICATION_TIMEOUT);
+        this.bots = new BotOpponent(pipeline, this::leaderTerm);
         resetElectionTimer();
     }
 
+    /**
+     * Opens the archive of finished matches of this server, in its own directory
+     * under -Dbattleship.archive.
+     * 
+     * @param name The registry name of the server.
+     * @return The archive, or null if disabled or unavailable.
+     */
+    private static MatchArchive openHistory(String name) {
+        if (MatchArchive.DIRECTORY == null) {
+            return null;
+        }
+        try {
+            return MatchArchive.open(new File(MatchArchive.DIRECTORY, name));
+        } catch (IOException e) {
+            System.err.println("Match archive disabled: " + e.getMessage());
+            return null;
+        }
+    }
+
     /*
      * Leader election methods
      */
 
     /**
      * Follower times out and starts an election.
-     * Increments the term, votes for itself, and requests votes from other servers.
+     * A pre-vote round first checks that a majority would elect this node, so a
+     * node coming back from a partition does not bump the term and depose a
+     * healthy leader. Then increments the term, votes for itself, and requests
+     * votes from other servers.
      */
     public void becomeCandidate() {
+        becomeCandidate(false);
+    }
+
+    /**
+     * Starts an election.
+     * 
+     * @param transfer true if the leader handed over leadership (TimeoutNow): the
+     *                 pre-vote is skipped and voters ignore their current leader.
+     */
+    private void becomeCandidate(boolean transfer) {
         if (!electionInProgress.getAndSet(true)) {
-            currentTerm++; // Increase term
-            votedFor = this.hashCode(); // Vote for self
-            isFollower = false;
+            ClusterConfiguration voters = configuration;
 
-            int votes = 1; // Candidate votes for itself
+            if (!transfer && !collectVotes(voters, true, false)) {
+                // The term is left untouched, so the cluster is not disturbed
+                electionInProgress.set(false);
+                resetElectionTimer();
+                return;
+            }
 
-            try {
-                boundNames = reg.list(); // Get all registered servers
-                String thisServerName = "RaftServer" + index; // Current server name
+            synchronized (this) {
+                currentTerm++; // Increase term
+                votedFor = index; // Vote for self
+                isFollower = false;
+            }
 
-                for (String boundName : boundNames) {
-                    if (!boundName.equals(thisServerName)) { // Avoid voting for itself
-                        try {
-                            RaftServerInterface follower = (RaftServerInterface) Naming
-                                    .lookup("//localhost/" + boundName);
-                            boolean voteGranted = follower
-                                    .requestVote(new RequestVoteRequest(currentTerm, this.hashCode()));
-                            if (voteGranted) {
-                                votes++;
-                            }
-                        } catch (NotBoundException | MalformedURLException e) {
-                            System.err.println("Failed to connect to " + boundName);
-                        }
+            // Check if received majority votes of the current configuration
+            if (collectVotes(voters, false, transfer) && !isFollower) {
+                becomeLeader();
+            } else {
+                becomeFollower(); // If election fails, return to follower
+            }
+        }
+    }
+
+    /**
+     * Asks the members of a configuration for their vote.
+     * 
+     * @param voters   The configuration.
+     * @param preVote  true to only ask whether the vote would be granted for the
+     *                 next term.
+     * @param transfer true if the election comes from a leadership transfer.
+     * @return true if a majority granted the vote, false otherwise.
+     */
+    private boolean collectVotes(ClusterConfiguration voters, boolean preVote, boolean transfer) {
+        RequestVoteRequest request;
+        synchronized (this) {
+            request = new RequestVoteRequest(group, preVote ? currentTerm + 1 : currentTerm, index,
+                    log.lastIndex(), log.lastTerm(), preVote, transfer);
+        }
+
+        int votes = 1; // Candidate votes for itself
+        for (int member : voters.getMembers()) {
+            if (member != index) { // Avoid voting for itself
+                try {
+                    if (peer(member).requestVote(request)) {
+                        votes++;
+                    }
+                } catch (NotBoundException | RemoteException e) {
+                    node.forget(member);
+                    System.err.println("Failed to connect to RaftServer" + member);
+                }
+            }
+        }
+        return votes >= voters.quorum();
+    }
+
+    /**
+     * Returns the RMI stub of a peer, shared by all the groups of this node.
+     * 
+     * @param serverIndex The index of the peer.
+     * @return The peer stub.
+     * @throws RemoteException   If the registry cannot be reached.
+     * @throws NotBoundException If the peer is not registered.
+     */
+    private RaftServerInterface peer(int serverIndex) throws RemoteException, NotBoundException {
+        return node.peer(serverIndex);
+    }
+
+    /**
+     * Transitions the node to leader state and starts sending heartbeats.
+     * The log is only partitioned by match here; the matches are rebuilt in
+     * parallel in the background, or on their first access.
+     */
+    @Override
+    public synchronized void becomeLeader() {
+        isFollower = false;
+
+        // Followers start optimistically right after our last entry and back off on mismatch
+        progress.clear();
+
+        // Rebuild the matches (follower servers do not store them)
+        releaseMatches();
+        replays.clear();
+        assignments.clear();
+        archiving.clear();
+        bots.clear();
+
+        if (snapshot != null) { // Start from the installed snapshot instead of an empty state
+            restoreSnapshot(snapshot);
+        }
+
+        for (int i = log.nextStored(log.firstIndex()); i < log.size(); i = log.nextStored(i + 1)) {
+            partitionLogEntry(i, replays, assignments);
+        }
+        lastApplied = log.lastIndex();
+        isLeader = true; // Only now, so requests never see a match of the log missing
+
+        for (MatchReplay replay : replays.values()) {
+            replayPool.execute(() -> match(replay.getMatchId()));
+        }
+
+        System.out.println("Node became leader of group " + group + " for term " + currentTerm + ", replaying "
+                + replays.size() + " matches");
+        signalFollowers(); // Asserts the leadership right away, the node sends the next heartbeats
+        if (BotOpponent.WAIT >= 0) {
+            fillLobbyAfter(currentTerm);
+        }
+    }
+
+    /**
+     * Assigns a log entry to the replay of its match. Only the lobby state
+     * (assignments) is rebuilt right away, since players may look it up before
+     * touching their match.
+     * The entry is read in place from the log columns, without materializing it.
+     * 
+     * @param logIndex The index of the log entry to process.
+     * @param replays  The replays of the matches, by match id.
+     * @param assigned The assignments of the players, by ticket.
+     */
+    private void partitionLogEntry(int logIndex, Map<Integer, MatchReplay> replays,
+            Map<Long, MatchAssignment> assigned) {
+        String command = log.commandAt(logIndex);
+        int matchId = log.matchAt(logIndex);
+        if (matchId >= 0 && !log.hasLiveEntries(matchId)) {
+            return; // Leftover of an archived match, in a segment still holding live entries
+        }
+
+        if (command.equals("create-match")) {
+            replays.put(logIndex, new MatchReplay(log, logIndex, log.posXAt(logIndex), readMatchConfig(logIndex)));
+        } else if (command.equals("join-match")) {
+            MatchReplay replay = replays.get(matchId);
+            long ticket = ((long) log.posXAt(logIndex) << 32) | (log.posYAt(logIndex) & 0xFFFFFFFFL);
+            replay.add(logIndex);
+            replay.seat(log.playerAt(logIndex), ticket);
+            if (log.targetAt(logIndex) != BotOpponent.SEAT_FLAG) {
+                assigned.put(ticket, new MatchAssignment(ticket, publicId(replay.getMatchId()),
+                        log.playerAt(logIndex), replay.getPlayers(), replay.getConfig()));
+            }
+        } else if (Log.isGameCommand(command) || command.equals("leave-match")) {
+            MatchReplay replay = replays.get(matchId);
+            if (replay != null) {
+                replay.add(logIndex);
+            }
+        } else if (command.equals("archive-match")) {
+            MatchReplay replay = replays.remove(matchId);
+            if (replay != null) {
+                for (long ticket : replay.getTickets()) {
+                    assigned.remove(ticket);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a match, restoring it from its replay if it was not rebuilt yet.
+     * 
+     * @param matchId The match id.
+     * @return The match, or null if it is unknown.
+     */
+    private Match match(int matchId) {
+        while (true) {
+            Match match = matches.get(matchId);
+            if (match != null) {
+                return match;
+            }
+            MatchReplay replay = replays.get(matchId);
+            if (replay == null) {
+                return matches.get(matchId); // Unknown, or installed meanwhile
+            }
+
+            Match restored = replay.restore(); // Outside the lock, replays only read their own copies
+            synchronized (this) {
+                // A newer takeover may have replaced the replay, then retry with the new one
+                if (replays.remove(matchId, replay)) {
+                    matches.put(matchId, restored);
+                    if (restored.isMatchFinished()) {
+                        scheduleArchive(matchId); // The previous leader may have failed before archiving it
+                    } else if (restored.hasBots()) {
+                        bots.play(restored); // The previous leader may have failed before its bot moved
+                    }
+                    return restored;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a match from the id known to the clients, if it belongs to the
+     * group of this server.
+     * 
+     * @param matchId The public match id.
+     * @return The match, or null if it is unknown or in another group.
+     */
+    private Match servedMatch(int matchId) {
+        int localId = shards.localId(group, matchId);
+        return (localId >= 0) ? match(localId) : null;
+    }
+
+    /**
+     * @param localId The index of the create-match entry of a match of this group.
+     * @return The id of the match known to the clients.
+     */
+    private int publicId(int localId) {
+        return shards.matchId(group, localId);
+    }
+
+    /**
+     * Restores every match still waiting for its replay, for callers that need
+     * the whole state.
+     * 
+     * @return All the matches.
+     */
+    private Collection<Match> allMatches() {
+        for (Integer matchId : replays.keySet()) {
+            match(matchId);
+        }
+        return matches.values();
+    }
+
+    /**
+     * Reads the configuration of a match from its create-match entry (players and
+     * board size) and the fleet entries right after it (ship length, number of ships).
+     * 
+     * @param createIndex The index of the create-match entry.
+     * @return The match configuration.
+     */
+    private MatchConfig readMatchConfig(int createIndex) {
+        List<Integer> fleet = new ArrayList<>();
+        for (int i = createIndex + 1; i < log.size() && log.commandAt(i).equals("fleet"); i++) {
+            for (int ship = 0; ship < log.posYAt(i); ship++) {
+                fleet.add(log.posXAt(i));
+            }
+        }
+        return new MatchConfig(log.posYAt(createIndex), fleet.stream().mapToInt(Integer::intValue).toArray(),
+                log.posXAt(createIndex));
+    }
+
+    /**
+     * Restores the matches stored in a snapshot.
+     * 
+     * @param base The snapshot to restore.
+     */
+    private void restoreSnapshot(Snapshot base) {
+        for (Match match : base.getMatches()) {
+            replays.put(match.getMatchId(), new MatchReplay(log, match)); // Copied when replayed
+            for (int seat = 0; seat < match.getPlayers(); seat++) {
+                long ticket = match.getTicket(seat);
+                if (match.isBot(seat)) {
+                    continue;
+                }
+                assignments.put(ticket, new MatchAssignment(ticket, publicId(match.getMatchId()), seat,
+                        match.getPlayers(), match.getConfig()));
+            }
+        }
+    }
+
+    /**
+     * Captures the applied game state so it can be shipped to a lagging follower.
+     * Only committed state is shipped: right after a takeover, the matches also
+     * hold the uncommitted tail replayed by becomeLeader, so the committed state
+     * is rebuilt from the log instead.
+     * 
+     * @return A snapshot of the state at lastApplied, or at most at commitIndex.
+     */
+    private synchronized Snapshot takeSnapshot() {
+        if (lastApplied > commitIndex) {
+            return committedSnapshot();
+        }
+        return new Snapshot(lastApplied, log.termAt(lastApplied), configurationAt(lastApplied),
+                allMatches().stream().map(Match::copy).toArray(Match[]::new));
+    }
+
+    /**
+     * Rebuilds the game state at the commit index from the installed snapshot and
+     * the log. If the commit index falls inside the entries creating a match, the
+     * snapshot stops right before that match.
+     * 
+     * @return A snapshot of the committed state.
+     */
+    private Snapshot committedSnapshot() {
+        int upTo = commitIndex;
+        if (upTo + 1 < log.size() && log.isStored(upTo + 1, upTo + 1)) {
+            String next = log.commandAt(upTo + 1);
+            if (next.equals("fleet") || next.equals("join-match")) {
+                upTo = log.matchAt(upTo + 1) - 1; // Before its create-match entry
+            }
+        }
+
+        Map<Integer, MatchReplay> committed = new HashMap<>();
+        if (snapshot != null) {
+            for (Match match : snapshot.getMatches()) {
+                committed.put(match.getMatchId(), new MatchReplay(log, match));
+            }
+        }
+        Map<Long, MatchAssignment> assigned = new HashMap<>(); // Not needed by the followers
+        for (int i = log.nextStored(log.firstIndex()); i <= upTo; i = log.nextStored(i + 1)) {
+            partitionLogEntry(i, committed, assigned);
+        }
+
+        List<Match> restored = new ArrayList<>();
+        for (MatchReplay replay : committed.values()) {
+            Match match = replay.restore();
+            restored.add(match.copy());
+            match.release();
+        }
+        return new Snapshot(upTo, log.termAt(upTo), configurationAt(upTo), restored.toArray(new Match[0]));
+    }
+
+    /**
+     * Computes the membership resulting from the config entries up to an index.
+     * 
+     * @param upTo The last log index to consider.
+     * @return The configuration in effect at that index.
+     */
+    private synchronized ClusterConfiguration configurationAt(int upTo) {
+        ClusterConfiguration result = baseConfiguration;
+        for (int i = log.nextStored(log.firstIndex()); i <= upTo && i < log.size(); i = log.nextStored(i + 1)) {
+            String command = log.commandAt(i);
+            if ("add-server".equals(command)) {
+                result = result.with(log.posXAt(i));
+            } else if ("add-learner".equals(command)) {
+                result = result.withLearner(log.posXAt(i));
+            } else if ("remove-server".equals(command)) {
+                result = result.without(log.posXAt(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Refreshes the configuration after the log changed. As in single-server Raft
+     * membership changes, a configuration is used as soon as it is in the log,
+     * committed or not.
+     */
+    private synchronized void refreshConfiguration() {
+        configIndex = -1;
+        for (int i = log.lastIndex(); i >= log.firstIndex(); i--) {
+            if (log.isStored(i, i) && Log.isConfigCommand(log.commandAt(i))) {
+                configIndex = i;
+                break;
+            }
+        }
+        configuration = configurationAt(log.lastIndex());
+    }
+
+    /**
+     * Heartbeat tick of the node: adds the heartbeat of this group for every
+     * follower that is up to date, to be sent with those of the other groups.
+     * Lagging followers are woken up instead, their sender carries the
+     * heartbeat with the entries they miss.
+     * 
+     * @param beats The heartbeats of the tick by follower, filled in.
+     * @return The heartbeat interval of this group, following the measured RTTs.
+     */
+    synchronized long collectHeartbeats(Map<Integer, List<AppendEntriesRequest>> beats) {
+        if (!isLeader) {
+            return AdaptiveTimeouts.MAX_HEARTBEAT_INTERVAL;
+        }
+        ClusterConfiguration current = configuration;
+        for (int[] followers : new int[][] { current.getMembers(), current.getLearners() }) {
+            for (int follower : followers) {
+                if (follower == index) {
+                    continue;
+                }
+                ReplicationProgress peer = progress.computeIfAbsent(follower,
+                        n -> new ReplicationProgress(log.size()));
+                int prevLogIndex = peer.nextIndex - 1;
+                if (peer.running.get() || prevLogIndex != log.lastIndex()
+                        || !log.isStored(prevLogIndex, prevLogIndex)) {
+                    signalReplication(follower); // Lagging, or being sent entries already
+                    continue;
+                }
+                beats.computeIfAbsent(follower, n -> new ArrayList<>()).add(new AppendEntriesRequest(group,
+                        currentTerm, index, prevLogIndex, log.termAt(prevLogIndex), new LogEntry[0], commitIndex,
+                        false));
+            }
+        }
+        return timeouts.heartbeatInterval();
+    }
+
+    /**
+     * Handles the answer of a follower to a heartbeat sent by the node.
+     * 
+     * @param follower The index of the follower.
+     * @param request  The heartbeat.
+     * @param response The answer of the follower.
+     * @param rtt      The duration of the call, shared with the other groups (ms).
+     */
+    void heartbeatAnswered(int follower, AppendEntriesRequest request, AppendEntriesResponse response, double rtt) {
+        timeouts.rttSample(follower, rtt);
+        if (stepDownIfStale(response.getTerm())) {
+            return;
+        }
+        synchronized (this) {
+            ReplicationProgress peer = progress.get(follower);
+            if (isLeader && currentTerm == request.getTerm() && peer != null && acknowledged(peer, response)) {
+                signalReplication(follower);
+            }
+        }
+    }
+
+    /**
+     * Retrieves the heartbeat interval and election timeout this node computed
+     * from the measured RTTs and heartbeat gaps.
+     * 
+     * @return The timing of this node.
+     */
+    @Override
+    public TimingInfo getTiming() {
+        return timeouts.info(System.currentTimeMillis());
+    }
+
+    /**
+     * Checks if this node is the leader.
+     * 
+     * @return true if the node is the leader, false otherwise.
+     */
+    @Override
+    public boolean isLeader() {
+        return isLeader;
+    }
+
+    /**
+     * Transitions the node to a follower state.
+     */
+    @Override
+    public void becomeFollower() {
+        System.out.println("Node became follower for term " + currentTerm);
+        if (isLeader) {
+            spectators.closeAll(); // Followers do not apply the log, spectators move to a learner
+        }
+        lobby.clear(); // Waiting players join again through the new leader
+        bots.clear();
+        isLeader = false;
+        isFollower = true;
+        votedFor = -1; // Reset vote
+        electionInProgress.set(false);
+        resetElectionTimer();
+    }
+
+    /**
+     * Resets the election timer, ensuring the follower waits for the leader's
+     * heartbeat. The timeout comes from the phi-accrual detector, with a random
+     * spread of up to half of it so that followers do not campaign together.
+     */
+    private void resetElectionTimer() {
+        long timeout = timeouts.electionTimeout();
+        synchronized (timer) {
+            if (electionTask != null) {
+                electionTask.cancel();
+            }
+            electionTask = new TimerTask() {
+                @Override
+                public void run() {
+                    // Servers outside the configuration (not yet added, or removed) never campaign
+                    if (isFollower && configuration.contains(index)) {
+                        becomeCandidate(); // Start election if heartbeat is missing
                     }
                 }
+            };
+            timer.schedule(electionTask, timeout + random.nextInt((int) (timeout / 2) + 1));
+        }
+    }
+
+    /**
+     * Accepts the sender of a current AppendEntries/InstallSnapshot as leader:
+     * adopts its term, steps down if needed and resets the election timer.
+     * 
+     * @param leaderTerm The term of the leader.
+     * @param interval   The heartbeat interval announced by the leader (ms), 0
+     *                   if none.
+     */
+    private void acceptLeader(int leaderTerm, long interval) {
+        if (leaderTerm > currentTerm) {
+            currentTerm = leaderTerm;
+            votedFor = -1;
+            timeouts.resetArrivals(); // A new leader, with its own rhythm
+        }
+        leaderContact = System.currentTimeMillis();
+        timeouts.heartbeatReceived(leaderContact, interval);
+        if (!isFollower) {
+            becomeFollower();
+        } else {
+            resetElectionTimer();
+        }
+    }
+
+    /**
+     * Steps down if a peer answered with a newer term.
+     * 
+     * @param term The term seen in a response.
+     * @return true if this node stepped down, false otherwise.
+     */
+    private synchronized boolean stepDownIfStale(int term) {
+        if (term > currentTerm) {
+            currentTerm = term;
+            becomeFollower();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Receives a vote request, for the server of its group on this node.
+     * 
+     * @param request The vote request containing the candidate's information.
+     * @return true if the vote is granted, false otherwise.
+     * @throws RemoteException If there is an issue with remote communication.
+     */
+    @Override
+    public boolean requestVote(RequestVoteRequest request) throws RemoteException {
+        return node.group(request.getGroup()).vote(request);
+    }
+
+    /**
+     * Handles a vote request (or pre-vote) from another node.
+     * The vote is refused while a leader is known to be alive, unless that leader
+     * is handing over, and to candidates whose log is behind ours.
+     * 
+     * @param request The vote request of the group.
+     * @return true if the vote is granted, false otherwise.
+     */
+    private synchronized boolean vote(RequestVoteRequest request) {
+        if (request.getTerm() < currentTerm) {
+            return false; // Reject outdated candidates
+        }
+
+        boolean leaderAlive = isLeader
+                || System.currentTimeMillis() - leaderContact < timeouts.minElectionTimeout();
+        if (leaderAlive && !request.isTransfer()) {
+            return false; // Do not let a disconnected node depose a working leader
+        }
+
+        boolean upToDate = request.getLastLogTerm() > log.lastTerm()
+                || (request.getLastLogTerm() == log.lastTerm() && request.getLastLogIndex() >= log.lastIndex());
+        if (request.isPreVote()) {
+            return upToDate; // Nothing changes on a pre-vote
+        }
+
+        if (request.getTerm() > currentTerm) {
+            currentTerm = request.getTerm();
+            votedFor = -1; // Reset votes
+            becomeFollower();
+        }
+
+        if (upToDate && (votedFor == -1 || votedFor == request.getCandidateId())) {
+            votedFor = request.getCandidateId(); // Vote for the candidate
+            resetElectionTimer();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Hands leadership over to another member without waiting for an election
+     * timeout, e.g. before restarting this node. New moves are refused while the
+     * target is caught up, then the target is told to campaign immediately.
+     * 
+     * @param target The index of the new leader, or -1 for the most up-to-date
+     *               follower.
+     * @return true if this node is no longer leader, false otherwise.
+     */
+    @Override
+    public boolean transferLeadership(int target) {
+        int term;
+        synchronized (this) {
+            if (!isLeader || transferring) {
+                return false;
+            }
+            if (target < 0) {
+                target = mostUpToDateFollower();
+            }
+            if (target == index || !configuration.contains(target)) {
+                return false;
+            }
+            transferring = true; // Moves are refused until the transfer ends
+            term = currentTerm;
+        }
+
+        try {
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + AdaptiveTimeouts.MAX_ELECTION_TIMEOUT;
+                signalReplication(target);
+                while (isLeader && matchIndexOf(target) < log.lastIndex()
+                        && System.currentTimeMillis() < deadline) {
+                    wait(20);
+                }
+                if (!isLeader || matchIndexOf(target) < log.lastIndex()) {
+                    return !isLeader;
+                }
+            }
+
+            peer(target).timeoutNow(group, term);
+            System.out.println("Leadership of group " + group + " handed over to RaftServer" + target);
+
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + AdaptiveTimeouts.MAX_ELECTION_TIMEOUT;
+                while (isLeader && System.currentTimeMillis() < deadline) {
+                    wait(20);
+                }
+                return !isLeader;
+            }
+        } catch (NotBoundException | RemoteException e) {
+            node.forget(target);
+            System.err.println("Failed to hand leadership over to RaftServer" + target);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            synchronized (this) {
+                transferring = false;
+            }
+        }
+    }
+
+    /**
+     * Starts an election right away, on request of the leader handing over.
+     * 
+     * @param group The group of the leader.
+     * @param term  The term of the leader.
+     */
+    @Override
+    public void timeoutNow(int group, int term) {
+        if (group != this.group) {
+            node.group(group).timeoutNow(group, term);
+            return;
+        }
+        synchronized (this) {
+            if (term != currentTerm || !isFollower || !configuration.contains(index)) {
+                return;
+            }
+        }
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                becomeCandidate(true);
+            }
+        }, 0);
+    }
+
+    /**
+     * Checks whether this group should be led by another node, to spread the
+     * leaders: the preferred leader of the group must be a member caught up to
+     * the commit index, so the handover is quick.
+     * 
+     * @return The preferred leader, or -1 if this node should keep leading.
+     */
+    synchronized int preferredLeader() {
+        if (!isLeader || transferring) {
+            return -1;
+        }
+        int preferred = shards.preferredLeader(group, configuration.getMembers());
+        return (preferred != index && preferred >= 0 && matchIndexOf(preferred) >= commitIndex) ? preferred : -1;
+    }
+
+    /**
+     * Finds the follower with the longest replicated log.
+     * 
+     * @return The index of the follower, or -1 if there is none.
+     */
+    private synchronized int mostUpToDateFollower() {
+        int best = -1;
+        for (int member : configuration.getMembers()) {
+            if (member != index && (best == -1 || matchIndexOf(member) > matchIndexOf(best))) {
+                best = member;
+            }
+        }
+        return best;
+    }
+
+    private synchronized int matchIndexOf(int follower) {
+        ReplicationProgress peer = progress.get(follower);
+        return (peer != null) ? peer.matchIndex : -1;
+    }
+
+    /**
+     * Leader receives a log entry, stores it, and propagates it to followers.
+     * 
+     * @param entry The log entry to be appended.
+     * @return true if the entry is successfully replicated to the majority, false
+     *         otherwise.
+     * @throws RemoteException If there is an issue with remote communication.
+     */
+    @Override
+    public boolean appendLogEntry(LogEntry entry) throws RemoteException {
+        return replicate(entry) >= 0;
+    }
+
+    /**
+     * Appends an entry to the leader log, wakes up the follower senders and waits
+     * until the entry is committed.
+     * 
+     * @param entry The log entry to be appended.
+     * @return The index of the committed entry, or -1 if it could not be committed.
+     */
+    private int replicate(LogEntry entry) {
+        int entryIndex;
+        synchronized (this) {
+            if (!isLeader || transferring) {
+                return -1;
+            }
+            log.append(entry);
+            entryIndex = log.lastIndex();
+        }
+        System.out.println("Appended log!");
+        return awaitCommit(entryIndex);
+    }
+
+    /**
+     * Wakes up the follower senders and waits until an entry is committed.
+     * 
+     * @param entryIndex The index of the entry.
+     * @return The entry index if committed, -1 otherwise.
+     */
+    private int awaitCommit(int entryIndex) {
+        signalFollowers();
+
+        synchronized (this) {
+            advanceCommitIndex(); // Single node cluster commits on its own
+            long deadline = System.currentTimeMillis() + REPLICATION_TIMEOUT;
+            long remaining = REPLICATION_TIMEOUT;
+            while (isLeader && commitIndex < entryIndex && remaining > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return commitIndex >= entryIndex ? entryIndex : -1;
+        }
+    }
+
+    /**
+     * Append stage of the pipeline: stores a batch of moves with a single lock
+     * acquisition and wakes up the follower senders once. The log lives in
+     * memory, so there is nothing to flush here. The entries of a new match get
+     * the index of its create-match entry as match id.
+     * Each proposal is checked on its own, so an invalid one is rejected without
+     * failing the rest of the batch.
+     * 
+     * @param batch The proposals to append, in order. The appended ones get the
+     *              log index of their first entry.
+     */
+    private void appendBatch(List<CommitPipeline.Proposal> batch) {
+        boolean appended = false;
+        synchronized (this) {
+            if (!isLeader || transferring) {
+                return;
+            }
+            for (CommitPipeline.Proposal proposal : batch) {
+                if (!canAppend(proposal.entries)) {
+                    continue;
+                }
+                proposal.index = log.size();
+                int created = -1;
+                for (LogEntry entry : proposal.entries) {
+                    if (entry.getMatchId() == NEW_MATCH) {
+                        if (entry.getCommand().equals("create-match")) {
+                            created = log.size();
+                        }
+                        entry.setMatchId(created);
+                    }
+                    log.append(entry);
+                }
+                appended = true;
+            }
+        }
+        if (appended) {
+            signalFollowers();
+        }
+    }
+
+    /**
+     * Checks the entries of a proposal before any of them is appended, so that a
+     * proposal is either stored whole or not at all.
+     * 
+     * @param entries The entries of the proposal.
+     * @return true if every entry is of the current term (not created before a
+     *         term change) and has a known command, false otherwise.
+     */
+    private boolean canAppend(LogEntry[] entries) {
+        for (LogEntry entry : entries) {
+            if (entry.getTerm() != currentTerm || !Log.isCommand(entry.getCommand())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Commit stage of the pipeline: waits (at most REPLICATION_TIMEOUT) until an
+     * entry is committed.
+     * 
+     * @param entryIndex The index of the entry.
+     * @return The commit index, possibly still below entryIndex, or -1 if this
+     *         node is no longer leader.
+     */
+    private synchronized int awaitCommitIndex(int entryIndex) {
+        advanceCommitIndex(); // Single node cluster commits on its own
+        long deadline = System.currentTimeMillis() + REPLICATION_TIMEOUT;
+        long remaining = REPLICATION_TIMEOUT;
+        while (isLeader && commitIndex < entryIndex && remaining > 0) {
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return isLeader ? commitIndex : -1;
+    }
+
+    /**
+     * Apply stage of the pipeline: applies committed moves to their matches in log
+     * order, and registers the matches created meanwhile. Moves of an older term
+     * were already replayed by becomeLeader (or dropped by the new leader), so they
+     * are skipped.
+     * 
+     * @param batch The committed proposals, in log order.
+     */
+    private synchronized void applyCommitted(List<CommitPipeline.Proposal> batch) {
+        for (CommitPipeline.Proposal proposal : batch) {
+            LogEntry entry = proposal.entry;
+            if (!isLeader || entry.getTerm() != currentTerm) {
+                continue;
+            }
+            if (entry.getCommand().equals("create-match")) {
+                Match created = new Match(proposal.index, entry.getPosX(), readMatchConfig(proposal.index));
+                for (int i = proposal.index + 1; i <= proposal.lastIndex(); i++) {
+                    if (log.commandAt(i).equals("join-match")) {
+                        seat(created, i);
+                    }
+                }
+                matches.put(proposal.index, created);
+                bots.play(created);
+                proposal.response = "Created";
+                lastApplied = proposal.lastIndex();
+                continue;
+            }
+            Match match = match(entry.getMatchId());
+            if (entry.getCommand().equals("archive-match")) {
+                forgetMatch(match);
+                proposal.response = "Archived";
+            } else if (match != null) {
+                boolean wasFinished = match.isMatchFinished();
+                proposal.response = match.apply(entry.getCommand(), entry.getPlayerIndex(), entry.getPosX(),
+                        entry.getPosY(), entry.getTarget());
+                spectators.publish(match, proposal.index, entry.getCommand(), entry.getPlayerIndex(),
+                        entry.getPosX(), entry.getPosY(), entry.getTarget(), proposal.response);
+                if (match.hasBots()) {
+                    bots.applied(match, entry.getPlayerIndex());
+                }
+                if (match.isMatchFinished()) {
+                    if (!wasFinished) {
+                        recordHistory(match, proposal.index);
+                    }
+                    scheduleArchive(match.getMatchId());
+                }
+            }
+            lastApplied = proposal.index;
+        }
+    }
+
+    /**
+     * Archives a finished match through the log after a grace period, so players
+     * still see the final boards. Once the archive-match entry commits, every node
+     * reclaims the entries of the match.
+     * 
+     * @param matchId The finished match.
+     */
+    private void scheduleArchive(int matchId) {
+        if (!archiving.add(matchId)) {
+            return; // Already scheduled
+        }
+        int term = currentTerm;
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                notificationExecutor.execute(() -> {
+                    if (!isLeader || currentTerm != term) {
+                        return; // The new leader schedules it again after replaying the match
+                    }
+                    if (pipeline.submit(new LogEntry(term, matchId, -1, "archive-match", 0, 0)) == null) {
+                        archiving.remove(matchId);
+                        Match match = matches.get(matchId);
+                        if (match != null) {
+                            scheduleArchive(matchId); // Retry later
+                        }
+                    }
+                });
+            }
+        }, ARCHIVE_DELAY);
+    }
+
+    /**
+     * Appends a match that just finished to the on-disk archive, in the
+     * background. Its moves are read from the log now, before the archive-match
+     * entry reclaims them. Matches whose first entries are only in a snapshot
+     * are skipped, their history is incomplete.
+     * 
+     * @param match     The finished match.
+     * @param lastIndex The index of the move that finished it.
+     */
+    private void recordHistory(Match match, int lastIndex) {
+        int matchId = match.getMatchId();
+        if (history == null) {
+            return;
+        }
+        if (matchId < log.firstIndex() || !log.isStored(matchId, matchId)) {
+            System.out.println("Match " + publicId(matchId) + " not archived, its history is in a snapshot");
+            return;
+        }
+
+        List<LogEntry> moves = new ArrayList<>();
+        for (int i : log.indexesOf(matchId, lastIndex)) {
+            String command = log.commandAt(i);
+            if (Log.isGameCommand(command) || command.equals("leave-match")) {
+                moves.add(log.get(i));
+            }
+        }
+        Match finished = match.copy();
+        long finishedAt = System.currentTimeMillis();
+        historyExecutor.execute(() -> {
+            try {
+                history.append(publicId(matchId), finished, moves.toArray(new LogEntry[0]), finishedAt);
+            } catch (IOException e) {
+                System.err.println("Failed to archive match " + publicId(matchId) + ": " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Removes an archived match and the assignments of its players.
+     * 
+     * @param match The match, may be null.
+     */
+    private void forgetMatch(Match match) {
+        if (match == null) {
+            return;
+        }
+        matches.remove(match.getMatchId());
+        for (int seat = 0; seat < match.getPlayers(); seat++) {
+            if (!match.isBot(seat)) {
+                assignments.remove(match.getTicket(seat));
+            }
+        }
+        admission.forget(match.getMatchId(), match.getPlayers());
+        bots.forget(match.getMatchId());
+        spectators.close(match.getMatchId());
+        match.release();
+        System.out.println("Match " + publicId(match.getMatchId()) + " archived");
+    }
+
+    /**
+     * Drops all the matches, giving their slots back to the store.
+     */
+    private void releaseMatches() {
+        matches.values().forEach(Match::release);
+        matches.clear();
+    }
+
+    /**
+     * Reclaims the entries of the matches whose archive-match entry is now
+     * committed. Runs on every node, so they all keep only the running matches.
+     */
+    private synchronized void compactCommitted() {
+        int stored = log.storedSegments();
+        int i = log.nextStored(Math.max(compactedUpTo + 1, log.firstIndex()));
+        while (i <= commitIndex && i < log.size()) {
+            if (log.commandAt(i).equals("archive-match")) {
+                log.archive(log.matchAt(i)); // May reclaim the segment of i itself
+            }
+            i = log.nextStored(i + 1);
+        }
+        compactedUpTo = Math.max(compactedUpTo, commitIndex);
+
+        if (log.storedSegments() < stored) {
+            System.out.println("Reclaimed " + (stored - log.storedSegments()) + " log segments, "
+                    + log.storedSegments() + " still stored");
+        }
+    }
+
+    /**
+     * Applies the committed entries to the matches when this node is a learner,
+     * so it can serve reads without being asked for votes or counted in the
+     * quorum. Voting followers do not keep the matches, a learner promoted to
+     * voter drops them.
+     */
+    private synchronized void applyAsLearner() {
+        if (!configuration.isLearner(index)) {
+            if (learnerApplied >= 0 && !isLeader) {
+                spectators.closeAll();
+                releaseMatches();
+                assignments.clear();
+                learnerApplied = -1;
+            }
+            return;
+        }
+
+        if (snapshot != null && learnerApplied < snapshot.getLastIncludedIndex()) {
+            // Entries before the snapshot are gone, start from its matches
+            spectators.closeAll();
+            releaseMatches();
+            assignments.clear();
+            for (Match match : snapshot.getMatches()) {
+                Match copy = match.liveCopy();
+                matches.put(copy.getMatchId(), copy);
+                for (int seat = 0; seat < copy.getPlayers(); seat++) {
+                    long ticket = copy.getTicket(seat);
+                    if (copy.isBot(seat)) {
+                        continue;
+                    }
+                    assignments.put(ticket, new MatchAssignment(ticket, publicId(copy.getMatchId()), seat,
+                            copy.getPlayers(), copy.getConfig()));
+                }
+            }
+            learnerApplied = snapshot.getLastIncludedIndex();
+        }
+
+        int i = log.nextStored(Math.max(learnerApplied + 1, log.firstIndex()));
+        while (i <= commitIndex && i < log.size()) {
+            applyLearnerEntry(i);
+            i = log.nextStored(i + 1);
+        }
+        learnerApplied = Math.max(learnerApplied, commitIndex);
+    }
+
+    /**
+     * Applies one committed entry on a learner, read in place from the log.
+     * The match is created with its first seat, once its fleet entries are
+     * committed too.
+     * 
+     * @param logIndex The index of the entry.
+     */
+    private void applyLearnerEntry(int logIndex) {
+        int matchId = log.matchAt(logIndex);
+        if (matchId < 0 || !log.hasLiveEntries(matchId)) {
+            return; // Config entry, or leftover of an archived match
+        }
+
+        String command = log.commandAt(logIndex);
+        Match match = matches.get(matchId);
+        if (command.equals("join-match")) {
+            if (match == null) {
+                match = new Match(matchId, log.posXAt(matchId), readMatchConfig(matchId));
+                matches.put(matchId, match);
+            }
+            seat(match, logIndex);
+        } else if (command.equals("archive-match")) {
+            forgetMatch(match);
+        } else if (match != null && (Log.isGameCommand(command) || command.equals("leave-match"))) {
+            boolean wasFinished = match.isMatchFinished();
+            String response = match.apply(command, log.playerAt(logIndex), log.posXAt(logIndex),
+                    log.posYAt(logIndex), log.targetAt(logIndex));
+            if (!wasFinished && match.isMatchFinished()) {
+                recordHistory(match, logIndex);
+            }
+            spectators.publish(match, logIndex, command, log.playerAt(logIndex), log.posXAt(logIndex),
+                    log.posYAt(logIndex), log.targetAt(logIndex), response);
+        }
+    }
+
+    /**
+     * Seats the player (or bot) of a committed join-match entry, read in place
+     * from the log, and records the assignment of a player.
+     * 
+     * @param match    The match being created.
+     * @param logIndex The index of the join-match entry.
+     */
+    private void seat(Match match, int logIndex) {
+        long ticket = ((long) log.posXAt(logIndex) << 32) | (log.posYAt(logIndex) & 0xFFFFFFFFL);
+        if (log.targetAt(logIndex) == BotOpponent.SEAT_FLAG) {
+            match.seatBot(log.playerAt(logIndex));
+        } else {
+            match.seat(log.playerAt(logIndex), ticket);
+            assignments.put(ticket, new MatchAssignment(ticket, publicId(match.getMatchId()), log.playerAt(logIndex),
+                    match.getPlayers(), match.getConfig()));
+        }
+    }
+
+    /**
+     * Signals the sender task of every other member of the configuration, and of
+     * every learner.
+     */
+    private void signalFollowers() {
+        ClusterConfiguration current = configuration;
+        for (int member : current.getMembers()) {
+            if (member != index) { // Avoid sending to self
+                signalReplication(member);
+            }
+        }
+        for (int learner : current.getLearners()) {
+            signalReplication(learner);
+        }
+    }
+
+    /**
+     * Asks the sender task of a follower to ship what it is missing, starting one
+     * if none is running. Each follower has at most one call in flight, so a slow
+     * or far-behind follower never delays the others.
+     * 
+     * @param follower The index of the follower.
+     */
+    private void signalReplication(int follower) {
+        ReplicationProgress peer = progress.computeIfAbsent(follower, n -> new ReplicationProgress(log.size()));
+        peer.requested = true;
+        if (peer.running.compareAndSet(false, true)) {
+            replicationExecutor.execute(() -> replicateTo(follower, peer));
+        }
+    }
+
+    /**
+     * Sender task of a follower: streams chunks until the follower is up to date or
+     * unreachable.
+     * 
+     * @param follower The index of the follower.
+     * @param peer     The replication progress of the follower.
+     */
+    private void replicateTo(int follower, ReplicationProgress peer) {
+        try {
+            boolean behind = true;
+            while (isLeader && (peer.requested || behind)) {
+                peer.requested = false;
+                behind = sendAppendEntries(follower, peer);
+            }
+        } finally {
+            peer.running.set(false);
+        }
+
+        // A signal may have arrived after the last check
+        if (peer.requested && isLeader && peer.running.compareAndSet(false, true)) {
+            replicationExecutor.execute(() -> replicateTo(follower, peer));
+        }
+    }
+
+    /**
+     * Sends one AppendEntries chunk (or a snapshot, if the follower lags too far)
+     * and updates the follower progress with the answer.
+     * 
+     * @param follower The index of the follower.
+     * @param peer     The replication progress of the follower.
+     * @return true if more entries should be sent right away, false otherwise.
+     */
+    private boolean sendAppendEntries(int follower, ReplicationProgress peer) {
+        AppendEntriesRequest request = null;
+        InstallSnapshotRequest snapshotRequest = null;
+
+        if (peer.compress == null) {
+            negotiateCompression(follower, peer);
+        }
+        boolean compress = peer.compress == Boolean.TRUE;
+
+        synchronized (this) {
+            if (!isLeader) {
+                return false;
+            }
+            int prevLogIndex = peer.nextIndex - 1;
+            int last = Math.min(log.lastIndex(), prevLogIndex + MAX_BATCH);
+            int snapshotIndex = Math.min(lastApplied, commitIndex); // Snapshots hold committed state only
+            // Entries of archived matches may be reclaimed, the previous entry only needs its term
+            if (peer.nextIndex < log.firstIndex() || snapshotIndex - peer.nextIndex > SNAPSHOT_LAG
+                    || log.termAt(prevLogIndex) < 0 || !log.isStored(prevLogIndex + 1, last)) {
+                snapshotRequest = new InstallSnapshotRequest(group, currentTerm, index, takeSnapshot(), compress);
+            } else {
+                request = new AppendEntriesRequest(group, currentTerm, index, prevLogIndex,
+                        log.termAt(prevLogIndex), log.entries(prevLogIndex + 1, last), commitIndex, compress);
+            }
+        }
+
+        AppendEntriesResponse response;
+        try {
+            RaftServerInterface stub = peer(follower);
+            if (snapshotRequest != null) {
+                response = stub.installSnapshot(snapshotRequest);
+            } else {
+                long start = System.nanoTime();
+                response = stub.appendEntries(request);
+                timeouts.rttSample(follower, (System.nanoTime() - start) / 1e6);
+            }
+        } catch (NotBoundException | RemoteException e) {
+            node.forget(follower);
+            System.err.println("Failed to send log entries to: RaftServer" + follower);
+            return false;
+        }
+
+        if (stepDownIfStale(response.getTerm())) {
+            return false;
+        }
+
+        synchronized (this) {
+            return acknowledged(peer, response);
+        }
+    }
+
+    /**
+     * Updates the progress of a follower with its answer to an AppendEntries or
+     * InstallSnapshot call. Called with the lock held.
+     * 
+     * @param peer     The replication progress of the follower.
+     * @param response The answer of the follower.
+     * @return true if more entries should be sent right away, false otherwise.
+     */
+    private boolean acknowledged(ReplicationProgress peer, AppendEntriesResponse response) {
+        if (response.isSuccess()) {
+            peer.matchIndex = Math.max(peer.matchIndex, response.getLastLogIndex());
+            peer.nextIndex = peer.matchIndex + 1;
+            advanceCommitIndex();
+            notifyAll(); // Wakes up servers waiting to be added
+            return peer.nextIndex <= log.lastIndex();
+        }
+
+        // Log mismatch: jump back to the follower's hint and retry
+        peer.nextIndex = Math.max(0, Math.min(peer.nextIndex - 1, response.getLastLogIndex() + 1));
+        return true;
+    }
+
+    /**
+     * Agrees with a follower on compressing the replication stream: both sides
+     * must have it enabled. Until the follower answers, entries go uncompressed.
+     * 
+     * @param follower The index of the follower.
+     * @param peer     The replication progress of the follower.
+     */
+    private void negotiateCompression(int follower, ReplicationProgress peer) {
+        try {
+            peer.compress = peer(follower).negotiateCompression(BlockCompression.ENABLED);
+        } catch (NotBoundException | RemoteException e) {
+            node.forget(follower); // Retried with the next call
+        }
+    }
+
+    /**
+     * Answers the leader's compression offer.
+     * 
+     * @param offered true if the leader would compress the stream.
+     * @return true if the stream to this node is compressed, false otherwise.
+     */
+    @Override
+    public boolean negotiateCompression(boolean offered) {
+        return offered && BlockCompression.ENABLED;
+    }
+
+    /**
+     * Moves commitIndex to the highest index stored on a majority of the servers.
+     * Only entries of the current term are committed by counting replicas.
+     */
+    private synchronized void advanceCommitIndex() {
+        int[] members = configuration.getMembers();
+        if (members.length == 0) {
+            return;
+        }
+
+        int[] matched = new int[members.length];
+        for (int i = 0; i < members.length; i++) {
+            if (members[i] == index) {
+                matched[i] = log.lastIndex();
+            } else {
+                ReplicationProgress peer = progress.get(members[i]);
+                matched[i] = (peer != null) ? peer.matchIndex : -1;
+            }
+        }
+        Arrays.sort(matched);
+
+        // The value at this position is stored on a majority of the configuration
+        int majorityIndex = matched[members.length - configuration.quorum()];
+        if (majorityIndex > commitIndex && log.termAt(majorityIndex) == currentTerm) {
+            commitIndex = majorityIndex;
+            notifyAll();
+            compactCommitted();
+
+            // A leader removed from the configuration hands over once the change is committed
+            if (!configuration.contains(index) && configIndex <= commitIndex) {
+                System.out.println("Node removed from the cluster, stepping down");
+                becomeFollower();
+            }
+        }
+    }
+
+    /**
+     * Receives the entries of a leader, for the server of its group on this node.
+     * 
+     * @param request The AppendEntries request.
+     * @return The outcome, with the follower's term and matched (or hint) index.
+     * @throws RemoteException If there is an issue with remote communication.
+     */
+    @Override
+    public AppendEntriesResponse appendEntries(AppendEntriesRequest request) throws RemoteException {
+        return node.group(request.getGroup()).storeEntries(request);
+    }
+
+    /**
+     * Receives the heartbeats of the groups a peer node leads, in one call.
+     * 
+     * @param requests The empty AppendEntries of the groups.
+     * @return The answer of each group.
+     * @throws RemoteException If there is an issue with remote communication.
+     */
+    @Override
+    public AppendEntriesResponse[] heartbeat(AppendEntriesRequest[] requests) throws RemoteException {
+        return node.heartbeat(requests);
+    }
+
+    /**
+     * Follower stores the entries sent by the leader, after checking that its log
+     * matches the leader's at prevLogIndex. Conflicting entries are truncated.
+     * Also works as heartbeat when there are no entries.
+     * 
+     * @param request The AppendEntries request of the group.
+     * @return The outcome, with the follower's term and matched (or hint) index.
+     */
+    synchronized AppendEntriesResponse storeEntries(AppendEntriesRequest request) {
+        if (request.getTerm() < currentTerm) {
+            return new AppendEntriesResponse(currentTerm, false, log.lastIndex()); // Reject outdated leaders
+        }
+        acceptLeader(request.getTerm(), request.getHeartbeatInterval());
+
+        int prevLogIndex = request.getPrevLogIndex();
+        if (prevLogIndex > log.lastIndex()) {
+            return new AppendEntriesResponse(currentTerm, false, log.lastIndex()); // Missing entries
+        }
+
+        int prevTerm = log.termAt(prevLogIndex);
+        if (prevLogIndex >= log.firstIndex() && prevTerm != request.getPrevLogTerm()) {
+            // Skip the whole conflicting term so the leader does not back off one entry at a time
+            int hint = prevLogIndex - 1;
+            while (hint >= log.firstIndex() && log.termAt(hint) == prevTerm) {
+                hint--;
+            }
+            return new AppendEntriesResponse(currentTerm, false, hint);
+        }
+
+        LogEntry[] entries = request.getEntries();
+        boolean membershipChanged = false;
+        for (int i = 0; i < entries.length; i++) {
+            int entryIndex = prevLogIndex + 1 + i;
+            if (entryIndex < log.firstIndex()) {
+                continue; // Already covered by the snapshot
+            }
+            if (entryIndex <= log.lastIndex()) {
+                if (log.termAt(entryIndex) == entries[i].getTerm()) {
+                    continue; // Already stored
+                }
+                membershipChanged |= entryIndex <= configIndex; // A config entry may be dropped
+                log.truncateFrom(entryIndex);
+            }
+            log.append(entries[i]);
+            membershipChanged |= Log.isConfigCommand(entries[i].getCommand());
+        }
+        if (membershipChanged) {
+            refreshConfiguration();
+        }
+
+        int matchIndex = prevLogIndex + entries.length;
+        int newCommit = Math.min(request.getLeaderCommit(), matchIndex); // A late request may know less
+        if (newCommit > commitIndex) {
+            commitIndex = newCommit;
+            applyAsLearner(); // Before the entries of archived matches are reclaimed
+            compactCommitted();
+        }
+        if (entries.length > 0) {
+            System.out.println("Follower " + index + " stored logs up to " + matchIndex);
+        }
+        return new AppendEntriesResponse(currentTerm, true, matchIndex);
+    }
+
+    /**
+     * Receives the snapshot of a leader, for the server of its group on this node.
+     * 
+     * @param request The InstallSnapshot request.
+     * @return The outcome, with the follower's term and the snapshot index.
+     * @throws RemoteException If there is an issue with remote communication.
+     */
+    @Override
+    public AppendEntriesResponse installSnapshot(InstallSnapshotRequest request) throws RemoteException {
+        return node.group(request.getGroup()).storeSnapshot(request);
+    }
 
-                // Check if received majority votes
-                if (votes > (boundNames.length / 2)) {
-                    becomeLeader();
-                } else {
-                    becomeFollower(); // If election fails, return to follower
-                }
-            } catch (ConnectException ex) {
-                System.out.println("Need to reconnect...");
-                becomeFollower(); // Become a follower after reconnecting
-            } catch (RemoteException e) {
-                System.err.println("Error in candidate procedure");
-                e.printStackTrace();
-            }
+    /**
+     * Follower replaces its log prefix with the leader's snapshot, used when it
+     * lags too far behind to be caught up entry by entry.
+     * 
+     * @param request The InstallSnapshot request of the group.
+     * @return The outcome, with the follower's term and the snapshot index.
+     */
+    private synchronized AppendEntriesResponse storeSnapshot(InstallSnapshotRequest request) {
+        if (request.getTerm() < currentTerm) {
+            return new AppendEntriesResponse(currentTerm, false, log.lastIndex()); // Reject outdated leaders
+        }
+        acceptLeader(request.getTerm(), 0);
+
+        Snapshot received = request.getSnapshot();
+        int lastIncludedIndex = received.getLastIncludedIndex();
+        if (lastIncludedIndex >= log.firstIndex()) {
+            snapshot = received;
+            log.installSnapshot(lastIncludedIndex, received.getLastIncludedTerm());
+            baseConfiguration = received.getConfiguration();
+            refreshConfiguration();
+            commitIndex = Math.max(commitIndex, lastIncludedIndex);
+            compactedUpTo = Math.max(compactedUpTo, lastIncludedIndex); // Archived matches are not in the snapshot
+            applyAsLearner();
+            System.out.println("Follower " + index + " installed snapshot up to " + lastIncludedIndex);
         }
+        return new AppendEntriesResponse(currentTerm, true, lastIncludedIndex);
     }
 
     /**
-     * Transitions the node to leader state and starts sending heartbeats.
+     * Game Logic Methods
      */
-    @Override
-    public void becomeLeader() {
-        isFollower = false;
-        isLeader = true;
 
-        // Create new GameGrid (follower servers do not store grids)
-        player1Grid = new GameGrid();
-        player2Grid = new GameGrid();
-
-        if (log.get(0) != null) { // If match is already started, rebuild grids based on logs
-            for (int i = 0; i < log.size(); i++) {
-                processLogEntry(log.get(i));
-            }
+    /**
+     * Puts a player in the matchmaking lobby. When enough players of the same
+     * bucket are waiting, a match is created through the log and every player is
+     * notified through its listener. The call that completes a group returns once
+     * the match is created (or its creation timed out). Retrying with the same
+     * ticket is safe.
+     * 
+     * @param ticket   Unique id chosen by the client.
+     * @param bucket   Matchmaking bucket (e.g. skill or latency tier).
+     * @param config   Board size and fleet wanted, null for the default 6x6 match.
+     * @param listener Callback for the assignment, may be null (then poll).
+     * @return true if the request was accepted, false if this node is not leader.
+     * @throws IllegalArgumentException If the ticket is the one reserved for the bots.
+     */
+    @Override
+    public boolean joinLobby(long ticket, int bucket, MatchConfig config, MatchListener listener) {
+        if (ticket == BotOpponent.TICKET) {
+            throw new IllegalArgumentException("Ticket " + ticket + " is reserved for the bots");
+        }
+        if (!isLeader) {
+            return false;
+        }
 
-            /*
-             * If the last log entry corresponds to player 0 and not still placing ships,
-             * set the current turn to player 1 viceversa not needed because currentTurn is
-             * initialized to 0 in constructor
-             */
-            if ((log.getLastElem().getPlayerIndex()) == 0 && !log.getLastElem().getCommand().equals("place")) {
-                currentTurn = 1;
-            }
+        MatchAssignment assigned = assignments.get(ticket);
+        if (assigned != null) { // Already paired, e.g. retry after a failover
+            notifyAssignment(listener, assigned);
+            return true;
         }
 
-        System.out.println("Node became leader for term " + currentTerm);
-        startHeartbeat();
+        MatchConfig wanted = (config != null) ? config : MatchConfig.DEFAULT;
+        Lobby.Ticket[] group = lobby.join(new Lobby.Ticket(ticket, bucket, wanted, listener));
+        CommitPipeline.Proposal created = (group != null) ? createMatch(group) : null;
+        if (created != null) {
+            pipeline.await(created, System.currentTimeMillis() + pipeline.getTimeout());
+        }
+        return true;
     }
 
     /**
-     * Processes a single log entry and updates the corresponding game grid.
+     * Proposes the creation of a match for a group of paired players through the
+     * commit pipeline, which registers the match once it is committed. The players
+     * are notified then; if this node loses leadership first, the lobby forgets
+     * them and they join again through the new leader.
      * 
-     * @param entry The log entry to process.
+     * @param group The tickets of the players, in seat order.
+     * @return The proposal, completed once the match is created, or null if this
+     *         node cannot create it.
      */
-    private void processLogEntry(LogEntry entry) {
-        GameGrid targetGrid;
-
-        if ("attack".equals(entry.getCommand())) {
-            targetGrid = (entry.getPlayerIndex() == 0) ? player2Grid : player1Grid;
-            targetGrid.attack(entry.getPosX(), entry.getPosY());
-        } else {
-            targetGrid = (entry.getPlayerIndex() == 0) ? player1Grid : player2Grid;
-            String result = targetGrid.placeShip(entry.getPosX(), entry.getPosY());
+    private CommitPipeline.Proposal createMatch(Lobby.Ticket[] group) {
+        int term;
+        synchronized (this) {
+            if (!isLeader || transferring) {
+                lobby.release(group);
+                return null;
+            }
+            term = currentTerm;
+        }
 
-            if (result.equals("Placed")) {
-                shipsPlaced[entry.getPlayerIndex()]++;
+        // The match id is the index of its create-match entry (bound when appended), which is
+        // followed by the fleet as (ship length, number of ships) runs and by the seats
+        MatchConfig config = group[0].config;
+        List<LogEntry> entries = new ArrayList<>();
+        entries.add(new LogEntry(term, NEW_MATCH, -1, "create-match", group.length, config.getSize()));
+        int[] fleet = config.getFleet();
+        int start = 0;
+        while (start < fleet.length) {
+            int end = start;
+            while (end < fleet.length && fleet[end] == fleet[start]) {
+                end++;
             }
+            entries.add(new LogEntry(term, NEW_MATCH, -1, "fleet", fleet[start], end - start));
+            start = end;
+        }
+        for (int seat = 0; seat < group.length; seat++) {
+            long ticket = group[seat].id;
+            entries.add(new LogEntry(term, NEW_MATCH, seat, "join-match", (int) (ticket >>> 32), (int) ticket,
+                    group[seat].bot ? BotOpponent.SEAT_FLAG : -1));
         }
+
+        long botSeats = Arrays.stream(group).filter(ticket -> ticket.bot).count();
+        CommitPipeline.Proposal proposal = pipeline.propose(entries.toArray(new LogEntry[0]));
+        proposal.result().whenComplete((response, e) -> {
+            lobby.release(group);
+            if (response == null) {
+                return; // Not committed under this leadership, the players join again
+            }
+            System.out.println("Match " + publicId(proposal.index) + " created for " + group.length + " players"
+                    + ((botSeats > 0) ? " (" + botSeats + " bots)" : ""));
+            for (Lobby.Ticket ticket : group) {
+                if (!ticket.bot) {
+                    notifyAssignment(ticket.listener, assignments.get(ticket.id));
+                }
+            }
+        });
+        return proposal;
     }
 
     /**
-     * Starts the heartbeat mechanism where the leader sends periodic heartbeats to
-     * followers.
+     * Schedules the next lobby check of a leadership term: players who waited
+     * longer than the bot wait get bots in the seats nobody took.
+     * 
+     * @param term The term of the leadership.
      */
-    private void startHeartbeat() {
-        Timer heartbeatTimer = new Timer();
-        heartbeatTimer.scheduleAtFixedRate(new TimerTask() {
+    private void fillLobbyAfter(int term) {
+        timer.schedule(new TimerTask() {
             @Override
             public void run() {
-                if (isLeader) {
-                    try {
-                        boundNames = reg.list(); // Get all registered servers
-                        for (String name : boundNames) {
-                            if (!name.equals("RaftServer" + index)) { // Avoid sending to self
-                                try {
-                                    RaftServerInterface follower = (RaftServerInterface) Naming
-                                            .lookup("//localhost/" + name);
-                                    follower.receiveHeartbeat(currentTerm);
-                                } catch (NotBoundException | RemoteException | MalformedURLException e) {
-                                    System.err.println("Failed to send heartbeat to: " + name);
-                                }
-                            }
-                        }
-                    } catch (RemoteException e) {
-                        System.err.println("Error accessing RMI registry.");
-                        e.printStackTrace();
-                    }
+                if (!isLeader || currentTerm != term) {
+                    return;
+                }
+                for (Lobby.Ticket[] group : lobby.fillWithBots(System.currentTimeMillis() - BotOpponent.WAIT)) {
+                    notificationExecutor.execute(() -> createMatch(group));
                 }
+                fillLobbyAfter(term);
             }
-        }, 0, 150); // Heartbeat interval: 150ms
+        }, BotOpponent.LOBBY_CHECK);
     }
 
     /**
-     * Checks if this node is the leader.
+     * Sends an assignment to a waiting client without blocking the caller.
      * 
-     * @return true if the node is the leader, false otherwise.
+     * @param listener   The client callback, may be null.
+     * @param assignment The assignment to send.
      */
-    @Override
-    public boolean isLeader() {
-        return isLeader;
+    private void notifyAssignment(MatchListener listener, MatchAssignment assignment) {
+        if (listener == null) {
+            return;
+        }
+        notificationExecutor.execute(() -> {
+            try {
+                listener.matchAssigned(assignment);
+            } catch (RemoteException e) {
+                System.err.println("Failed to notify " + assignment + ", client will poll");
+            }
+        });
     }
 
     /**
-     * Transitions the node to a follower state.
+     * Retrieves the match assignment of a lobby ticket.
+     * 
+     * @param ticket The ticket used to join the lobby.
+     * @return The assignment, or null if the player is still waiting.
      */
     @Override
-    public void becomeFollower() {
-        System.out.println("Node became follower for term " + currentTerm);
-        isLeader = false;
-        isFollower = true;
-        votedFor = -1; // Reset vote
-        electionInProgress.set(false);
-        resetElectionTimer();
+    public MatchAssignment getAssignment(long ticket) {
+        return assignments.get(ticket);
     }
 
     /**
-     * Resets the election timer, ensuring the follower waits for the leader's
-     * heartbeat.
+     * Processes a move from a player.
+     * First check if command in not out of bound and if not
+     * 
+     * @param matchId The match the move belongs to.
+     * @param move    The move command in format "command,x,y", "place,x,y,v"
+     *                to place a ship vertically ("h", the default, horizontally),
+     *                or "attack,x,y,target" to attack a given player (optional
+     *                when a single opponent is left).
+     * @param id      The ID of the player making the move.
+     * @return A response message indicating the result of the move,
+     *         "!! Too many moves, retry after N ms !!" if the player, the match
+     *         or the leader is over its limits, or "!! Not the leader !!" (the
+     *         move is not played in both cases).
      */
-    private void resetElectionTimer() {
-        if (electionTimer != null) {
-            electionTimer.cancel();
+    @Override
+    public String processMove(int matchId, String move, int id) {
+        String[] response = new String[1];
+        LogEntry entry = toMoveEntry(matchId, move, id, response);
+        if (entry == null) {
+            return response[0];
         }
-        electionTimer = new Timer();
-        electionTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                if (isFollower) {
-                    becomeCandidate(); // Start election if heartbeat is missing
-                }
-            }
-        }, 300 + new Random().nextInt(200)); // Random timeout: 300-500ms
+
+        try {
+            // Appended, replicated and applied by the pipeline, together with concurrent moves
+            response[0] = pipeline.submit(entry);
+        } finally {
+            admission.release();
+        }
+        return (response[0] != null) ? response[0] : "";
     }
 
     /**
-     * Handles receiving a heartbeat and resets the election timer.
-     * 
-     * @param currentTerm The term of the leader sending the heartbeat.
+     * Processes several moves in one call, e.g. of the many matches a client
+     * drives. They are all in the pipeline at once, in the given order, so the
+     * call costs about one commit whatever its size.
+     *
+     * @param matchIds The match of each move.
+     * @param moves    The moves, in the format of processMove.
+     * @param ids      The player of each move.
+     * @return The response of each move, as returned by processMove, with its
+     *         log index: the events of the match up to that index include the
+     *         move.
      */
     @Override
-    public void receiveHeartbeat(int currentTerm) throws RemoteException {
-        if (this.currentTerm < currentTerm) {
-            this.currentTerm = currentTerm;
+    public MoveResponse[] processMoves(int[] matchIds, String[] moves, int[] ids) {
+        MoveResponse[] responses = new MoveResponse[moves.length];
+        List<CommitPipeline.Proposal> proposals = new ArrayList<>(moves.length);
+        String[] response = new String[1];
+        for (int i = 0; i < moves.length; i++) {
+            LogEntry entry = null;
+            if (i < matchIds.length && i < ids.length) {
+                entry = toMoveEntry(matchIds[i], moves[i], ids[i], response);
+            } else {
+                response[0] = "!! Malformed move, no match or player given !!";
+            }
+            if (entry == null) {
+                responses[i] = new MoveResponse(response[0], -1);
+                proposals.add(null);
+            } else {
+                CommitPipeline.Proposal proposal = pipeline.propose(entry);
+                proposal.result().whenComplete((applied, error) -> admission.release());
+                proposals.add(proposal);
+            }
         }
-        resetElectionTimer();
+
+        long deadline = System.currentTimeMillis() + pipeline.getTimeout();
+        for (int i = 0; i < moves.length; i++) {
+            CommitPipeline.Proposal proposal = proposals.get(i);
+            if (proposal != null) {
+                String applied = pipeline.await(proposal, deadline);
+                responses[i] = (applied != null) ? new MoveResponse(applied, proposal.index)
+                        : new MoveResponse("", -1);
+            }
+        }
+        return responses;
     }
 
     /**
-     * Handles a vote request from another node.
-     * 
-     * @param request The vote request containing the candidate's information.
-     * @return true if the vote is granted, false otherwise.
+     * Checks a move and turns it into its log entry. An admitted move holds an
+     * admission slot, to release once it is done.
+     *
+     * @param matchId  The match the move belongs to.
+     * @param move     The move command.
+     * @param id       The player making the move.
+     * @param response Receives the rejection message in its first slot.
+     * @return The entry, or null if the move is rejected.
      */
-    @Override
-    public boolean requestVote(RequestVoteRequest request) throws RemoteException {
-        if (request.getTerm() < currentTerm) {
-            return false; // Reject outdated candidates
+    private LogEntry toMoveEntry(int matchId, String move, int id, String[] response) {
+        if (!isLeader) {
+            response[0] = "!! Not the leader !!";
+            return null;
         }
 
-        if (request.getTerm() > currentTerm) {
-            currentTerm = request.getTerm();
-            votedFor = -1; // Reset votes
-            becomeFollower();
+        String[] splitMove = (move != null) ? move.split(",") : new String[0];
+        if (splitMove.length < 3) {
+            response[0] = "!! Malformed move, expected command,x,y !!";
+            return null;
+        }
+        String command = splitMove[0];
+        int posX;
+        int posY;
+        int requested = -1; // Target of an attack, -1 if not given
+        try {
+            posX = Integer.parseInt(splitMove[1]);
+            posY = Integer.parseInt(splitMove[2]);
+            if (command.equals("attack") && splitMove.length > 3) {
+                requested = Integer.parseInt(splitMove[3]);
+            }
+        } catch (NumberFormatException e) {
+            response[0] = "!! Malformed move, coordinates must be numbers !!";
+            return null;
         }
+        int target = -1;
 
-        if (votedFor == -1) {
-            votedFor = request.getCandidateId(); // Vote for the candidate
-            return true;
+        if (command.equals("place") && splitMove.length > 3 && splitMove[3].equals("v")) {
+            command = "place-vertical";
         }
 
-        return false;
-    }
+        if (!Log.isGameCommand(command)) {
+            response[0] = "Unknown command: " + command;
+            return null;
+        }
 
-    /**
-     * Leader receives a log entry, stores it, and propagates it to followers.
-     * 
-     * @param entry The log entry to be appended.
-     * @return true if the entry is successfully replicated to the majority, false
-     *         otherwise.
-     * @throws RemoteException If there is an issue with remote communication.
-     */
-    @Override
-    public boolean appendLogEntry(LogEntry entry) throws RemoteException {
-        if (isLeader) {
-            log.append(entry);
-            System.out.println("Appended log!");
+        Match match = servedMatch(matchId);
+        if (match == null) {
+            response[0] = "Unknown match: " + matchId;
+            return null;
+        }
+        if (!match.hasSeat(id)) {
+            response[0] = "Unknown player: " + id;
+            return null;
+        }
 
-            int successCount = 1; // Leader itself counts as 1
+        int size = match.getConfig().getSize();
+        if (posX < 0 || posY < 0 || posX >= size || posY >= size) {
+            response[0] = "!! Out of bound, grid have max " + (size - 1) + " row/cols !!";
+            return null;
+        }
 
-            try {
-                boundNames = reg.list(); // Get all registered servers
-                for (String name : boundNames) {
-                    if (!name.equals("RaftServer" + index)) { // Avoid sending to self
-                        try {
-                            RaftServerInterface follower = (RaftServerInterface) Naming
-                                    .lookup("//localhost/" + name);
-                            if (follower.receiveLogEntry(entry)) {
-                                successCount++;
-                            }
-                        } catch (NotBoundException | RemoteException | MalformedURLException e) {
-                            System.err.println("Failed to send log entry to: " + name);
-                        }
-                    }
-                }
-            } catch (RemoteException e) {
-                System.err.println("Error accessing RMI registry.");
-                e.printStackTrace();
+        if (command.equals("attack")) {
+            target = match.resolveTarget(id, requested);
+            if (target == -1) {
+                response[0] = "!! Choose a player still in the match to attack: attack,x,y,player !!";
+                return null;
             }
+        }
 
-            if (successCount >= (boundNames.length / 2)) {
-                return true;
-            }
+        // Rejected before reaching the log when over the rate limits
+        long retryAfter = admission.admit(match.getMatchId(), id);
+        if (retryAfter > 0) {
+            response[0] = "!! Too many moves, retry after " + retryAfter + " ms !!";
+            return null;
         }
-        return false;
+        return new LogEntry(currentTerm, match.getMatchId(), id, command, posX, posY, target);
     }
 
     /**
-     * Follower stores a log entry received from the leader.
+     * Retrieves the game grid for a given player.
      * 
-     * @param entry The log entry to be stored.
-     * @return true if successfully stored, false otherwise.
-     * @throws RemoteException If there is an issue with remote communication.
+     * @param matchId The match of the player.
+     * @param id      The player's ID (0 or 1).
+     * @return The player's game grid, or null if the match or player is unknown.
+     * @throws RemoteException If a remote communication error occurs.
      */
     @Override
-    public boolean receiveLogEntry(LogEntry entry) throws RemoteException {
-        if (isFollower) {
-            log.append(entry);
-            System.out.println("Follower " + index + " received log: " + entry.getCommand());
-            return true;
-        }
-        return false;
+    public GameGrid getPlayerGrid(int matchId, int id) throws RemoteException {
+        Match match = servedMatch(matchId);
+        return (match != null && match.hasSeat(id)) ? match.getPlayerGrid(id) : null;
     }
 
     /**
-     * Game Logic Methods
+     * Retrieves the opponent's game grid.
+     * 
+     * @param matchId The match of the player.
+     * @param id      The player's ID (0 or 1).
+     * @return The opponent's game grid, or null if the match or player is unknown.
+     * @throws RemoteException If a remote communication error occurs.
      */
+    @Override
+    public GameGrid getOpponentGrid(int matchId, int id) throws RemoteException {
+        Match match = servedMatch(matchId);
+        return (match != null && match.hasSeat(id)) ? match.getOpponentGrid(id) : null;
+    }
 
     /**
-     * Initializes a match by assigning a player ID and setting up game grids.
+     * Retrieves a fogged version of the opponent's game grid (hiding ship
+     * locations).
      * 
-     * @return The assigned player ID (0 or 1), or -1 if the match is full.
+     * @param matchId The match of the player.
+     * @param id      The player's ID (0 or 1).
+     * @return The fogged opponent's game grid, or null if the match or player
+     *         is unknown.
+     * @throws RemoteException If a remote communication error occurs.
      */
     @Override
-    public synchronized int initMatch() {
-        int playerId = -1;
-        if (playersId[0] == -1) {
-            playersId[0] = playerId = 0;
-            player1Grid = new GameGrid();
-        } else if (playersId[1] == -1) {
-            playersId[1] = playerId = 1;
-            player2Grid = new GameGrid();
-        }
-
-        isMatchFinished = false;
-        currentTurn = 0;
-
-        return playerId;
+    public GameGrid getFoggedOpponentGrid(int matchId, int id) throws RemoteException {
+        Match match = servedMatch(matchId);
+        return (match != null && match.hasSeat(id)) ? match.getFoggedOpponentGrid(id) : null;
     }
 
     /**
-     * Checks if both players have joined the match.
+     * Retrieves the fogged grid of any player of a match, used to follow every
+     * opponent of a free-for-all match.
      * 
-     * @return true if both player slots are filled, false otherwise.
+     * @param matchId The match to query.
+     * @param seat    The player whose grid is requested.
+     * @return The fogged grid, or null if the match or seat is unknown.
+     * @throws RemoteException If a remote communication error occurs.
      */
     @Override
-    public synchronized boolean arePlayersReady() {
-        return playersId[0] != -1 && playersId[1] != -1;
+    public GameGrid getFoggedGrid(int matchId, int seat) throws RemoteException {
+        Match match = servedMatch(matchId);
+        if (match == null || !match.hasSeat(seat)) {
+            return null;
+        }
+        return match.getFoggedGrid(seat);
     }
 
     /**
-     * Processes a move from a player.
-     * First check if command in not out of bound and if not
+     * @return The current term, or -1 if this node is not leader.
+     */
+    private synchronized int leaderTerm() {
+        return isLeader ? currentTerm : -1;
+    }
+
+    /**
+     * @return The last log index applied to the matches served here.
+     */
+    private synchronized int appliedIndex() {
+        return isLeader ? lastApplied : learnerApplied;
+    }
+
+    /**
+     * Subscribes a spectator to the committed events of a match. Learners serve
+     * spectators as well as the leader, and should be preferred. The stream
+     * starts with a resync event holding the current fogged state, and ends
+     * with a closed event.
      * 
-     * @param move The move command in format "command,x,y".
-     * @param id   The ID of the player making the move.
-     * @return A response message indicating the result of the move.
+     * @param matchId  The match to watch.
+     * @param listener The callback of the spectator.
+     * @return true if the match is served by this node, false otherwise (e.g.
+     *         on a voting follower).
      */
     @Override
-    public String processMove(String move, int id) {
-        String response = "";
-        String[] splitMove = move.split(",");
-        String command = splitMove[0];
-        int posX = Integer.parseInt(splitMove[1]);
-        int posY = Integer.parseInt(splitMove[2]);
-
-        if (posX >= 6 || posY >= 6) {
-            response = "!! Out of bound, grid have max 5 row/cols !!";
-            return response;
+    public boolean watchMatch(int matchId, SpectatorListener listener) {
+        if (!isLeader && !configuration.isLearner(index)) {
+            return false; // Voting followers do not apply the log
         }
-
-        LogEntry logEntry = new LogEntry(currentTerm, id, command, posX, posY);
-        try {
-            boolean appendLog = appendLogEntry(logEntry);
-
-            if (appendLog) {
-                if (splitMove[0].equals("attack")) {
-                    GameGrid grid = getOpponentGrid(id);
-                    response = processAttack(grid, posX, posY);
-                } else {
-                    GameGrid grid = getPlayerGrid(id);
-                    response = processPlace(grid, id, posX, posY);
-                }
-            }
-        } catch (RemoteException e) {
-            e.printStackTrace();
+        Match match = servedMatch(matchId);
+        if (match == null || listener == null) {
+            return false;
         }
-        return response;
+        spectators.subscribe(match, listener);
+        return true;
     }
 
     /**
-     * Processes an attack move on the target grid.
+     * Ends the subscription of a spectator.
      * 
-     * @param targetGrid The grid where the ship to attack are placed.
-     * @param posX       The X-coordinate of the attack.
-     * @param posY       The Y-coordinate of the attack.
-     * @return A response message indicating the attack result.
+     * @param matchId  The watched match.
+     * @param listener The callback of the spectator.
      */
-    private String processAttack(GameGrid targetGrid, int posX, int posY) {
-        String response = targetGrid.attack(posX, posY);
-
-        if (targetGrid.isAllShipsSunk()) {
-            response += " | All ships sunk! You win!";
-            isMatchFinished = true;
-            return response;
-        }
-
-        System.out.println(log.getLastElem().toString());
-        nextTurn();
-        return response;
+    @Override
+    public void stopWatching(int matchId, SpectatorListener listener) {
+        spectators.unsubscribe(shards.localId(group, matchId), listener);
     }
 
     /**
-     * Processes a ship placement move.
+     * Checks if a player is out of the match (fleet sunk or left).
      * 
-     * @param targetGrid The grid where the ship is placed.
-     * @param playerId   The ID of the player placing the ship.
-     * @param posX       The X-coordinate for placement.
-     * @param posY       The Y-coordinate for placement.
-     * @return A response message indicating the placement result.
+     * @param matchId The match to query.
+     * @param seat    The player to check.
+     * @return true if the player is eliminated (or the match or player unknown), false otherwise.
      */
-    private String processPlace(GameGrid targetGrid, int playerId, int posX, int posY) {
-        String response = targetGrid.placeShip(posX, posY);
-
-        if (response.equals("Placed")) {
-            shipsPlaced[playerId]++;
-            if (shipsPlaced[playerId] == 5) {
-                response += "|All ships placed!";
-                nextTurn();
-            }
-        }
-        System.out.println(log.getLastElem().toString());
+    @Override
+    public boolean isEliminated(int matchId, int seat) {
+        Match match = servedMatch(matchId);
+        return match == null || !match.hasSeat(seat) || match.isEliminated(seat);
+    }
 
-        return response;
+    /**
+     * Gets the current player's turn.
+     * 
+     * @param matchId The match to query.
+     * @return The ID of the player whose turn it is, or -1 if the match is unknown.
+     * @throws RemoteException If a remote communication error occurs.
+     */
+    @Override
+    public int getCurrentTurn(int matchId) throws RemoteException {
+        Match match = servedMatch(matchId);
+        return (match != null) ? match.getCurrentTurn() : -1;
     }
 
     /**
-     * Advances the turn to the next player.
+     * Retrieves the number of ships placed by a player.
+     * 
+     * @param matchId The match of the player.
+     * @param id      The player's ID (0 or 1).
+     * @return The number of ships placed by the player, 0 if the match or player is unknown.
      */
-    private void nextTurn() {
-        currentTurn = (currentTurn == 0) ? 1 : 0;
-        System.out.println("Now it's " + currentTurn + "'s turn");
+    @Override
+    public int getNumShipsPlaced(int matchId, int id) {
+        Match match = servedMatch(matchId);
+        return (match != null && match.hasSeat(id)) ? match.getShipsPlaced(id) : 0;
     }
 
     /**
-     * Retrieves the game grid for a given player.
+     * Checks if the match has finished.
      * 
-     * @param id The player's ID (0 or 1).
-     * @return The player's game grid.
-     * @throws RemoteException If a remote communication error occurs.
+     * @param matchId The match to query.
+     * @return true if the match is finished (or unknown), false otherwise.
      */
     @Override
-    public GameGrid getPlayerGrid(int id) throws RemoteException {
-        GameGrid targetGrid = (id == 0) ? player1Grid : player2Grid;
-        return targetGrid;
+    public boolean isMatchFinished(int matchId) {
+        Match match = servedMatch(matchId);
+        return match == null || match.isMatchFinished();
     }
 
     /**
-     * Retrieves the opponent's game grid.
+     * Handles client disconnection by replicating a leave-match entry: the player
+     * is eliminated and the others keep playing. Once the match is over it is
+     * archived through the log, which frees its entries on every server.
      * 
-     * @param id The player's ID (0 or 1).
-     * @return The opponent's game grid.
-     * @throws RemoteException If a remote communication error occurs.
+     * @param matchId  The match of the player.
+     * @param playerId The ID of the player who disconnected.
      */
     @Override
-    public GameGrid getOpponentGrid(int id) throws RemoteException {
-        GameGrid targetGrid = (id == 0) ? player2Grid : player1Grid;
-        return targetGrid;
+    public void clientDisconnection(int matchId, int playerId) {
+        Match match = servedMatch(matchId);
+        if (match != null && match.hasSeat(playerId) && !match.isEliminated(playerId)) {
+            pipeline.submit(new LogEntry(currentTerm, match.getMatchId(), playerId, "leave-match", 0, 0));
+        }
     }
 
+    /*
+     * Cluster membership methods
+     */
+
     /**
-     * Retrieves a fogged version of the opponent's game grid (hiding ship
-     * locations).
+     * Adds a server to the cluster. The new server is first caught up as a
+     * non-voting follower, then the change is replicated as a config entry.
      * 
-     * @param id The player's ID (0 or 1).
-     * @return The fogged opponent's game grid.
-     * @throws RemoteException If a remote communication error occurs.
+     * @param serverIndex The index of the server to add.
+     * @return true if the configuration change was committed, false otherwise.
      */
     @Override
-    public GameGrid getFoggedOpponentGrid(int id) throws RemoteException {
-        GameGrid targetGrid = (id == 0) ? player2Grid : player1Grid;
-        return targetGrid.getFoggedGrid();
+    public boolean addServer(int serverIndex) {
+        if (!isLeader || configuration.contains(serverIndex)) {
+            return false;
+        }
+
+        // Catch the new server up before it counts toward the quorum
+        signalReplication(serverIndex);
+        synchronized (this) {
+            ReplicationProgress peer = progress.get(serverIndex);
+            long deadline = System.currentTimeMillis() + CATCH_UP_TIMEOUT;
+            long remaining = CATCH_UP_TIMEOUT;
+            while (isLeader && peer.matchIndex < log.lastIndex() - MAX_BATCH && remaining > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (peer.matchIndex < log.lastIndex() - MAX_BATCH) {
+                System.err.println("RaftServer" + serverIndex + " could not catch up");
+                return false;
+            }
+        }
+        return changeConfiguration("add-server", serverIndex);
     }
 
     /**
-     * Gets the current player's turn.
+     * Adds a learner: a server that receives and applies the log to serve reads,
+     * but does not vote and is not counted in the commit quorum, so it does not
+     * slow down the moves. No catch-up is needed before the change, the learner
+     * catches up like a lagging follower. addServer later promotes it to voter.
      * 
-     * @return The ID of the player whose turn it is.
-     * @throws RemoteException If a remote communication error occurs.
+     * @param serverIndex The index of the server to add.
+     * @return true if the configuration change was committed, false otherwise.
      */
     @Override
-    public synchronized int getCurrentTurn() throws RemoteException {
-        return currentTurn;
+    public boolean addLearner(int serverIndex) {
+        ClusterConfiguration current = configuration;
+        if (!isLeader || current.contains(serverIndex) || current.isLearner(serverIndex)) {
+            return false;
+        }
+        return changeConfiguration("add-learner", serverIndex);
     }
 
     /**
-     * Retrieves the number of ships placed by a player.
+     * Removes a server, voter or learner, from the cluster through a config
+     * entry. Removing the leader itself makes it step down once the change is
+     * committed.
      * 
-     * @param id The player's ID (0 or 1).
-     * @return The number of ships placed by the player.
+     * @param serverIndex The index of the server to remove.
+     * @return true if the configuration change was committed, false otherwise.
      */
     @Override
-    public synchronized int getNumShipsPlaced(int id) {
-        return shipsPlaced[id];
+    public boolean removeServer(int serverIndex) {
+        ClusterConfiguration current = configuration;
+        if (!isLeader || !(current.contains(serverIndex) || current.isLearner(serverIndex))) {
+            return false;
+        }
+        return changeConfiguration("remove-server", serverIndex);
     }
 
     /**
-     * Checks if the match has finished.
+     * Appends a single-server configuration change and waits for its commit.
+     * Only one change may be in progress at a time.
+     * 
+     * @param command     "add-server", "add-learner" or "remove-server".
+     * @param serverIndex The index of the server.
+     * @return true if the change was committed, false otherwise.
+     */
+    private boolean changeConfiguration(String command, int serverIndex) {
+        int entryIndex;
+        synchronized (this) {
+            if (!isLeader || configIndex > commitIndex) {
+                return false; // Previous change still uncommitted
+            }
+            log.append(new LogEntry(currentTerm, -1, -1, command, serverIndex, 0));
+            entryIndex = log.lastIndex();
+            refreshConfiguration();
+        }
+        System.out.println("Configuration change: " + command + " RaftServer" + serverIndex + " -> "
+                + configuration);
+
+        boolean committed = awaitCommit(entryIndex) >= 0;
+        if (command.equals("remove-server")) {
+            progress.remove(serverIndex);
+        }
+        return committed;
+    }
+
+    /**
+     * Retrieves how the matches are spread over the groups, to route the
+     * requests of a match (or a lobby ticket) to the leader of its group.
      * 
-     * @return true if the match is finished, false otherwise.
+     * @return The shard map of the cluster.
      */
     @Override
-    public synchronized boolean isMatchFinished() {
-        return isMatchFinished;
+    public ShardMap getShardMap() {
+        return shards;
     }
 
     /**
-     * Clean server log.
+     * Retrieves the current cluster membership.
+     * 
+     * @return The indexes of the voting servers.
      */
+    @Override
+    public int[] getConfiguration() {
+        return configuration.getMembers();
+    }
 
+    /**
+     * Retrieves the current learners.
+     * 
+     * @return The indexes of the non-voting servers.
+     */
     @Override
-    public void cleanLog() {
-        log.cleanup();
+    public int[] getLearners() {
+        return configuration.getLearners();
     }
 
     /**
-     * Handles client disconnection by resetting player data, cleaning logs and
-     * ending the match.
+     * Lists the matches this node serves: every running match on the leader, the
+     * applied ones on a learner. Used by spectators and analytics, which read
+     * from learners.
      * 
-     * @param playerId The ID of the player who disconnected.
+     * @return The match ids, empty on a voting follower.
      */
     @Override
-    public void clientDisconnection(int playerId) {
-        shipsPlaced[playerId] = 0;
+    public int[] getRunningMatches() {
+        // Matches not replayed yet after a takeover are listed without restoring them
+        return IntStream.concat(matches.keySet().stream().mapToInt(Integer::intValue),
+                replays.keySet().stream().mapToInt(Integer::intValue)).distinct().sorted().map(this::publicId)
+                .toArray();
+    }
 
-        if (playerId == 0) {
-            playersId[0] = -1;
+    /**
+     * Builds the configuration a server starts with when its log is empty: the
+     * given list of server indexes, or the RaftServer names bound in the registry.
+     * 
+     * @param index   The index of the starting server.
+     * @param members Comma-separated server indexes, or null.
+     * @param learner true if the server starts as a learner (not a member).
+     * @return The bootstrap configuration.
+     * @throws RemoteException If the registry cannot be reached.
+     */
+    private static ClusterConfiguration bootstrapConfiguration(int index, String members, boolean learner)
+            throws RemoteException {
+        List<Integer> indexes = new ArrayList<>();
+        if (members != null) {
+            for (String member : members.split(",")) {
+                indexes.add(Integer.parseInt(member.trim()));
+            }
         } else {
-            playersId[1] = -1;
-        }
-
-        try {
-            boundNames = reg.list(); // Get all registered servers
-            for (String name : boundNames) {
-                RaftServerInterface server = (RaftServerInterface) Naming
-                        .lookup("//localhost/" + name);
-                server.cleanLog();
+            if (!learner) {
+                indexes.add(index);
+            }
+            for (String name : LocateRegistry.getRegistry("localhost", 1099).list()) {
+                if (name.matches("RaftServer\\d+")) {
+                    indexes.add(Integer.parseInt(name.substring("RaftServer".length())));
+                }
             }
-        } catch (RemoteException | MalformedURLException | NotBoundException re) {
-            System.err.println("Error accessing RMI registry.");
-            re.printStackTrace();
         }
+        return new ClusterConfiguration(indexes.stream().mapToInt(Integer::intValue).toArray());
+    }
 
-        isMatchFinished = true;
+    /**
+     * Asks the leader of every group, once there is one, to add this server as a
+     * learner.
+     * 
+     * @param index  The index of this server.
+     * @param groups The number of groups.
+     */
+    private static void joinAsLearner(int index, int groups) {
+        Thread thread = new Thread(() -> {
+            boolean[] joined = new boolean[groups];
+            int left = groups;
+            while (true) {
+                try {
+                    Registry registry = LocateRegistry.getRegistry("localhost", 1099);
+                    for (String name : registry.list()) {
+                        int group = ShardMap.groupOfName(name);
+                        if (group >= 0 && group < groups && !joined[group]
+                                && !name.equals(ShardMap.serverName(index, group))) {
+                            RaftServerInterface server = (RaftServerInterface) registry.lookup(name);
+                            if (server.isLeader() && (server.addLearner(index)
+                                    || Arrays.stream(server.getLearners()).anyMatch(l -> l == index))) {
+                                System.out.println(ShardMap.serverName(index, group) + " joined as learner");
+                                joined[group] = true;
+                                if (--left == 0) {
+                                    return;
+                                }
+                            }
+                        }
+                    }
+                } catch (NotBoundException | RemoteException e) {
+                    // Retried below, the leader may be changing
+                }
+                try {
+                    Thread.sleep(AdaptiveTimeouts.MAX_ELECTION_TIMEOUT / 4);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "learner-join");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     public static void main(String[] args) {
         try {
-            if (args.length != 1) {
-                System.out.println("Usage: java RaftServerMain <serverIndex>");
+            boolean learner = args.length > 0 && args[args.length - 1].equals("--learner");
+            int argCount = learner ? args.length - 1 : args.length;
+            if (argCount < 1 || argCount > 2) {
+                System.out.println(
+                        "Usage: java RaftServerMain <serverIndex> [memberIndex,memberIndex,...] [--learner]");
                 return;
             }
 
             int index = Integer.parseInt(args[0]);
             String serverName = "RaftServer" + index;
 
-            // Create and register the server
-            RaftServer server = new RaftServer(index);
-            Naming.rebind("//localhost:1099/" + serverName, server);
+            // Create and register the server of every group
+            RaftNode node = new RaftNode(index, new ShardMap(ShardMap.GROUPS),
+                    bootstrapConfiguration(index, argCount > 1 ? args[1] : null, learner));
+            RaftServer[] servers = node.groups();
+            for (int group = 0; group < servers.length; group++) {
+                Naming.rebind("//localhost:1099/" + ShardMap.serverName(index, group), servers[group]);
+            }
 
-            System.out.println(serverName + " is running...");
+            String groups = (servers.length > 1) ? " " + servers.length + " groups" : "";
+            System.out.println(serverName + " is running" + groups + (learner ? " as learner..." : "..."));
+            if (learner) {
+                joinAsLearner(index, servers.length); // Non-voting: receives the log to serve reads
+            }
 
             /// Add shutdown hook for graceful exit
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 System.out.println("Shutting down " + serverName + "...");
-                try {
-                    // Unbind the server from the registry
-                    if (serverName != null) {
+                for (int group = 0; group < servers.length; group++) {
+                    RaftServer server = servers[group];
+                    String name = ShardMap.serverName(index, group);
+                    try {
+                        // Hand leadership over so that players do not wait for an election timeout
+                        if (server.isLeader()) {
+                            server.transferLeadership(-1);
+                        }
+
+                        // Unbind the server from the registry
                         try {
-                            Naming.unbind("//localhost/" + serverName);
-                            System.out.println(serverName + " unbound from registry.");
+                            Naming.unbind("//localhost/" + name);
+                            System.out.println(name + " unbound from registry.");
                         } catch (Exception e) {
-                            System.err.println("Could not unbind " + serverName + " (possibly already removed).");
+                            System.err.println("Could not unbind " + name + " (possibly already removed).");
                         }
-                    }
 
-                    // Unexport the remote object
-                    if (server != null) {
+                        // Unexport the remote object
                         UnicastRemoteObject.unexportObject(server, true);
-                        System.out.println(serverName + " unexported.");
-                    }
+                        System.out.println(name + " unexported.");
 
-                } catch (Exception e) {
-                    System.err.println("Error during cleanup: " + e.getMessage());
-                    e.printStackTrace();
+                    } catch (Exception e) {
+                        System.err.println("Error during cleanup: " + e.getMessage());
+                        e.printStackTrace();
+                    }
                 }
             }));
         } catch (Exception e) {
@@ -1,15 +1,20 @@
 package battleship.server;
 
 import battleship.GameGrid;
+import battleship.MatchConfig;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 
 public interface RaftServerInterface extends Remote {
     boolean appendLogEntry(LogEntry entry) throws RemoteException;
 
-    boolean receiveLogEntry(LogEntry entry) throws RemoteException;
+    AppendEntriesResponse appendEntries(AppendEntriesRequest request) throws RemoteException;
 
-    void receiveHeartbeat(int currentTerm) throws RemoteException;
+    AppendEntriesResponse[] heartbeat(AppendEntriesRequest[] requests) throws RemoteException;
+
+    AppendEntriesResponse installSnapshot(InstallSnapshotRequest request) throws RemoteException;
+
+    boolean negotiateCompression(boolean offered) throws RemoteException;
 
     boolean requestVote(RequestVoteRequest request) throws RemoteException;
 
@@ -19,25 +24,53 @@ public interface RaftServerInterface extends Remote {
 
     void becomeFollower() throws RemoteException;
 
-    int initMatch() throws RemoteException;
+    boolean transferLeadership(int target) throws RemoteException;
+
+    void timeoutNow(int group, int term) throws RemoteException;
+
+    boolean joinLobby(long ticket, int bucket, MatchConfig config, MatchListener listener) throws RemoteException;
+
+    MatchAssignment getAssignment(long ticket) throws RemoteException;
+
+    GameGrid getPlayerGrid(int matchId, int id) throws RemoteException;
+
+    GameGrid getOpponentGrid(int matchId, int id) throws RemoteException;
+
+    GameGrid getFoggedOpponentGrid(int matchId, int id) throws RemoteException;
+
+    GameGrid getFoggedGrid(int matchId, int seat) throws RemoteException;
+
+    boolean isEliminated(int matchId, int seat) throws RemoteException;
+
+    boolean watchMatch(int matchId, SpectatorListener listener) throws RemoteException;
+
+    void stopWatching(int matchId, SpectatorListener listener) throws RemoteException;
+
+    String processMove(int matchId, String move, int id) throws RemoteException;
+
+    MoveResponse[] processMoves(int[] matchIds, String[] moves, int[] ids) throws RemoteException;
+
+    int getCurrentTurn(int matchId) throws RemoteException;
+
+    int getNumShipsPlaced(int matchId, int id) throws RemoteException;
 
-    boolean arePlayersReady() throws RemoteException;
+    boolean isMatchFinished(int matchId) throws RemoteException;
 
-    GameGrid getPlayerGrid(int id) throws RemoteException;
+    void clientDisconnection(int matchId, int id) throws RemoteException;
 
-    GameGrid getOpponentGrid(int id) throws RemoteException;
+    boolean addServer(int serverIndex) throws RemoteException;
 
-    GameGrid getFoggedOpponentGrid(int id) throws RemoteException;
+    boolean addLearner(int serverIndex) throws RemoteException;
 
-    String processMove(String move, int id) throws RemoteException;
+    boolean removeServer(int serverIndex) throws RemoteException;
 
-    int getCurrentTurn() throws RemoteException;
+    int[] getConfiguration() throws RemoteException;
 
-    int getNumShipsPlaced(int id) throws RemoteException;
+    int[] getLearners() throws RemoteException;
 
-    boolean isMatchFinished()throws RemoteException;
+    int[] getRunningMatches() throws RemoteException;
 
-    void cleanLog() throws RemoteException;
+    TimingInfo getTiming() throws RemoteException;
 
-    void clientDisconnection(int id) throws RemoteException;
+    ShardMap getShardMap() throws RemoteException;
 }
@@ -0,0 +1,93 @@
+package battleship.server;
+
+import battleship.MatchConfig;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+
+/**
+ * Compares the compressed and uncompressed replication streams: wire size and
+ * serialization round trip of full AppendEntries batches and of a snapshot.
+ * The packed rows use the block layout without deflate, so the gain of the
+ * packing and the gain of the compression are reported apart.
+ * Usage: java battleship.server.ReplicationBenchmark [matches] [rounds]
+ */
+public class ReplicationBenchmark {
+    private static final int BATCH = 1024; // Entries per AppendEntries, as sent while catching up
+
+    public static void main(String[] args) throws Exception {
+        int matches = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+        Random random = new Random(42);
+
+        // Moves of many concurrent matches interleaved in the same batch
+        LogEntry[] entries = new LogEntry[BATCH];
+        for (int i = 0; i < BATCH; i++) {
+            entries[i] = new LogEntry(7, random.nextInt(matches) * 16, random.nextInt(2), "attack",
+                    random.nextInt(10), random.nextInt(10), random.nextInt(2));
+        }
+
+        String label = "AppendEntries x" + BATCH;
+        report(label + " objects   ", new AppendEntriesRequest(0, 7, 0, 4095, 7, entries, 4000, false), rounds);
+        report(label + " packed    ", new AppendEntriesRequest(0, 7, 0, 4095, 7, entries, 4000, true).packOnly(),
+                rounds);
+        report(label + " compressed", new AppendEntriesRequest(0, 7, 0, 4095, 7, entries, 4000, true), rounds);
+
+        // A snapshot of half played 10x10 matches
+        MatchConfig config = new MatchConfig(10, new int[] { 5, 4, 3, 3, 2 });
+        Match[] stored = new Match[matches];
+        for (int m = 0; m < matches; m++) {
+            Match match = new Match(m * 16, 2, config);
+            for (int seat = 0; seat < 2; seat++) {
+                for (int ship = 0; ship < config.getFleetSize(); ship++) {
+                    match.apply("place", seat, ship * 2, 0, -1);
+                }
+            }
+            for (int shot = 0; shot < 50; shot++) {
+                match.apply("attack", match.getCurrentTurn(), random.nextInt(10), random.nextInt(10), -1);
+            }
+            stored[m] = match;
+        }
+        Snapshot snapshot = new Snapshot(matches * 100, 7, new ClusterConfiguration(new int[] { 0, 1, 2 }), stored);
+        label = "Snapshot of " + matches;
+        int snapshotRounds = Math.max(1, rounds / 10);
+        report(label + " objects   ", new InstallSnapshotRequest(0, 7, 0, snapshot, false), snapshotRounds);
+        report(label + " packed    ", new InstallSnapshotRequest(0, 7, 0, snapshot, true).packOnly(), snapshotRounds);
+        report(label + " compressed", new InstallSnapshotRequest(0, 7, 0, snapshot, true), snapshotRounds);
+    }
+
+    /**
+     * Serializes and deserializes a request repeatedly, as RMI does on each call.
+     *
+     * @param name    The label of the measurement.
+     * @param request The request to send.
+     * @param rounds  The number of round trips to time.
+     */
+    private static void report(String name, Object request, int rounds) throws IOException, ClassNotFoundException {
+        byte[] wire = roundTrip(request);
+        for (int i = 0; i < rounds; i++) { // Warm up
+            roundTrip(request);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            roundTrip(request);
+        }
+        double micros = (System.nanoTime() - start) / 1e3 / rounds;
+        System.out.printf("%s: %8d bytes, %10.1f us per round trip%n", name, wire.length, micros);
+    }
+
+    private static byte[] roundTrip(Object request) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(request);
+        }
+        byte[] wire = bytes.toByteArray();
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(wire))) {
+            in.readObject();
+        }
+        return wire;
+    }
+}
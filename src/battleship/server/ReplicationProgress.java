@@ -0,0 +1,19 @@
+package battleship.server;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Leader-side replication state for a single follower.
+ * nextIndex and matchIndex are guarded by the owning RaftServer's monitor.
+ */
+class ReplicationProgress {
+    int nextIndex; // Next log index to send to the follower
+    int matchIndex = -1; // Highest index known to be replicated on the follower
+    final AtomicBoolean running = new AtomicBoolean(false); // A sender task is active
+    volatile boolean requested; // New entries or a heartbeat are waiting to be sent
+    volatile Boolean compress; // Compression agreed with the follower, null until negotiated
+
+    ReplicationProgress(int nextIndex) {
+        this.nextIndex = nextIndex;
+    }
+}
@@ -3,12 +3,27 @@ package battleship.server;
 import java.io.Serializable;
 
 public class RequestVoteRequest implements Serializable{
-    private int term;          // Candidate's term number
+    private int group;         // Consensus group of the election
+    private int term;          // Candidate's term number (the term it would use, for a pre-vote)
     private int candidateId;   // Unique identifier of the candidate requesting the vote
+    private int lastLogIndex;  // Index of the candidate's last log entry
+    private int lastLogTerm;   // Term of the candidate's last log entry
+    private boolean preVote;   // Only asks whether the vote would be granted, no state changes
+    private boolean transfer;  // Election started by a leadership transfer, the leader is not stale
 
-    public RequestVoteRequest(int term, int candidateId) {
+    public RequestVoteRequest(int group, int term, int candidateId, int lastLogIndex, int lastLogTerm,
+            boolean preVote, boolean transfer) {
+        this.group = group;
         this.term = term;
         this.candidateId = candidateId;
+        this.lastLogIndex = lastLogIndex;
+        this.lastLogTerm = lastLogTerm;
+        this.preVote = preVote;
+        this.transfer = transfer;
+    }
+
+    public int getGroup() {
+        return group;
     }
 
     public int getTerm() {
@@ -19,11 +34,32 @@ public class RequestVoteRequest implements Serializable{
         return candidateId;
     }
 
+    public int getLastLogIndex() {
+        return lastLogIndex;
+    }
+
+    public int getLastLogTerm() {
+        return lastLogTerm;
+    }
+
+    public boolean isPreVote() {
+        return preVote;
+    }
+
+    public boolean isTransfer() {
+        return transfer;
+    }
+
     @Override
     public String toString() {
         return "RequestVoteRequest{" +
-                "term=" + term +
+                "group=" + group +
+                ", term=" + term +
                 ", candidateId=" + candidateId +
+                ", lastLogIndex=" + lastLogIndex +
+                ", lastLogTerm=" + lastLogTerm +
+                ", preVote=" + preVote +
+                ", transfer=" + transfer +
                 '}';
     }
 }
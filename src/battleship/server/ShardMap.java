@@ -0,0 +1,131 @@
+package battleship.server;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * How the matches are spread over the consensus groups hosted by every node.
+ * Each group is an independent Raft cluster with its own log and leader, so
+ * the moves of different groups are replicated in parallel.
+ * <p>
+ * Players are sent to the lobby of the group their ticket maps to on a
+ * consistent hash ring, where every group owns many points, and the matches
+ * they form live in that group. A match id carries its group in its low
+ * digits (localId * groups + group), so any id is routed to its group without
+ * a lookup; with a single group the ids are the plain log indexes.
+ * The server of a node in a group is bound as RaftServer&lt;node&gt; for
+ * group 0 and RaftServer&lt;node&gt;.&lt;group&gt; for the others.
+ */
+public class ShardMap implements Serializable {
+    /** Groups hosted by the servers, set with -Dbattleship.groups (all nodes alike). */
+    static final int GROUPS = Math.max(1, Integer.getInteger("battleship.groups", 1));
+    private static final int POINTS = 64; // Points of each group on the ring
+    private static final String PREFIX = "RaftServer";
+
+    private final int groups;
+    private final long[] ring; // Hash of each point, sorted
+    private final int[] owners; // Group of each point
+
+    public ShardMap(int groups) {
+        this.groups = groups;
+        long[] points = new long[groups * POINTS];
+        for (int group = 0; group < groups; group++) {
+            for (int point = 0; point < POINTS; point++) {
+                points[group * POINTS + point] = BotOpponent.mix(((long) group << 32) | point) & ~0xFFFFL | group;
+            }
+        }
+        Arrays.sort(points); // The low bits keep the owner of each point
+        this.ring = points;
+        this.owners = new int[points.length];
+        for (int i = 0; i < points.length; i++) {
+            owners[i] = (int) (points[i] & 0xFFFF);
+        }
+    }
+
+    public int getGroups() {
+        return groups;
+    }
+
+    /**
+     * Finds the group of a lobby ticket: the owner of the first point of the
+     * ring at or after the hash of the ticket.
+     *
+     * @param ticket The lobby ticket.
+     * @return The group.
+     */
+    public int groupOfTicket(long ticket) {
+        int point = Arrays.binarySearch(ring, BotOpponent.mix(ticket));
+        if (point < 0) {
+            point = -point - 1;
+        }
+        return owners[(point < ring.length) ? point : 0];
+    }
+
+    /**
+     * @param matchId The id of a match.
+     * @return The group of the match.
+     */
+    public int groupOf(int matchId) {
+        return Math.floorMod(matchId, groups);
+    }
+
+    /**
+     * @param group   The group of a match.
+     * @param localId The index of its create-match entry in the log of the group.
+     * @return The id of the match.
+     */
+    public int matchId(int group, int localId) {
+        return localId * groups + group;
+    }
+
+    /**
+     * @param group   The group asking.
+     * @param matchId The id of a match.
+     * @return The index of the create-match entry of the match in the log of
+     *         the group, or -1 if the match belongs to another group.
+     */
+    public int localId(int group, int matchId) {
+        return (matchId >= 0 && groupOf(matchId) == group) ? matchId / groups : -1;
+    }
+
+    /**
+     * Picks the node that should lead a group, so the leaders are spread over
+     * the members.
+     *
+     * @param group   The group.
+     * @param members The voting members of the group, sorted.
+     * @return The preferred leader, or -1 if there is no member.
+     */
+    public int preferredLeader(int group, int[] members) {
+        return (members.length > 0) ? members[group % members.length] : -1;
+    }
+
+    /**
+     * @param node  The index of a node.
+     * @param group The group.
+     * @return The registry name of the server of the node in the group.
+     */
+    public static String serverName(int node, int group) {
+        return (group == 0) ? PREFIX + node : PREFIX + node + "." + group;
+    }
+
+    /**
+     * @param name A registry name.
+     * @return The group served under the name, or -1 if it is not a server.
+     */
+    public static int groupOfName(String name) {
+        if (!name.matches(PREFIX + "\\d+(\\.\\d+)?")) {
+            return -1;
+        }
+        int dot = name.indexOf('.');
+        return (dot < 0) ? 0 : Integer.parseInt(name.substring(dot + 1));
+    }
+
+    @Override
+    public String toString() {
+        return "ShardMap{" +
+                "groups=" + groups +
+                ", points=" + ring.length +
+                '}';
+    }
+}
@@ -0,0 +1,39 @@
+package battleship.server;
+
+import java.io.Serializable;
+
+/**
+ * Game state obtained by applying every log entry up to lastIncludedIndex.
+ * Shipped to followers that lag too far behind, and used by them as the base
+ * to rebuild the matches when they become leader.
+ */
+public class Snapshot implements Serializable {
+    private int lastIncludedIndex;
+    private int lastIncludedTerm;
+    private ClusterConfiguration configuration; // Membership at lastIncludedIndex
+    private Match[] matches; // Copies of the matches at lastIncludedIndex
+
+    public Snapshot(int lastIncludedIndex, int lastIncludedTerm, ClusterConfiguration configuration,
+            Match[] matches) {
+        this.lastIncludedIndex = lastIncludedIndex;
+        this.lastIncludedTerm = lastIncludedTerm;
+        this.configuration = configuration;
+        this.matches = matches;
+    }
+
+    public int getLastIncludedIndex() {
+        return lastIncludedIndex;
+    }
+
+    public int getLastIncludedTerm() {
+        return lastIncludedTerm;
+    }
+
+    public ClusterConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    public Match[] getMatches() {
+        return matches;
+    }
+}
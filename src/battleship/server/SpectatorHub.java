@@ -0,0 +1,314 @@
+package battleship.server;
+
+import battleship.GameGrid;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntSupplier;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Streams the committed events of the matches to their spectators, from the
+ * applied state (on the leader, or better on a learner).
+ * <p>
+ * Every spectator has a bounded buffer and at most one delivery in flight, so
+ * a slow spectator never delays the moves or the other spectators. Pending
+ * events are sent together in one call, and a new turn (or ship count) replaces
+ * the pending one. A spectator whose buffer still fills up loses its backlog
+ * and gets a single resync event with the current state instead, built once
+ * for all the spectators of the match that fell behind. Unreachable spectators
+ * are dropped, and so are the ones that take longer than CALL_TIMEOUT to accept
+ * a delivery: the delivery threads wait for each call with a deadline, so a
+ * spectator that stops reading holds only the thread of its own call.
+ */
+class SpectatorHub {
+    static final int BUFFER = 64; // Pending events per spectator
+    private static final int DELIVERY_THREADS = 8;
+    private static final long CALL_TIMEOUT = 2000; // Max time a spectator may take to accept a delivery (ms)
+
+    private final Object stateLock; // Held while matches are changed, so resyncs see a consistent state
+    private final IntSupplier appliedIndex; // Last log index applied to the matches, read with the lock held
+    private final IntUnaryOperator publicIds; // Id seen by the clients of a match, from its id in the group
+    private final Map<Integer, List<Subscription>> watchers = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> lastIndexes = new ConcurrentHashMap<>(); // Last event of each match
+    private final Map<Integer, MatchEvent> resyncs = new ConcurrentHashMap<>(); // Last resync of each match
+    private final ExecutorService delivery = Executors.newFixedThreadPool(DELIVERY_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "spectator-delivery");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService calls = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "spectator-call"); // Blocked in the RMI call of a delivery
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * A spectator of a match.
+     */
+    private static class Subscription {
+        final Match match;
+        final SpectatorListener listener;
+        final ArrayDeque<MatchEvent> buffer = new ArrayDeque<>(BUFFER);
+        boolean resync = true; // The first delivery is the current state
+        boolean running; // A delivery is in flight or scheduled
+        boolean closed;
+
+        Subscription(Match match, SpectatorListener listener) {
+            this.match = match;
+            this.listener = listener;
+        }
+
+        /**
+         * Queues an event, coalescing it with a pending one it supersedes. A full
+         * buffer is dropped in favour of a resync.
+         */
+        synchronized void offer(MatchEvent event) {
+            if (resync || closed) {
+                return; // The resync will include it
+            }
+            String type = event.getType();
+            if (type.equals("turn") || type.equals("placed")) {
+                Iterator<MatchEvent> pending = buffer.iterator();
+                while (pending.hasNext()) {
+                    MatchEvent old = pending.next();
+                    if (old.getType().equals(type) && (type.equals("turn") || old.getSeat() == event.getSeat())) {
+                        pending.remove();
+                    }
+                }
+            }
+            if (buffer.size() == BUFFER) {
+                buffer.clear();
+                resync = true;
+                return;
+            }
+            buffer.add(event);
+        }
+    }
+
+    SpectatorHub(Object stateLock, IntSupplier appliedIndex, IntUnaryOperator publicIds) {
+        this.stateLock = stateLock;
+        this.appliedIndex = appliedIndex;
+        this.publicIds = publicIds;
+    }
+
+    /**
+     * Subscribes a spectator to a match. The current state is sent first.
+     *
+     * @param match    The match to watch.
+     * @param listener The callback of the spectator.
+     */
+    void subscribe(Match match, SpectatorListener listener) {
+        Subscription subscription = new Subscription(match, listener);
+        List<Subscription> subscriptions = watchers.computeIfAbsent(match.getMatchId(),
+                m -> new CopyOnWriteArrayList<>());
+        if (subscriptions.isEmpty()) {
+            resyncs.remove(match.getMatchId()); // Events are not tracked while nobody watches
+        }
+        subscriptions.add(subscription);
+        schedule(subscription);
+    }
+
+    /**
+     * Unsubscribes a spectator.
+     *
+     * @param matchId  The watched match.
+     * @param listener The callback of the spectator.
+     */
+    void unsubscribe(int matchId, SpectatorListener listener) {
+        List<Subscription> subscriptions = watchers.get(matchId);
+        if (subscriptions != null) {
+            subscriptions.removeIf(subscription -> subscription.listener.equals(listener));
+        }
+    }
+
+    /**
+     * Publishes the events of a move just applied to its match. Called with the
+     * state lock held, right after the match changed.
+     *
+     * @param match    The match.
+     * @param index    The log index of the move.
+     * @param command  The command applied.
+     * @param seat     The player of the move.
+     * @param posX     The X-coordinate.
+     * @param posY     The Y-coordinate.
+     * @param target   The attacked player (attacks only).
+     * @param response The result of the move.
+     */
+    void publish(Match match, int index, String command, int seat, int posX, int posY, int target,
+            String response) {
+        int matchId = match.getMatchId();
+        List<Subscription> subscriptions = watchers.get(matchId);
+        if (subscriptions == null || subscriptions.isEmpty()) {
+            return; // Nobody watching, the common case
+        }
+        lastIndexes.put(matchId, index);
+
+        int publicId = publicIds.applyAsInt(matchId);
+        MatchEvent event = null;
+        if (command.equals("attack")) {
+            event = new MatchEvent("attack", publicId, index, seat, target, posX, posY, response, null, null);
+        } else if (command.equals("leave-match")) {
+            event = new MatchEvent("left", publicId, index, seat, -1, -1, -1, null, null, null);
+        } else if (response != null && response.startsWith("Placed")) { // Position hidden until the end
+            event = new MatchEvent("placed", publicId, index, seat, match.getShipsPlaced(seat), -1, -1, null, null,
+                    null);
+        }
+        MatchEvent next;
+        if (match.isMatchFinished()) {
+            GameGrid[] revealed = new GameGrid[match.getPlayers()];
+            int winner = -1;
+            for (int i = 0; i < revealed.length; i++) {
+                revealed[i] = match.getPlayerGrid(i);
+                if (!match.isEliminated(i)) {
+                    winner = i;
+                }
+            }
+            next = new MatchEvent("finished", publicId, index, winner, -1, -1, -1, null, revealed, null);
+        } else {
+            next = new MatchEvent("turn", publicId, index, match.getCurrentTurn(), -1, -1, -1, null, null, null);
+        }
+
+        for (Subscription subscription : subscriptions) {
+            if (subscription.match != match) {
+                continue; // Subscribed to a state this node replaced
+            }
+            if (event != null) {
+                subscription.offer(event);
+            }
+            subscription.offer(next);
+            schedule(subscription);
+        }
+    }
+
+    /**
+     * Ends the streams of a match that is no longer served here.
+     *
+     * @param matchId The match.
+     */
+    void close(int matchId) {
+        List<Subscription> subscriptions = watchers.remove(matchId);
+        lastIndexes.remove(matchId);
+        resyncs.remove(matchId);
+        if (subscriptions == null) {
+            return;
+        }
+        MatchEvent closed = new MatchEvent("closed", publicIds.applyAsInt(matchId), -1, -1, -1, -1, -1, null, null,
+                null);
+        for (Subscription subscription : subscriptions) {
+            synchronized (subscription) {
+                subscription.buffer.add(closed); // Past the bound, the stream ends with it
+                subscription.resync = false;
+                subscription.closed = true;
+            }
+            schedule(subscription);
+        }
+    }
+
+    /**
+     * Ends every stream, e.g. when this node stops applying the log.
+     */
+    void closeAll() {
+        for (Integer matchId : watchers.keySet()) {
+            close(matchId);
+        }
+    }
+
+    private void schedule(Subscription subscription) {
+        synchronized (subscription) {
+            if (subscription.running) {
+                return;
+            }
+            subscription.running = true;
+        }
+        delivery.execute(() -> deliver(subscription));
+    }
+
+    /**
+     * Delivery task of a spectator: sends what is pending until the buffer is
+     * empty.
+     */
+    private void deliver(Subscription subscription) {
+        while (true) {
+            MatchEvent[] batch;
+            synchronized (subscription) {
+                if (subscription.resync) {
+                    subscription.resync = false;
+                    subscription.buffer.clear();
+                    batch = null;
+                } else if (subscription.buffer.isEmpty()) {
+                    subscription.running = false;
+                    return;
+                } else {
+                    batch = subscription.buffer.toArray(new MatchEvent[0]);
+                    subscription.buffer.clear();
+                }
+            }
+            if (batch == null) {
+                batch = new MatchEvent[] { resync(subscription.match) };
+            }
+
+            MatchEvent[] events = batch;
+            Future<?> call = calls.submit(() -> {
+                subscription.listener.matchEvents(events);
+                return null;
+            });
+            boolean ended;
+            try {
+                call.get(CALL_TIMEOUT, TimeUnit.MILLISECONDS);
+                ended = batch[batch.length - 1].getType().equals("closed");
+            } catch (ExecutionException | TimeoutException e) { // Unreachable, or stopped reading
+                call.cancel(true);
+                unsubscribe(subscription.match.getMatchId(), subscription.listener);
+                ended = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (ended) {
+                synchronized (subscription) {
+                    subscription.closed = true; // Stays running, so it is never scheduled again
+                    subscription.buffer.clear();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Builds the resync event of a match, or reuses the last one if no event
+     * happened since. Its index is the last entry applied by this node, so it
+     * covers every move of the match up to there.
+     */
+    private MatchEvent resync(Match match) {
+        int matchId = match.getMatchId();
+        synchronized (stateLock) {
+            MatchEvent cached = resyncs.get(matchId);
+            if (cached != null && lastIndexes.getOrDefault(matchId, -1) <= cached.getIndex()) {
+                return cached;
+            }
+            int index = appliedIndex.getAsInt();
+            boolean finished = match.isMatchFinished();
+            GameGrid[] grids = new GameGrid[match.getPlayers()];
+            boolean[] eliminated = new boolean[grids.length];
+            for (int i = 0; i < grids.length; i++) {
+                grids[i] = finished ? match.getPlayerGrid(i) : match.getFoggedGrid(i); // Fleets revealed at the end
+                eliminated[i] = match.isEliminated(i);
+            }
+            int turn = finished ? -1 : match.getCurrentTurn();
+            MatchEvent event = new MatchEvent("resync", publicIds.applyAsInt(matchId), index, turn, -1, -1, -1, null,
+                    grids, eliminated);
+            resyncs.put(matchId, event);
+            return event;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package battleship.server;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Callback exported by a client watching a match.
+ */
+public interface SpectatorListener extends Remote {
+    /**
+     * Receives the next events of the match, in log order.
+     *
+     * @param events The events, never empty.
+     * @throws RemoteException If the spectator cannot be reached, it is then
+     *                         unsubscribed.
+     */
+    void matchEvents(MatchEvent[] events) throws RemoteException;
+}
@@ -0,0 +1,63 @@
+package battleship.server;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * Heartbeat and election timing computed by a node from the measured RTTs and
+ * heartbeat gaps.
+ */
+public class TimingInfo implements Serializable {
+    private final long heartbeatInterval; // ms, used while leader
+    private final long electionTimeout; // ms, before randomization, used while follower
+    private final double phi; // Current suspicion level of the leader
+    private final double meanGap; // Mean gap between leader messages (ms)
+    private final double gapDeviation; // Deviation of those gaps (ms)
+    private final Map<Integer, Double> peerRtts; // Smoothed RTT per follower (ms)
+
+    public TimingInfo(long heartbeatInterval, long electionTimeout, double phi, double meanGap, double gapDeviation,
+            Map<Integer, Double> peerRtts) {
+        this.heartbeatInterval = heartbeatInterval;
+        this.electionTimeout = electionTimeout;
+        this.phi = phi;
+        this.meanGap = meanGap;
+        this.gapDeviation = gapDeviation;
+        this.peerRtts = peerRtts;
+    }
+
+    public long getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    public long getElectionTimeout() {
+        return electionTimeout;
+    }
+
+    public double getPhi() {
+        return phi;
+    }
+
+    public double getMeanGap() {
+        return meanGap;
+    }
+
+    public double getGapDeviation() {
+        return gapDeviation;
+    }
+
+    public Map<Integer, Double> getPeerRtts() {
+        return peerRtts;
+    }
+
+    @Override
+    public String toString() {
+        return "TimingInfo{" +
+                "heartbeatInterval=" + heartbeatInterval +
+                ", electionTimeout=" + electionTimeout +
+                ", phi=" + phi +
+                ", meanGap=" + meanGap +
+                ", gapDeviation=" + gapDeviation +
+                ", peerRtts=" + peerRtts +
+                '}';
+    }
+}